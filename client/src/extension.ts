@@ -42,6 +42,12 @@ export function activate(context: ExtensionContext) {
 						'-jar', jarFile, "--client", (server.address() as net.AddressInfo).port.toString()
 					];
 
+					// Class data sharing archive built by `gradle cdsArchive`, shortens the startup of the server
+					const archive = jarFile.replace(/\.jar$/, ".jsa");
+					if (archive !== jarFile && fs.existsSync(archive)) {
+						args.unshift("-XX:SharedArchiveFile=" + archive);
+					}
+
 					console.log("Starting OpenJML: " + javaExecutablePath + " " + args);
 
 					let process = child_process.spawn(javaExecutablePath, args, options);
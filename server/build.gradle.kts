@@ -42,6 +42,56 @@ dependencies {
     implementation(files("$rootDir/libs/openjml.jar", "$rootDir/libs/jmlruntime.jar", "$rootDir/libs/jmlspecs.jar"))
 }
 
+// Benchmarks of the diagnostic pipeline: gradle jmh [-Pjmh.args="<jmh options>"]
+sourceSets {
+    create("jmh") {
+        compileClasspath += sourceSets.main.get().output
+        runtimeClasspath += sourceSets.main.get().output
+    }
+}
+
+configurations["jmhImplementation"].extendsFrom(configurations.implementation.get())
+configurations["jmhRuntimeOnly"].extendsFrom(configurations.runtimeOnly.get())
+
+dependencies {
+    "jmhImplementation"("org.openjdk.jmh:jmh-core:1.35")
+    "jmhAnnotationProcessor"("org.openjdk.jmh:jmh-generator-annprocess:1.35")
+}
+
+tasks.register<JavaExec>("jmh") {
+    group = "verification"
+    description = "Runs the JMH benchmarks."
+    classpath = sourceSets["jmh"].runtimeClasspath
+    mainClass.set("org.openjdk.jmh.Main")
+    jvmArgs("--add-exports", "jdk.compiler/com.sun.tools.javac.tree=ALL-UNNAMED",
+            "--add-exports", "jdk.compiler/com.sun.tools.javac.api=ALL-UNNAMED")
+    args((project.findProperty("jmh.args") as String? ?: "").split(" ").filter { it.isNotBlank() })
+}
+
+// Indexes the JML specification library of the server jar ahead of the first start:
+// gradle precompileSpecs [-Pspecs.dir=<directory>]
+tasks.register<JavaExec>("precompileSpecs") {
+    group = "build"
+    description = "Builds the index of the JML specification library used to warm up OpenJML contexts."
+    classpath = files(tasks.named("shadowJar"))
+    mainClass.set("com.github.wadoon.openjmllsp.App")
+    args(listOfNotNull("--precompile-specs", project.findProperty("specs.dir") as String?))
+}
+
+// Class data sharing archive of the server jar, which the client passes to the JVM if it lies next to the jar:
+// gradle cdsArchive
+tasks.register<Exec>("cdsArchive") {
+    group = "build"
+    description = "Archives the classes loaded by a training run of the server for faster startup."
+    val jar = tasks.named<Jar>("shadowJar").flatMap { it.archiveFile }
+    dependsOn("shadowJar")
+    doFirst {
+        val file = jar.get().asFile
+        commandLine("java", "-XX:ArchiveClassesAtExit=" + file.path.removeSuffix(".jar") + ".jsa",
+            "-jar", file.path, "--train")
+    }
+}
+
 /*
 tasks.test {
     useJUnitPlatform()
@@ -0,0 +1,125 @@
+package com.github.wadoon.openjmllsp;
+
+import org.eclipse.lsp4j.WorkspaceDocumentDiagnosticReport;
+import org.eclipse.lsp4j.WorkspaceFullDocumentDiagnosticReport;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import javax.tools.Diagnostic;
+import javax.tools.JavaFileObject;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks of the steps of the diagnostic pipeline that do not run OpenJML.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DiagnosticPipelineBenchmark {
+    @Param({"10", "1000", "10000"})
+    public int files;
+
+    private SyntheticWorkspace workspace;
+    private OpenJMLLanguageServer server;
+    private OpenJMLDiagnosticHandler handler;
+    private List<Diagnostic<? extends JavaFileObject>> diagnostics;
+    private CheckResult result;
+    private Map<String, String> previousResultIds;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        workspace = SyntheticWorkspace.create(files);
+        server = workspace.server();
+        handler = server.diagnosticHandler;
+        diagnostics = workspace.diagnostics(3);
+        result = new CheckResult(new HashSet<>(workspace.uris), diagnostics);
+        handler.getJavaFiles();
+        handler.updateCache(result);
+        previousResultIds = new HashMap<>();
+        for (WorkspaceDocumentDiagnosticReport report :
+                handler.constructWorkspaceDiagnosticReport(Collections.emptyMap(), null).getItems()) {
+            WorkspaceFullDocumentDiagnosticReport full = report.getWorkspaceFullDocumentDiagnosticReport();
+            previousResultIds.put(full.getUri(), full.getResultId());
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        server.close();
+        workspace.delete();
+    }
+
+    @Benchmark
+    public void translate(Blackhole bh) {
+        for (Diagnostic<? extends JavaFileObject> diagnostic : diagnostics) {
+            bh.consume(handler.translate(diagnostic));
+        }
+    }
+
+    @Benchmark
+    public void updateCache() {
+        handler.updateCache(result);
+    }
+
+    /**
+     * A full report, with the diagnostics translated again as after every check run.
+     */
+    @Benchmark
+    public Object constructWorkspaceDiagnosticReport() {
+        handler.updateCache(result);
+        return handler.constructWorkspaceDiagnosticReport(Collections.emptyMap(), null);
+    }
+
+    /**
+     * A report of the same results to a client that has all of them already.
+     */
+    @Benchmark
+    public Object constructUnchangedWorkspaceDiagnosticReport() {
+        return handler.constructWorkspaceDiagnosticReport(previousResultIds, null);
+    }
+
+    /**
+     * Hashes of unchanged files, answered by the file-state index.
+     */
+    @Benchmark
+    public void getHash(Blackhole bh) {
+        for (String uri : workspace.uris) {
+            bh.consume(handler.getHash(uri));
+        }
+    }
+
+    /**
+     * Hashes of files that were all reported as changed.
+     */
+    @Benchmark
+    public void getHashChanged(Blackhole bh) {
+        handler.fileStates().invalidateAll();
+        for (String uri : workspace.uris) {
+            bh.consume(handler.getHash(uri));
+        }
+    }
+
+    @Benchmark
+    public Object getJavaFiles() {
+        return handler.getJavaFiles();
+    }
+
+    /**
+     * Building the source index, as done by the first {@link OpenJMLDiagnosticHandler#getJavaFiles()}.
+     */
+    @Benchmark
+    public Object scanSources() {
+        List<Path> folders = Collections.singletonList(workspace.root);
+        return new SourceIndex(folders, new OpenJmlSettings().exclude).scan().files();
+    }
+}
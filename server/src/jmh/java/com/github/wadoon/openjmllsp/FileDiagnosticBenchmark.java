@@ -0,0 +1,98 @@
+package com.github.wadoon.openjmllsp;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * End-to-end latency of a document diagnostic pull, including OpenJML.
+ */
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+public class FileDiagnosticBenchmark {
+    /**
+     * A server that has already checked the workspace.
+     */
+    @State(Scope.Benchmark)
+    public static class Warm {
+        @Param({"10", "1000", "10000"})
+        public int files;
+
+        SyntheticWorkspace workspace;
+        String uri;
+        OpenJMLLanguageServer server;
+
+        @Setup(Level.Trial)
+        public void setUp() throws IOException {
+            workspace = SyntheticWorkspace.create(files);
+            uri = workspace.uris.get(workspace.uris.size() / 2);
+            server = workspace.server();
+            server.diagnosticHandler.fileDiagnostic(uri).join();
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws IOException {
+            server.close();
+            workspace.delete();
+        }
+    }
+
+    /**
+     * A fresh server for every invocation. It is closed after the invocation, which drops the shared state of its
+     * workspace, so the next server starts without warm contexts or indexes.
+     */
+    @State(Scope.Benchmark)
+    public static class Cold {
+        @Param({"10", "1000", "10000"})
+        public int files;
+
+        SyntheticWorkspace workspace;
+        String uri;
+        OpenJMLLanguageServer server;
+
+        @Setup(Level.Trial)
+        public void setUp() throws IOException {
+            workspace = SyntheticWorkspace.create(files);
+            uri = workspace.uris.get(workspace.uris.size() / 2);
+        }
+
+        @Setup(Level.Invocation)
+        public void newServer() {
+            server = workspace.server();
+        }
+
+        @TearDown(Level.Invocation)
+        public void closeServer() {
+            server.close();
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws IOException {
+            workspace.delete();
+        }
+    }
+
+    /**
+     * First pull after start: scans the workspace and runs OpenJML on it.
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @Warmup(iterations = 1)
+    @Measurement(iterations = 5)
+    public Object cold(Cold state) {
+        return state.server.diagnosticHandler.fileDiagnostic(state.uri).join();
+    }
+
+    /**
+     * Pull of an unchanged document, answered from the cache.
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    @Warmup(iterations = 3, time = 2)
+    @Measurement(iterations = 5, time = 2)
+    public Object warm(Warm state) {
+        return state.server.diagnosticHandler.fileDiagnostic(state.uri).join();
+    }
+}
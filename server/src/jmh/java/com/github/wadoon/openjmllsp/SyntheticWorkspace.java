@@ -0,0 +1,106 @@
+package com.github.wadoon.openjmllsp;
+
+import org.eclipse.lsp4j.WorkspaceFolder;
+
+import javax.tools.Diagnostic;
+import javax.tools.JavaFileObject;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * A generated workspace of JML-annotated classes for benchmarks. The classes are spread over packages of 100
+ * classes; every class refers to its predecessor in the same package, so the dependency graph has chains but no
+ * workspace-wide cycles.
+ */
+class SyntheticWorkspace {
+    static final int CLASSES_PER_PACKAGE = 100;
+
+    final Path root;
+    final List<String> uris = new ArrayList<>();
+
+    private SyntheticWorkspace(Path root) {
+        this.root = root;
+    }
+
+    static SyntheticWorkspace create(int files) throws IOException {
+        SyntheticWorkspace workspace = new SyntheticWorkspace(Files.createTempDirectory("openjml-bench"));
+        Path sources = workspace.root.resolve("src/main/java");
+        for (int i = 0; i < files; i++) {
+            String pkg = "p" + (i / CLASSES_PER_PACKAGE);
+            Path file = sources.resolve(pkg).resolve("C" + i + ".java");
+            Files.createDirectories(file.getParent());
+            Files.write(file, source(pkg, i).getBytes(StandardCharsets.UTF_8));
+            workspace.uris.add(file.toUri().toString());
+        }
+        // excluded from the scan, but walked by a naive implementation
+        Path build = workspace.root.resolve("build/classes");
+        Files.createDirectories(build);
+        for (int i = 0; i < files / 10; i++) {
+            Files.write(build.resolve("C" + i + ".class"), new byte[256]);
+        }
+        return workspace;
+    }
+
+    private static String source(String pkg, int i) {
+        String previous = i % CLASSES_PER_PACKAGE == 0 ? null : "C" + (i - 1);
+        StringBuilder sb = new StringBuilder();
+        sb.append("package ").append(pkg).append(";\n\n");
+        sb.append("public class C").append(i).append(" {\n");
+        sb.append("    //@ public invariant value >= 0;\n");
+        sb.append("    private /*@ spec_public @*/ int value;\n\n");
+        sb.append("    //@ requires x >= 0;\n");
+        sb.append("    //@ ensures value == x;\n");
+        sb.append("    public void set(int x) { value = x; }\n\n");
+        sb.append("    //@ ensures \\result == value;\n");
+        sb.append("    public /*@ pure @*/ int get() { return value; }\n");
+        if (previous != null) {
+            sb.append("\n    //@ requires other != null;\n");
+            sb.append("    //@ ensures \\result == value + other.get();\n");
+            sb.append("    public int sum(").append(previous).append(" other) { return value + other.get(); }\n");
+        }
+        sb.append("}\n");
+        return sb.toString();
+    }
+
+    /**
+     * Diagnostics as OpenJML could report them: {@code perFile} warnings for every file.
+     */
+    List<Diagnostic<? extends JavaFileObject>> diagnostics(int perFile) {
+        List<Diagnostic<? extends JavaFileObject>> diagnostics = new ArrayList<>(uris.size() * perFile);
+        for (String uri : uris) {
+            JavaFileObject source = StoredDiagnostic.sourceOf(uri);
+            for (int j = 0; j < perFile; j++) {
+                int line = 5 + 3 * j;
+                diagnostics.add(new StoredDiagnostic(Diagnostic.Kind.WARNING, source, 100 + 60 * j, 96 + 60 * j,
+                        120 + 60 * j, line, 5, "jml.message",
+                        "The prover cannot establish an assertion (Postcondition) in method set"));
+            }
+        }
+        return diagnostics;
+    }
+
+    /**
+     * A language server on this workspace, without the on-disk cache, configured as by {@code initialize}. It has to
+     * be closed, which releases the state shared with other servers on this workspace.
+     */
+    OpenJMLLanguageServer server() {
+        OpenJMLLanguageServer server = new OpenJMLLanguageServer();
+        server.workspaceRoot = Collections.singletonList(new WorkspaceFolder(root.toUri().toString(), "bench"));
+        server.settings.persistentCache = false;
+        server.diagnosticHandler.settingsChanged();
+        return server;
+    }
+
+    void delete() throws IOException {
+        try (Stream<Path> files = Files.walk(root)) {
+            files.sorted(Comparator.reverseOrder()).forEach(it -> it.toFile().delete());
+        }
+    }
+}
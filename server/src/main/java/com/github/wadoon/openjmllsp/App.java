@@ -1,19 +1,52 @@
 package com.github.wadoon.openjmllsp;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.lang.reflect.Method;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import org.eclipse.lsp4j.jsonrpc.Launcher;
 import org.eclipse.lsp4j.launch.LSPLauncher;
 import org.eclipse.lsp4j.services.LanguageClient;
+import org.jmlspecs.openjml.Factory;
+import org.jmlspecs.openjml.IAPI;
 import org.tinylog.Logger;
 
 public class App {
     public static void main(String[] args) throws Exception {
-        Logger.info("OpenJML version: {}", OpenJMLLanguageServer.getOpenJMLVersion());
+        if (args.length >= 1 && args[0].equals("--worker")) {
+            OpenJmlWorker.serve();
+            return;
+        }
+        if (args.length >= 1 && args[0].equals("--batch")) {
+            System.exit(BatchRunner.run(Arrays.copyOfRange(args, 1, args.length)));
+        }
+        if (args.length >= 1 && args[0].equals("--train")) {
+            train();
+            return;
+        }
+        if (args.length >= 1 && args[0].equals("--precompile-specs")) {
+            Path directory = args.length >= 2 ? Paths.get(args[1])
+                    : new OpenJmlSettings().cacheDirectory().resolve("specs");
+            SpecIndex index = SpecIndex.load(directory);
+            Logger.info("Specification index of {} types in {}", index.size(), directory);
+            return;
+        }
+        for (int i = 0; i + 1 < args.length; i++) {
+            if (args[i].equals("--max-checks")) {
+                SharedWorkspace.setMaxConcurrentChecks(Integer.parseInt(args[i + 1]));
+            }
+        }
 
         if (args.length >= 2 && args[0].equals("--client")) {
             int port = Integer.parseInt(args[1]);
@@ -29,19 +62,79 @@ public class App {
         }
     }
 
+    /**
+     * Runs through the startup of a session and a check, so that a JVM started with
+     * {@code -XX:ArchiveClassesAtExit} archives the classes the server needs early, see the {@code cdsArchive}
+     * Gradle task. A JVM started with that archive loads them from shared memory instead of parsing and verifying
+     * them again.
+     */
+    private static void train() throws Exception {
+        OpenJMLLanguageServer server = new OpenJMLLanguageServer();
+        LSPLauncher.createServerLauncher(server, new ByteArrayInputStream(new byte[0]),
+                OutputStream.nullOutputStream());
+        new SyntaxChecker().check("file:///" + OpenJmlContextPool.WARMUP_FILE, 0, OpenJmlContextPool.warmupSource(
+                Collections.emptyList()));
+        IAPI api = Factory.makeAPI();
+        api.typecheck(api.parseFiles(api.makeJFOfromString(OpenJmlContextPool.WARMUP_FILE,
+                OpenJmlContextPool.warmupSource(Arrays.asList("java.util.List", "java.util.Map")))));
+        Logger.info("Training run of OpenJML {} done", api.version());
+        api.close();
+        server.close();
+        System.exit(0);
+    }
+
+    /**
+     * Serves every connecting client in its own session. Sessions on the same workspace share their OpenJML contexts
+     * and caches, see {@link SharedWorkspace}.
+     */
     private static void startServer(int port) {
+        ExecutorService sessions = sessionExecutor();
         try (ServerSocket serverSocket = new ServerSocket(port)) {
             while (true) {
                 Socket socket = serverSocket.accept();
-                InputStream in = socket.getInputStream();
-                OutputStream out = socket.getOutputStream();
-                startLspServer(in, out);
+                Logger.info("Client connected from {}", socket.getRemoteSocketAddress());
+                sessions.execute(() -> serve(socket));
             }
         } catch (IOException e) {
             Logger.error(e);
         }
     }
 
+    private static void serve(Socket socket) {
+        OpenJMLLanguageServer server = new OpenJMLLanguageServer();
+        server.onExit = () -> close(socket);
+        try {
+            run(server, socket.getInputStream(), socket.getOutputStream());
+        } catch (IOException e) {
+            Logger.error("IO exception in session", e);
+        } finally {
+            close(socket);
+            Logger.info("Client {} disconnected", socket.getRemoteSocketAddress());
+        }
+    }
+
+    private static void close(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException ignore) {
+        }
+    }
+
+    /**
+     * One virtual thread per session if the runtime supports them, else one platform thread per session.
+     */
+    private static ExecutorService sessionExecutor() {
+        try {
+            Method virtual = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) virtual.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newCachedThreadPool(r -> {
+                Thread t = new Thread(r, "openjml-session");
+                t.setDaemon(true);
+                return t;
+            });
+        }
+    }
 
     private static void connectToServer(int port) {
         try {
@@ -61,10 +154,24 @@ public class App {
     }
 
     private static void startLspServer(InputStream in, OutputStream out) {
-        OpenJMLLanguageServer server = new OpenJMLLanguageServer();
+        run(new OpenJMLLanguageServer(), in, out);
+    }
+
+    /**
+     * Runs a session until the connection is closed.
+     */
+    private static void run(OpenJMLLanguageServer server, InputStream in, OutputStream out) {
         Launcher<LanguageClient> launcher = LSPLauncher.createServerLauncher(server, in, out);
         LanguageClient client = launcher.getRemoteProxy();
         server.connect(client);
-        launcher.startListening();
+        try {
+            launcher.startListening().get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            Logger.error("Session ended with an error", e);
+        } finally {
+            server.close();
+        }
     }
 }
@@ -0,0 +1,378 @@
+package com.github.wadoon.openjmllsp;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.gson.stream.JsonWriter;
+import org.eclipse.lsp4j.DiagnosticSeverity;
+import org.eclipse.lsp4j.WorkspaceFolder;
+import org.tinylog.Logger;
+
+import javax.tools.Diagnostic;
+import javax.tools.JavaFileObject;
+import java.io.BufferedWriter;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Checks workspace folders without an editor, e.g. in continuous integration: {@code App --batch [options] folder...}.
+ * <p>
+ * The check runs through the same pipeline as in the language server, including parallel checking and the persistent
+ * cache, so a run over unchanged sources restores all results from the cache. The diagnostics are written as soon as
+ * OpenJML is done with a file, either as one JSON object per file and line (NDJSON) or as a SARIF log. Options:
+ * <ul>
+ *     <li>{@code --format ndjson|sarif}, default ndjson</li>
+ *     <li>{@code --output <file>}, default the standard output</li>
+ *     <li>{@code --parallelism <n>}, default the number of processors</li>
+ *     <li>{@code --cache-dir <directory>}, or {@code --no-cache}</li>
+ * </ul>
+ * The exit code is {@link #OK} if there are no errors, {@link #ERRORS} if there are, and {@link #FAILED} if the check
+ * could not run or OpenJML failed on a part of the workspace.
+ */
+class BatchRunner {
+    static final int OK = 0;
+    static final int ERRORS = 1;
+    static final int FAILED = 2;
+
+    private final OpenJMLLanguageServer server = new OpenJMLLanguageServer();
+    private final Output output;
+    private final Set<String> written = new HashSet<>();
+    private int errors = 0;
+    private int warnings = 0;
+
+    BatchRunner(Output output) {
+        this.output = output;
+    }
+
+    /**
+     * Runs the batch mode with the arguments following {@code --batch}.
+     */
+    static int run(String[] args) {
+        OutputStream stdout = new FileOutputStream(FileDescriptor.out);
+        // the standard output may carry the results, everything printed goes to the log
+        System.setOut(System.err);
+        OpenJmlSettings settings = new OpenJmlSettings();
+        settings.parallelism = Runtime.getRuntime().availableProcessors();
+        String format = "ndjson";
+        Path outputFile = null;
+        List<Path> folders = new ArrayList<>();
+        try {
+            for (int i = 0; i < args.length; i++) {
+                switch (args[i]) {
+                    case "--format":
+                        format = args[++i];
+                        if (!format.equals("ndjson") && !format.equals("sarif")) {
+                            throw new IllegalArgumentException("Unknown format " + format);
+                        }
+                        break;
+                    case "--output":
+                        outputFile = Paths.get(args[++i]);
+                        break;
+                    case "--parallelism":
+                        settings.parallelism = Integer.parseInt(args[++i]);
+                        break;
+                    case "--cache-dir":
+                        settings.cacheDirectory = args[++i];
+                        break;
+                    case "--no-cache":
+                        settings.persistentCache = false;
+                        break;
+                    default:
+                        if (args[i].startsWith("--")) {
+                            throw new IllegalArgumentException("Unknown option " + args[i]);
+                        }
+                        folders.add(Paths.get(args[i]).toAbsolutePath().normalize());
+                }
+            }
+            if (folders.isEmpty()) {
+                throw new IllegalArgumentException("No folder to check");
+            }
+        } catch (IllegalArgumentException | IndexOutOfBoundsException e) {
+            System.err.println("openjml-lsp --batch: " + e.getMessage());
+            System.err.println("usage: --batch [--format ndjson|sarif] [--output <file>] [--parallelism <n>]"
+                    + " [--cache-dir <directory> | --no-cache] <folder>...");
+            return FAILED;
+        }
+
+        try (Writer writer = new BufferedWriter(new OutputStreamWriter(
+                outputFile == null ? stdout : Files.newOutputStream(outputFile), StandardCharsets.UTF_8))) {
+            Output output = format.equals("sarif") ? new SarifOutput(writer) : new NdjsonOutput(writer);
+            return new BatchRunner(output).check(folders, settings);
+        } catch (IOException | UncheckedIOException e) {
+            Logger.error("Could not write the results", e);
+            return FAILED;
+        }
+    }
+
+    int check(List<Path> folders, OpenJmlSettings settings) throws IOException {
+        long start = System.nanoTime();
+        server.settings = settings;
+        server.workspaceRoot = new ArrayList<>();
+        for (Path folder : folders) {
+            server.workspaceRoot.add(new WorkspaceFolder(folder.toUri().toString(), folder.getFileName().toString()));
+        }
+        // closed only after everything is written, as translating the diagnostics needs the workspace state
+        try {
+            return check(start);
+        } finally {
+            server.close();
+        }
+    }
+
+    private int check(long start) throws IOException {
+        OpenJMLDiagnosticHandler handler = server.diagnosticHandler;
+        handler.settingsChanged();
+        output.begin();
+        CheckResult result;
+        try {
+            result = handler.requestWorkspaceCheck(new Streamer()).join();
+        } catch (RuntimeException e) {
+            Logger.error("Check failed", e);
+            output.end();
+            return FAILED;
+        }
+        // the results restored from the persistent cache did not pass the streamer
+        Map<String, List<Diagnostic<? extends JavaFileObject>>> rest = new LinkedHashMap<>();
+        for (Diagnostic<? extends JavaFileObject> d : result.diagnostics) {
+            if (d.getSource() != null) {
+                String uri = OpenJMLDiagnosticHandler.uriOf(d.getSource());
+                if (result.checked.contains(uri) && !written.contains(uri)) {
+                    rest.computeIfAbsent(uri, k -> new ArrayList<>()).add(d);
+                }
+            }
+        }
+        for (Map.Entry<String, List<Diagnostic<? extends JavaFileObject>>> e : rest.entrySet()) {
+            write(e.getKey(), e.getValue());
+        }
+
+        double seconds = (System.nanoTime() - start) / 1e9;
+        int files = result.checked.size();
+        JsonObject summary = new JsonObject();
+        summary.addProperty("files", files);
+        summary.addProperty("restored", result.restored.size());
+        summary.addProperty("errors", errors);
+        summary.addProperty("warnings", warnings);
+        summary.addProperty("failed", result.failed ? 1 : 0);
+        summary.addProperty("seconds", seconds);
+        summary.addProperty("filesPerSecond", files / Math.max(seconds, 1e-3));
+        output.end(summary);
+        Logger.info("Checked {} files ({} from the cache) in {} s, {} files/s: {} errors, {} warnings", files,
+                result.restored.size(), String.format("%.2f", seconds),
+                String.format("%.1f", files / Math.max(seconds, 1e-3)), errors, warnings);
+        if (result.failed) {
+            Logger.error("OpenJML failed on a part of the workspace, the results are incomplete");
+            return FAILED;
+        }
+        return errors > 0 ? ERRORS : OK;
+    }
+
+    private synchronized void write(String uri, List<Diagnostic<? extends JavaFileObject>> diagnostics) {
+        if (!written.add(uri) || diagnostics.isEmpty()) {
+            return;
+        }
+        List<org.eclipse.lsp4j.Diagnostic> translated = new ArrayList<>(diagnostics.size());
+        for (Diagnostic<? extends JavaFileObject> d : diagnostics) {
+            org.eclipse.lsp4j.Diagnostic t = server.diagnosticHandler.translate(d);
+            translated.add(t);
+            if (t.getSeverity() == DiagnosticSeverity.Error) {
+                errors++;
+            } else if (t.getSeverity() == DiagnosticSeverity.Warning) {
+                warnings++;
+            }
+        }
+        try {
+            output.file(uri, diagnostics, translated);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Writes the diagnostics of a file once OpenJML has moved on to the next one.
+     */
+    private class Streamer implements DiagnosticScheduler.Observer {
+        private final Map<String, List<Diagnostic<? extends JavaFileObject>>> collected = new HashMap<>();
+
+        @Override
+        public synchronized void started(Set<String> uris) {
+        }
+
+        @Override
+        public synchronized void report(String uri, Diagnostic<? extends JavaFileObject> diagnostic) {
+            collected.computeIfAbsent(uri, k -> new ArrayList<>()).add(diagnostic);
+        }
+
+        @Override
+        public void flush(String uri) {
+            List<Diagnostic<? extends JavaFileObject>> diagnostics;
+            synchronized (this) {
+                diagnostics = collected.remove(uri);
+            }
+            if (diagnostics != null) {
+                write(uri, diagnostics);
+            }
+        }
+    }
+
+    /**
+     * A format of the results.
+     */
+    interface Output {
+        void begin() throws IOException;
+
+        /**
+         * The diagnostics of {@code uri}, raw and translated to LSP positions.
+         */
+        void file(String uri, List<Diagnostic<? extends JavaFileObject>> diagnostics,
+                  List<org.eclipse.lsp4j.Diagnostic> translated) throws IOException;
+
+        void end(JsonObject summary) throws IOException;
+
+        /**
+         * Ends the output of a failed check.
+         */
+        default void end() throws IOException {
+            end(new JsonObject());
+        }
+    }
+
+    /**
+     * One object per file with diagnostics, followed by a summary object.
+     */
+    static class NdjsonOutput implements Output {
+        private final Writer writer;
+
+        NdjsonOutput(Writer writer) {
+            this.writer = writer;
+        }
+
+        @Override
+        public void begin() {
+        }
+
+        @Override
+        public void file(String uri, List<Diagnostic<? extends JavaFileObject>> diagnostics,
+                         List<org.eclipse.lsp4j.Diagnostic> translated) throws IOException {
+            JsonObject file = new JsonObject();
+            file.addProperty("uri", uri);
+            JsonArray items = new JsonArray();
+            for (int i = 0; i < translated.size(); i++) {
+                org.eclipse.lsp4j.Diagnostic t = translated.get(i);
+                JsonObject item = new JsonObject();
+                item.addProperty("severity", severity(t.getSeverity()));
+                item.addProperty("code", diagnostics.get(i).getCode());
+                item.addProperty("message", t.getMessage());
+                item.addProperty("line", t.getRange().getStart().getLine());
+                item.addProperty("character", t.getRange().getStart().getCharacter());
+                item.addProperty("endLine", t.getRange().getEnd().getLine());
+                item.addProperty("endCharacter", t.getRange().getEnd().getCharacter());
+                items.add(item);
+            }
+            file.add("diagnostics", items);
+            writer.write(file.toString());
+            writer.write('\n');
+            writer.flush();
+        }
+
+        @Override
+        public void end(JsonObject summary) throws IOException {
+            JsonObject line = new JsonObject();
+            line.add("summary", summary);
+            writer.write(line.toString());
+            writer.write('\n');
+            writer.flush();
+        }
+    }
+
+    /**
+     * A SARIF 2.1.0 log with one run, whose results are written as they come in.
+     */
+    static class SarifOutput implements Output {
+        private final JsonWriter json;
+
+        SarifOutput(Writer writer) {
+            this.json = new JsonWriter(writer);
+        }
+
+        @Override
+        public void begin() throws IOException {
+            json.beginObject();
+            json.name("$schema").value("https://json.schemastore.org/sarif-2.1.0.json");
+            json.name("version").value("2.1.0");
+            json.name("runs").beginArray().beginObject();
+            json.name("tool").beginObject().name("driver").beginObject()
+                    .name("name").value("OpenJML")
+                    .name("informationUri").value("https://www.openjml.org/")
+                    .endObject().endObject();
+            json.name("results").beginArray();
+            json.flush();
+        }
+
+        @Override
+        public void file(String uri, List<Diagnostic<? extends JavaFileObject>> diagnostics,
+                         List<org.eclipse.lsp4j.Diagnostic> translated) throws IOException {
+            for (int i = 0; i < translated.size(); i++) {
+                org.eclipse.lsp4j.Diagnostic t = translated.get(i);
+                json.beginObject();
+                String code = diagnostics.get(i).getCode();
+                if (code != null) {
+                    json.name("ruleId").value(code);
+                }
+                json.name("level").value(level(t.getSeverity()));
+                json.name("message").beginObject().name("text").value(t.getMessage()).endObject();
+                json.name("locations").beginArray().beginObject()
+                        .name("physicalLocation").beginObject()
+                        .name("artifactLocation").beginObject().name("uri").value(uri).endObject()
+                        // SARIF counts lines and columns from 1
+                        .name("region").beginObject()
+                        .name("startLine").value(t.getRange().getStart().getLine() + 1)
+                        .name("startColumn").value(t.getRange().getStart().getCharacter() + 1)
+                        .name("endLine").value(t.getRange().getEnd().getLine() + 1)
+                        .name("endColumn").value(t.getRange().getEnd().getCharacter() + 1)
+                        .endObject()
+                        .endObject()
+                        .endObject().endArray();
+                json.endObject();
+            }
+            json.flush();
+        }
+
+        @Override
+        public void end(JsonObject summary) throws IOException {
+            json.endArray();
+            json.name("properties").beginObject();
+            for (Map.Entry<String, com.google.gson.JsonElement> e : summary.entrySet()) {
+                json.name(e.getKey()).value(e.getValue().getAsNumber());
+            }
+            json.endObject();
+            json.endObject().endArray().endObject();
+            json.flush();
+        }
+
+        private static String level(DiagnosticSeverity severity) {
+            if (severity == DiagnosticSeverity.Error) {
+                return "error";
+            }
+            return severity == DiagnosticSeverity.Warning ? "warning" : "note";
+        }
+    }
+
+    private static String severity(DiagnosticSeverity severity) {
+        return severity == null ? "information" : severity.name().toLowerCase();
+    }
+}
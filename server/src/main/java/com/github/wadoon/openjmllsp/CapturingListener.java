@@ -0,0 +1,66 @@
+package com.github.wadoon.openjmllsp;
+
+import javax.tools.Diagnostic;
+import javax.tools.DiagnosticListener;
+import javax.tools.JavaFileObject;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Collects the diagnostics of one OpenJML pass and forwards them to the observers of the check. The diagnostics are
+ * detached from the compiler as they come in, see {@link StoredDiagnostic}.
+ */
+class CapturingListener implements DiagnosticListener<JavaFileObject> {
+    List<Diagnostic<? extends JavaFileObject>> diagnostics = new ArrayList<>();
+
+    private final Set<String> report;
+    private final Collection<DiagnosticScheduler.Observer> observers;
+    private String last;
+    private JavaFileObject source;
+    private LineIndex lines;
+
+    /**
+     * @param report the uris to collect diagnostics for, or null for all
+     */
+    CapturingListener(Set<String> report, Collection<DiagnosticScheduler.Observer> observers) {
+        this.report = report;
+        this.observers = observers;
+        observers.forEach(it -> it.started(report));
+    }
+
+    @Override
+    public void report(Diagnostic<? extends JavaFileObject> diagnostic) {
+        String uri = diagnostic.getSource() == null ? null : OpenJMLDiagnosticHandler.uriOf(diagnostic.getSource());
+        if (report != null && (uri == null || !report.contains(uri))) {
+            return;
+        }
+        if (uri == null) {
+            diagnostics.add(StoredDiagnostic.of(diagnostic, null));
+            return;
+        }
+        if (last != null && !last.equals(uri)) {
+            // OpenJML moved on to the next file
+            String done = last;
+            observers.forEach(it -> it.flush(done));
+        }
+        if (!uri.equals(last)) {
+            source = StoredDiagnostic.sourceOf(uri);
+            lines = LineIndex.of(diagnostic.getSource());
+        }
+        last = uri;
+        StoredDiagnostic detached = StoredDiagnostic.of(diagnostic, source, lines);
+        diagnostics.add(detached);
+        observers.forEach(it -> it.report(uri, detached));
+    }
+
+    /**
+     * The pass is over.
+     */
+    void done() {
+        if (last != null) {
+            observers.forEach(it -> it.flush(last));
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package com.github.wadoon.openjmllsp;
+
+import javax.tools.Diagnostic;
+import javax.tools.JavaFileObject;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Outcome of one OpenJML run: the uris that were checked and the diagnostics reported for them.
+ * A checked uri without diagnostics is clean.
+ */
+class CheckResult {
+    final Set<String> checked;
+    final List<Diagnostic<? extends JavaFileObject>> diagnostics;
+
+    /**
+     * Hashes of the checked contents, for the uris whose contents were taken from editor buffers.
+     */
+    final Map<String, Long> hashes = new HashMap<>();
+
+    /**
+     * The checked uris whose results were restored from the {@link PersistentDiagnosticCache}.
+     */
+    final Set<String> restored = new HashSet<>();
+
+    /**
+     * Whether OpenJML failed on a part of the run, e.g. crashed on a unit or lost its worker process. The results
+     * of that part are missing.
+     */
+    boolean failed = false;
+
+    CheckResult() {
+        this(new HashSet<>(), new ArrayList<>());
+    }
+
+    CheckResult(Set<String> checked, List<Diagnostic<? extends JavaFileObject>> diagnostics) {
+        this.checked = checked;
+        this.diagnostics = diagnostics;
+    }
+
+    /**
+     * Adds the results of {@code other}. For uris checked by both, the results of {@code other} win.
+     */
+    void addAll(CheckResult other) {
+        diagnostics.removeIf(it -> it.getSource() != null
+                && other.checked.contains(OpenJMLDiagnosticHandler.uriOf(it.getSource())));
+        restored.removeAll(other.checked);
+        checked.addAll(other.checked);
+        diagnostics.addAll(other.diagnostics);
+        hashes.putAll(other.hashes);
+        restored.addAll(other.restored);
+        failed |= other.failed;
+    }
+}
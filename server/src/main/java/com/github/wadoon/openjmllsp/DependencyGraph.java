@@ -0,0 +1,205 @@
+package com.github.wadoon.openjmllsp;
+
+import com.sun.tools.javac.code.Symbol;
+import com.sun.tools.javac.tree.JCTree;
+import org.jmlspecs.openjml.JmlTreeScanner;
+
+import javax.tools.JavaFileObject;
+import java.util.*;
+
+/**
+ * File-level dependency graph of the compilation units in the workspace.
+ * <p>
+ * An edge {@code a -> b} means that {@code a} refers to a type declared in {@code b}. Hence, {@code a} has to be
+ * re-checked whenever {@code b} changes. The edges are extracted from the attributed trees of an OpenJML run.
+ */
+class DependencyGraph {
+    private final Map<String, Set<String>> dependencies = new HashMap<>();
+    private final Map<String, Set<String>> dependents = new HashMap<>();
+
+    public synchronized boolean isEmpty() {
+        return dependencies.isEmpty();
+    }
+
+    public synchronized boolean contains(String uri) {
+        return dependencies.containsKey(uri);
+    }
+
+    public synchronized void clear() {
+        dependencies.clear();
+        dependents.clear();
+    }
+
+    /**
+     * A copy of the edges, as map from each unit to the units it depends on.
+     */
+    public synchronized Map<String, Set<String>> snapshot() {
+        Map<String, Set<String>> copy = new HashMap<>();
+        dependencies.forEach((uri, uses) -> copy.put(uri, new HashSet<>(uses)));
+        return copy;
+    }
+
+    /**
+     * Replaces the outgoing edges of {@code uri}.
+     */
+    public synchronized void update(String uri, Set<String> uses) {
+        Set<String> old = dependencies.put(uri, new HashSet<>(uses));
+        if (old != null) {
+            for (String target : old) {
+                Set<String> s = dependents.get(target);
+                if (s != null) s.remove(uri);
+            }
+        }
+        for (String target : uses) {
+            dependents.computeIfAbsent(target, k -> new HashSet<>()).add(uri);
+        }
+    }
+
+    public synchronized void remove(String uri) {
+        update(uri, Collections.emptySet());
+        dependencies.remove(uri);
+    }
+
+    /**
+     * The given uris and all units that transitively depend on them. These need to be re-checked after a change.
+     */
+    public synchronized Set<String> affectedBy(Collection<String> changed) {
+        return closure(changed, dependents);
+    }
+
+    /**
+     * The given uris and all units they transitively depend on. These are needed to attribute the given uris.
+     */
+    public synchronized Set<String> requiredBy(Collection<String> uris) {
+        return closure(uris, dependencies);
+    }
+
+    /**
+     * Splits {@code uris} into at most {@code count} shards of similar size that can be checked independently, each
+     * together with the units it requires. Strongly connected components are never split, and the components are
+     * taken in uri order, so that units of the same package tend to end up in the same shard.
+     */
+    public synchronized List<Set<String>> shards(Collection<String> uris, int count) {
+        List<Set<String>> components = stronglyConnectedComponents(new HashSet<>(uris));
+        components.sort(Comparator.comparing(c -> Collections.min(c)));
+        int target = (uris.size() + count - 1) / Math.max(1, count);
+        List<Set<String>> shards = new ArrayList<>();
+        Set<String> current = new HashSet<>();
+        for (Set<String> component : components) {
+            if (!current.isEmpty() && current.size() + component.size() > target && shards.size() < count - 1) {
+                shards.add(current);
+                current = new HashSet<>();
+            }
+            current.addAll(component);
+        }
+        if (!current.isEmpty()) {
+            shards.add(current);
+        }
+        return shards;
+    }
+
+    /**
+     * Tarjan's algorithm on the subgraph induced by {@code nodes}, without recursion as the graph may be deep.
+     */
+    private List<Set<String>> stronglyConnectedComponents(Set<String> nodes) {
+        List<Set<String>> components = new ArrayList<>();
+        Map<String, Integer> index = new HashMap<>();
+        Map<String, Integer> lowlink = new HashMap<>();
+        Deque<String> stack = new ArrayDeque<>();
+        Set<String> onStack = new HashSet<>();
+        Deque<Map.Entry<String, Iterator<String>>> work = new ArrayDeque<>();
+
+        for (String root : nodes) {
+            if (index.containsKey(root)) continue;
+            index.put(root, index.size());
+            lowlink.put(root, index.get(root));
+            stack.push(root);
+            onStack.add(root);
+            work.push(new AbstractMap.SimpleEntry<>(root, successors(root, nodes)));
+            while (!work.isEmpty()) {
+                String node = work.peek().getKey();
+                Iterator<String> it = work.peek().getValue();
+                if (it.hasNext()) {
+                    String next = it.next();
+                    if (!index.containsKey(next)) {
+                        index.put(next, index.size());
+                        lowlink.put(next, index.get(next));
+                        stack.push(next);
+                        onStack.add(next);
+                        work.push(new AbstractMap.SimpleEntry<>(next, successors(next, nodes)));
+                    } else if (onStack.contains(next)) {
+                        lowlink.put(node, Math.min(lowlink.get(node), index.get(next)));
+                    }
+                    continue;
+                }
+                work.pop();
+                if (!work.isEmpty()) {
+                    String parent = work.peek().getKey();
+                    lowlink.put(parent, Math.min(lowlink.get(parent), lowlink.get(node)));
+                }
+                if (lowlink.get(node).equals(index.get(node))) {
+                    Set<String> component = new HashSet<>();
+                    String member;
+                    do {
+                        member = stack.pop();
+                        onStack.remove(member);
+                        component.add(member);
+                    } while (!member.equals(node));
+                    components.add(component);
+                }
+            }
+        }
+        return components;
+    }
+
+    private Iterator<String> successors(String node, Set<String> nodes) {
+        return dependencies.getOrDefault(node, Collections.emptySet()).stream()
+                .filter(nodes::contains).iterator();
+    }
+
+    private static Set<String> closure(Collection<String> start, Map<String, Set<String>> edges) {
+        Set<String> seen = new HashSet<>(start);
+        Deque<String> queue = new ArrayDeque<>(start);
+        while (!queue.isEmpty()) {
+            for (String next : edges.getOrDefault(queue.poll(), Collections.emptySet())) {
+                if (seen.add(next)) queue.add(next);
+            }
+        }
+        return seen;
+    }
+
+    /**
+     * Collects the uris of all source files whose types are referenced from the given attributed compilation unit.
+     */
+    public static Set<String> collectReferences(JCTree.JCCompilationUnit unit) {
+        ReferenceCollector collector = new ReferenceCollector();
+        unit.accept(collector);
+        collector.references.remove(OpenJMLDiagnosticHandler.uriOf(unit.sourcefile));
+        return collector.references;
+    }
+
+    private static class ReferenceCollector extends JmlTreeScanner {
+        final Set<String> references = new HashSet<>();
+
+        @Override
+        public void visitIdent(JCTree.JCIdent tree) {
+            add(tree.sym);
+            super.visitIdent(tree);
+        }
+
+        @Override
+        public void visitSelect(JCTree.JCFieldAccess tree) {
+            add(tree.sym);
+            super.visitSelect(tree);
+        }
+
+        private void add(Symbol sym) {
+            if (sym == null) return;
+            Symbol.ClassSymbol clazz = sym.outermostClass();
+            if (clazz != null && clazz.sourcefile != null
+                    && clazz.sourcefile.getKind() == JavaFileObject.Kind.SOURCE) {
+                references.add(OpenJMLDiagnosticHandler.uriOf(clazz.sourcefile));
+            }
+        }
+    }
+}
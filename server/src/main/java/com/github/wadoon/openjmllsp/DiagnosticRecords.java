@@ -0,0 +1,98 @@
+package com.github.wadoon.openjmllsp;
+
+import javax.tools.Diagnostic;
+import javax.tools.JavaFileObject;
+import java.util.AbstractList;
+import java.util.List;
+import java.util.RandomAccess;
+
+/**
+ * An immutable list of the diagnostics of one file, stored column-wise in primitive arrays: five positions and the
+ * kind per diagnostic, plus its code and message. Nothing refers back to the compiler, so the trees and contexts of a
+ * check can be collected as soon as it is done. The elements are {@link StoredDiagnostic}s created on access.
+ */
+final class DiagnosticRecords extends AbstractList<Diagnostic<? extends JavaFileObject>> implements RandomAccess {
+    static final DiagnosticRecords EMPTY = new DiagnosticRecords(null, new long[0], new byte[0], new String[0],
+            new String[0]);
+
+    private static final int POSITIONS = 5;
+    private static final Diagnostic.Kind[] KINDS = Diagnostic.Kind.values();
+
+    private final JavaFileObject source;
+    private final long[] positions;
+    private final byte[] kinds;
+    private final String[] codes;
+    private final String[] messages;
+
+    private DiagnosticRecords(JavaFileObject source, long[] positions, byte[] kinds, String[] codes,
+                              String[] messages) {
+        this.source = source;
+        this.positions = positions;
+        this.kinds = kinds;
+        this.codes = codes;
+        this.messages = messages;
+    }
+
+    /**
+     * Flattens {@code diagnostics}, which all have the same source.
+     */
+    static DiagnosticRecords of(List<? extends Diagnostic<? extends JavaFileObject>> diagnostics) {
+        if (diagnostics instanceof DiagnosticRecords) {
+            return (DiagnosticRecords) diagnostics;
+        }
+        int n = diagnostics.size();
+        if (n == 0) {
+            return EMPTY;
+        }
+        long[] positions = new long[n * POSITIONS];
+        byte[] kinds = new byte[n];
+        String[] codes = new String[n];
+        String[] messages = new String[n];
+        // the records outlive the check, so they do not keep its file objects and their contents
+        JavaFileObject first = diagnostics.get(0).getSource();
+        JavaFileObject source = first == null ? null
+                : StoredDiagnostic.sourceOf(OpenJMLDiagnosticHandler.uriOf(first));
+        for (int i = 0; i < n; i++) {
+            StoredDiagnostic d = StoredDiagnostic.of(diagnostics.get(i), source);
+            int p = i * POSITIONS;
+            positions[p] = d.position;
+            positions[p + 1] = d.startPosition;
+            positions[p + 2] = d.endPosition;
+            positions[p + 3] = d.lineNumber;
+            positions[p + 4] = d.columnNumber;
+            kinds[i] = (byte) d.kind.ordinal();
+            // there are only a few hundred codes, but thousands of diagnostics carrying them
+            codes[i] = d.code == null ? null : d.code.intern();
+            messages[i] = d.message;
+        }
+        return new DiagnosticRecords(source, positions, kinds, codes, messages);
+    }
+
+    @Override
+    public StoredDiagnostic get(int index) {
+        int p = index * POSITIONS;
+        if (index < 0 || index >= kinds.length) {
+            throw new IndexOutOfBoundsException(Integer.toString(index));
+        }
+        return new StoredDiagnostic(KINDS[kinds[index]], source, positions[p], positions[p + 1], positions[p + 2],
+                positions[p + 3], positions[p + 4], codes[index], messages[index]);
+    }
+
+    @Override
+    public int size() {
+        return kinds.length;
+    }
+
+    /**
+     * Estimated heap size of the records in bytes. Codes are shared and not counted.
+     */
+    long bytes() {
+        long bytes = 64 + 8L * positions.length + kinds.length + 8L * (codes.length + messages.length);
+        for (String message : messages) {
+            if (message != null) {
+                bytes += 40 + message.length();
+            }
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,275 @@
+package com.github.wadoon.openjmllsp;
+
+import org.tinylog.Logger;
+
+import javax.tools.Diagnostic;
+import javax.tools.JavaFileObject;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Schedules OpenJML checks on a dedicated thread.
+ * <p>
+ * Requests are coalesced: while a check is waiting, further requests are merged into it, and a request that is
+ * covered by the running check waits for it. A request of no uris asks for the whole workspace, which only a
+ * workspace check covers. A waiting check is started only after no edit happened for the
+ * debounce window. An edit supersedes the running check: it is cancelled, and its requests are moved to the next
+ * check. A check whose requests were all cancelled (e.g., by {@code $/cancelRequest}) is cancelled, too.
+ */
+class DiagnosticScheduler {
+    /**
+     * Performs a check of the given uris, or of the whole workspace if they are empty. Implementations should call
+     * {@link Run#checkCancelled()} regularly.
+     */
+    interface Checker {
+        CheckResult check(Set<String> uris, Run run);
+    }
+
+    /**
+     * Receives the diagnostics of a check while it is running.
+     */
+    interface Observer {
+        /**
+         * OpenJML starts a pass over the given uris ({@code null} for all). Diagnostics reported earlier for these
+         * uris are void.
+         */
+        void started(Set<String> uris);
+
+        void report(String uri, Diagnostic<? extends JavaFileObject> diagnostic);
+
+        /**
+         * OpenJML has most likely reported all diagnostics for {@code uri}. More may follow.
+         */
+        void flush(String uri);
+    }
+
+    private final Checker checker;
+    private final ExecutorService executor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+            new LinkedBlockingQueue<>(), daemon("openjml-check"));
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(daemon("openjml-debounce"));
+
+    private volatile long debounceMillis;
+    private long lastEdit = 0;
+
+    private Run pending;
+    private Run running;
+    private ScheduledFuture<?> start;
+
+    DiagnosticScheduler(Checker checker, long debounceMillis) {
+        this.checker = checker;
+        this.debounceMillis = debounceMillis;
+    }
+
+    public void setDebounceMillis(long debounceMillis) {
+        this.debounceMillis = debounceMillis;
+    }
+
+    /**
+     * Number of requests waiting for a check.
+     */
+    public synchronized int waiting() {
+        return (pending == null ? 0 : pending.waiters.size()) + (running == null ? 0 : running.waiters.size());
+    }
+
+    /**
+     * Requests a check of the given uris. The future completes after the results are stored.
+     */
+    public CompletableFuture<CheckResult> request(Collection<String> uris) {
+        return request(uris, null);
+    }
+
+    /**
+     * Requests a check of the given uris, or of the whole workspace if they are empty. The {@code observer} receives
+     * the diagnostics of the check while it runs, if the check has not started yet.
+     */
+    public synchronized CompletableFuture<CheckResult> request(Collection<String> uris, Observer observer) {
+        if (running != null && !running.cancelled
+                && (running.workspace || !uris.isEmpty() && running.uris.containsAll(uris))) {
+            return running.join(null);
+        }
+        if (pending == null) {
+            pending = new Run();
+        }
+        pending.uris.addAll(uris);
+        pending.workspace |= uris.isEmpty();
+        CompletableFuture<CheckResult> future = pending.join(observer);
+        if (start == null) {
+            long delay = lastEdit + debounceMillis - System.currentTimeMillis();
+            schedule(Math.max(0, delay));
+        }
+        return future;
+    }
+
+    /**
+     * Notifies about an edit: cancels the running check and restarts the debounce window of the waiting one.
+     */
+    public synchronized void edited() {
+        lastEdit = System.currentTimeMillis();
+        if (running != null && !running.cancelled) {
+            Logger.info("Cancel superseded check");
+            if (pending == null) {
+                pending = new Run();
+            }
+            pending.uris.addAll(running.uris);
+            pending.workspace |= running.workspace;
+            pending.waiters.addAll(running.waiters);
+            pending.observers.putAll(running.observers);
+            running.waiters.clear();
+            running.observers.clear();
+            running.cancelled = true;
+        }
+        if (pending != null) {
+            schedule(debounceMillis);
+        }
+    }
+
+    /**
+     * Cancels all checks and stops the threads of the scheduler.
+     */
+    public synchronized void shutdown() {
+        if (running != null) {
+            running.cancelled = true;
+        }
+        pending = null;
+        timer.shutdownNow();
+        executor.shutdown();
+    }
+
+    private void schedule(long delay) {
+        if (start != null) {
+            start.cancel(false);
+        }
+        start = timer.schedule(this::start, delay, TimeUnit.MILLISECONDS);
+    }
+
+    private synchronized void start() {
+        start = null;
+        if (pending == null || running != null) {
+            // started when the running check is done
+            return;
+        }
+        Run run = pending;
+        pending = null;
+        running = run;
+        executor.execute(() -> execute(run));
+    }
+
+    private void execute(Run run) {
+        try {
+            CheckResult result = checker.check(run.workspace ? Collections.emptySet() : run.uris, run);
+            run.complete(result);
+        } catch (CancellationException e) {
+            Logger.info("Check cancelled");
+        } catch (Throwable e) {
+            Logger.error("Check failed", e);
+            run.fail(e);
+        } finally {
+            synchronized (this) {
+                running = null;
+                if (pending != null && start == null) {
+                    start();
+                }
+            }
+        }
+    }
+
+    /**
+     * A request was cancelled. Its waiter may have been moved to another run by {@link #edited()} since it joined, so
+     * the run is looked up.
+     */
+    private void cancelled(CompletableFuture<CheckResult> waiter) {
+        synchronized (this) {
+            Run run = pending != null && pending.waiters.contains(waiter) ? pending
+                    : running != null && running.waiters.contains(waiter) ? running : null;
+            if (run == null) {
+                return;
+            }
+            run.waiters.remove(waiter);
+            run.observers.remove(waiter);
+            if (!run.waiters.isEmpty()) {
+                return;
+            }
+            if (run == pending) {
+                pending = null;
+                if (start != null) {
+                    start.cancel(false);
+                    start = null;
+                }
+            } else if (run == running) {
+                run.cancelled = true;
+            }
+        }
+    }
+
+    private static ThreadFactory daemon(String name) {
+        return r -> {
+            Thread t = new Thread(r, name);
+            t.setDaemon(true);
+            return t;
+        };
+    }
+
+    /**
+     * One check together with the requests waiting for it.
+     */
+    class Run {
+        final Set<String> uris = new HashSet<>();
+        /**
+         * Whether the whole workspace was requested.
+         */
+        private boolean workspace = false;
+        /**
+         * {@link System#nanoTime()} of the first request.
+         */
+        final long requested = System.nanoTime();
+        private final List<CompletableFuture<CheckResult>> waiters = new ArrayList<>();
+        private final Map<CompletableFuture<CheckResult>, Observer> observers = new ConcurrentHashMap<>();
+        private volatile boolean cancelled = false;
+
+        /**
+         * The observers of the requests waiting for this check.
+         */
+        public Collection<Observer> observers() {
+            return observers.values();
+        }
+
+        /**
+         * Aborts the check if it was superseded or nobody waits for it anymore.
+         */
+        public void checkCancelled() {
+            if (cancelled) {
+                throw new CancellationException();
+            }
+        }
+
+        private CompletableFuture<CheckResult> join(Observer observer) {
+            CompletableFuture<CheckResult> waiter = new CompletableFuture<>();
+            waiters.add(waiter);
+            if (observer != null) {
+                observers.put(waiter, observer);
+            }
+            waiter.whenComplete((r, e) -> {
+                if (waiter.isCancelled()) {
+                    cancelled(waiter);
+                }
+            });
+            return waiter;
+        }
+
+        private void complete(CheckResult result) {
+            List<CompletableFuture<CheckResult>> w;
+            synchronized (DiagnosticScheduler.this) {
+                w = new ArrayList<>(waiters);
+            }
+            w.forEach(it -> it.complete(result));
+        }
+
+        private void fail(Throwable e) {
+            List<CompletableFuture<CheckResult>> w;
+            synchronized (DiagnosticScheduler.this) {
+                w = new ArrayList<>(waiters);
+            }
+            w.forEach(it -> it.completeExceptionally(e));
+        }
+    }
+}
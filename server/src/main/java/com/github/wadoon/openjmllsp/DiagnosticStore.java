@@ -0,0 +1,202 @@
+package com.github.wadoon.openjmllsp;
+
+import javax.tools.Diagnostic;
+import javax.tools.JavaFileObject;
+import java.util.*;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+/**
+ * The diagnostics of the last check of each uri.
+ * <p>
+ * The store is an immutable snapshot that is replaced as a whole: the results of a check run are published at once,
+ * so readers never see a half-updated workspace. Reads only dereference the current snapshot and take no lock.
+ * Writers are serialized and copy the snapshot; they must not do I/O while publishing, hashes are computed by the
+ * caller beforehand.
+ * <p>
+ * The store is bounded by the number of entries and by their estimated size. When a bound is exceeded, the least
+ * recently used entries are evicted, those of files that are not open in the editor first. An evicted file is
+ * checked again, or restored from the persistent cache, when its diagnostics are asked for.
+ */
+class DiagnosticStore {
+    /**
+     * Result of {@code uri} for the content with hash {@code hash}.
+     */
+    static final class Entry {
+        final String uri;
+        final long hash;
+        final List<Diagnostic<? extends JavaFileObject>> diagnostics;
+        private final long bytes;
+        private volatile List<org.eclipse.lsp4j.Diagnostic> translated;
+        private volatile String resultId;
+        /**
+         * {@link System#nanoTime()} of the last read.
+         */
+        private volatile long used = System.nanoTime();
+
+        Entry(String uri, long hash, List<? extends Diagnostic<? extends JavaFileObject>> diagnostics) {
+            this.uri = uri;
+            this.hash = hash;
+            DiagnosticRecords records = DiagnosticRecords.of(diagnostics);
+            this.diagnostics = records;
+            this.bytes = 96 + 2L * uri.length() + records.bytes();
+        }
+
+        /**
+         * The diagnostics in the form sent to the client, translated by {@code translator} on the first call only.
+         * The list is shared by all reports and must not be modified.
+         */
+        List<org.eclipse.lsp4j.Diagnostic> translated(
+                Function<? super Entry, List<org.eclipse.lsp4j.Diagnostic>> translator) {
+            List<org.eclipse.lsp4j.Diagnostic> t = translated;
+            if (t == null) {
+                t = Collections.unmodifiableList(translator.apply(this));
+                resultId = DiagnosticStore.resultId(hash, t);
+                translated = t;
+            }
+            return t;
+        }
+
+        /**
+         * Identifies the translated diagnostics, for telling the client that its report is still current. It depends
+         * only on the content of the file and the diagnostics, so a later check with the same outcome has the same id.
+         */
+        String resultId(Function<? super Entry, List<org.eclipse.lsp4j.Diagnostic>> translator) {
+            translated(translator);
+            return resultId;
+        }
+    }
+
+    /**
+     * The result id of the translated diagnostics {@code translated} of the content with hash {@code hash}, see
+     * {@link Entry#resultId}.
+     */
+    static String resultId(long hash, List<org.eclipse.lsp4j.Diagnostic> translated) {
+        return Long.toHexString(hash) + "-" + Integer.toHexString(translated.hashCode());
+    }
+
+    private final Predicate<String> isOpen;
+    private volatile Map<String, Entry> snapshot = Collections.emptyMap();
+    private int maxEntries = Integer.MAX_VALUE;
+    private long maxBytes = Long.MAX_VALUE;
+    private volatile long bytes = 0;
+    private volatile long evictions = 0;
+
+    DiagnosticStore() {
+        this(uri -> false);
+    }
+
+    /**
+     * @param isOpen whether a uri is open in the editor, whose entries are evicted last
+     */
+    DiagnosticStore(Predicate<String> isOpen) {
+        this.isOpen = isOpen;
+    }
+
+    /**
+     * Bounds the store, 0 standing for no bound. Entries beyond the bounds are evicted with the next update.
+     */
+    public synchronized void setBounds(int maxEntries, long maxBytes) {
+        this.maxEntries = maxEntries <= 0 ? Integer.MAX_VALUE : maxEntries;
+        this.maxBytes = maxBytes <= 0 ? Long.MAX_VALUE : maxBytes;
+    }
+
+    public Entry get(String uri) {
+        Entry entry = snapshot.get(uri);
+        if (entry != null) {
+            entry.used = System.nanoTime();
+        }
+        return entry;
+    }
+
+    /**
+     * Estimated heap size of the entries in bytes.
+     */
+    public long bytes() {
+        return bytes;
+    }
+
+    /**
+     * Number of entries evicted so far.
+     */
+    public long evictions() {
+        return evictions;
+    }
+
+    /**
+     * The current entries. The map is immutable and not affected by later updates.
+     */
+    public Map<String, Entry> snapshot() {
+        return snapshot;
+    }
+
+    public boolean isEmpty() {
+        return snapshot.isEmpty();
+    }
+
+    /**
+     * Replaces the entries of the uris in {@code entries} in one step.
+     */
+    public synchronized void publish(Collection<Entry> entries) {
+        if (entries.isEmpty()) {
+            return;
+        }
+        Map<String, Entry> next = new HashMap<>(snapshot);
+        long b = bytes;
+        for (Entry entry : entries) {
+            Entry replaced = next.put(entry.uri, entry);
+            b += entry.bytes - (replaced == null ? 0 : replaced.bytes);
+        }
+        if (next.size() > maxEntries || b > maxBytes) {
+            b = evict(next, b);
+        }
+        bytes = b;
+        snapshot = Collections.unmodifiableMap(next);
+    }
+
+    /**
+     * Removes the least recently used entries from {@code entries}, those of closed files first, until it is within
+     * the bounds. Returns the remaining size.
+     */
+    private long evict(Map<String, Entry> entries, long size) {
+        List<Entry> candidates = new ArrayList<>(entries.values());
+        Map<String, Boolean> open = new HashMap<>();
+        for (Entry entry : candidates) {
+            open.put(entry.uri, isOpen.test(entry.uri));
+        }
+        candidates.sort(Comparator.comparing((Entry it) -> open.get(it.uri)).thenComparingLong(it -> it.used));
+        int evicted = 0;
+        for (Entry entry : candidates) {
+            if (entries.size() <= maxEntries && size <= maxBytes) {
+                break;
+            }
+            entries.remove(entry.uri);
+            size -= entry.bytes;
+            evicted++;
+        }
+        evictions += evicted;
+        return size;
+    }
+
+    public synchronized void removeAll(Collection<String> uris) {
+        Map<String, Entry> current = snapshot;
+        if (uris.stream().noneMatch(current::containsKey)) {
+            return;
+        }
+        Map<String, Entry> next = new HashMap<>(current);
+        long b = bytes;
+        for (String uri : uris) {
+            Entry removed = next.remove(uri);
+            if (removed != null) {
+                b -= removed.bytes;
+            }
+        }
+        bytes = b;
+        snapshot = Collections.unmodifiableMap(next);
+    }
+
+    public synchronized void clear() {
+        snapshot = Collections.emptyMap();
+        bytes = 0;
+    }
+}
@@ -0,0 +1,166 @@
+package com.github.wadoon.openjmllsp;
+
+import org.eclipse.lsp4j.Position;
+import org.eclipse.lsp4j.Range;
+import org.eclipse.lsp4j.TextDocumentContentChangeEvent;
+import org.tinylog.Logger;
+
+import javax.tools.SimpleJavaFileObject;
+import java.net.URI;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Contents of the documents opened in the editor, kept up to date by {@code didOpen}/{@code didChange}. OpenJML
+ * reads open documents from here instead of from disk.
+ */
+class DocumentStore {
+    private final Map<String, Document> documents = new ConcurrentHashMap<>();
+
+    public void open(String uri, int version, String text) {
+        documents.put(uri, new Document(version, text));
+    }
+
+    /**
+     * Applies the changes of {@code version} of the document. Changes to a version older than the current one are
+     * dropped, as their ranges refer to a different text.
+     */
+    public void change(String uri, int version, List<TextDocumentContentChangeEvent> changes) {
+        Document document = documents.get(uri);
+        if (document == null) {
+            return;
+        }
+        synchronized (document) {
+            if (version <= document.version) {
+                Logger.warn("Dropped change of {} to version {}, it is at version {}", uri, version,
+                        document.version);
+                return;
+            }
+            for (TextDocumentContentChangeEvent change : changes) {
+                Range range = change.getRange();
+                if (range == null) {
+                    document.content.reset(change.getText());
+                } else {
+                    int start = offsetAt(document.content, range.getStart());
+                    int end = offsetAt(document.content, range.getEnd());
+                    document.content.replace(start, end - start, change.getText());
+                }
+            }
+            document.version = version;
+            document.hash = null;
+        }
+    }
+
+    private static int offsetAt(PieceTable content, Position position) {
+        return content.offsetAt(position.getLine(), position.getCharacter());
+    }
+
+    public void close(String uri) {
+        documents.remove(uri);
+    }
+
+    public boolean isOpen(String uri) {
+        return documents.containsKey(uri);
+    }
+
+    /**
+     * The current text of the document, or null if it is not open.
+     */
+    public String getText(String uri) {
+        Document document = documents.get(uri);
+        if (document == null) {
+            return null;
+        }
+        synchronized (document) {
+            return document.content.toString();
+        }
+    }
+
+    /**
+     * The current text of the document if its hash is {@code hash}, else null.
+     */
+    public String getText(String uri, long hash) {
+        Document document = documents.get(uri);
+        if (document == null) {
+            return null;
+        }
+        synchronized (document) {
+            return document.hash() == hash ? document.content.toString() : null;
+        }
+    }
+
+    /**
+     * The hash of the current text of the document, or null if it is not open.
+     */
+    public Long getHash(String uri) {
+        Document document = documents.get(uri);
+        if (document == null) {
+            return null;
+        }
+        synchronized (document) {
+            return document.hash();
+        }
+    }
+
+    /**
+     * A file object with the current text of the document, or null if it is not open. The text is captured now,
+     * later edits do not affect the file object.
+     */
+    public BufferFileObject getFileObject(String uri) {
+        Document document = documents.get(uri);
+        if (document == null) {
+            return null;
+        }
+        synchronized (document) {
+            return new BufferFileObject(URI.create(uri), document.content.toString(), document.hash());
+        }
+    }
+
+    private static class Document {
+        final PieceTable content;
+        int version;
+        /**
+         * Hash of the content, computed on demand and dropped on every change.
+         */
+        Long hash;
+
+        Document(int version, String text) {
+            this.version = version;
+            this.content = new PieceTable(text);
+        }
+
+        long hash() {
+            if (hash == null) {
+                hash = FileStateIndex.contentHash(content.toString());
+            }
+            return hash;
+        }
+    }
+
+    /**
+     * Source file object over an editor buffer.
+     */
+    static class BufferFileObject extends SimpleJavaFileObject {
+        private final String text;
+        private final long hash;
+
+        BufferFileObject(URI uri, String text, long hash) {
+            super(uri, Kind.SOURCE);
+            this.text = text;
+            this.hash = hash;
+        }
+
+        @Override
+        public CharSequence getCharContent(boolean ignoreEncodingErrors) {
+            return text;
+        }
+
+        /**
+         * CRC32C of the UTF-8 encoded text, comparable to the hash of the saved file.
+         */
+        public long hash() {
+            return hash;
+        }
+    }
+}
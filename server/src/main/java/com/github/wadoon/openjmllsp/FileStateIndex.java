@@ -0,0 +1,217 @@
+package com.github.wadoon.openjmllsp;
+
+import org.tinylog.Logger;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32C;
+
+import static java.nio.file.StandardWatchEventKinds.*;
+
+/**
+ * Index of modification time, size and content hash of the files in the workspace.
+ * <p>
+ * Entries are computed on first use and then kept until the file is reported as changed, either by the client
+ * ({@code workspace/didChangeWatchedFiles}) or by a {@link WatchService} on the workspace folders. Looking up the hash
+ * of an unchanged file is a map lookup without I/O. If no watch service is running, the modification time and size
+ * are checked on each lookup instead. Excluded directories, like build output, are not watched.
+ */
+class FileStateIndex {
+    private final Map<String, FileState> states = new ConcurrentHashMap<>();
+    /**
+     * Incremented on every invalidation, so that a state read while the file changed is not stored.
+     */
+    private final AtomicLong generation = new AtomicLong();
+    private volatile boolean watching = false;
+    private volatile boolean closed = false;
+    private volatile WatchService service;
+    private List<Path> roots = Collections.emptyList();
+    private List<PathMatcher> excludes = Collections.emptyList();
+
+    /**
+     * CRC32C of the content of {@code uri}, or -1 if it cannot be read.
+     */
+    public long hash(String uri) {
+        FileState state = states.get(uri);
+        if (state != null && (watching || state.isCurrent(path(uri)))) {
+            return state.hash;
+        }
+        long g = generation.get();
+        FileState read = FileState.read(path(uri));
+        // atomic with respect to invalidate(uri), which increments the generation before removing the state
+        states.compute(uri, (k, old) -> generation.get() != g ? old : read);
+        return read == null ? -1 : read.hash;
+    }
+
+    /**
+     * Forgets the state of {@code uri}; it is read again on the next lookup.
+     */
+    public void invalidate(String uri) {
+        generation.incrementAndGet();
+        states.remove(uri);
+    }
+
+    public void invalidateAll() {
+        generation.incrementAndGet();
+        states.clear();
+    }
+
+    /**
+     * CRC32C of a text, comparable to the hash of the file it was saved to.
+     */
+    public static long contentHash(String text) {
+        CRC32C crc = new CRC32C();
+        crc.update(text.getBytes(StandardCharsets.UTF_8));
+        return crc.getValue();
+    }
+
+    /**
+     * Watches the given folders and their subfolders for changes on a daemon thread, except for the directories
+     * matching the {@code exclude} globs, see {@link SourceIndex#isExcluded}.
+     */
+    public void watch(List<Path> roots, List<String> exclude) {
+        this.roots = new ArrayList<>(roots);
+        this.excludes = SourceIndex.excludes(exclude);
+        Thread thread = new Thread(() -> {
+            try (WatchService service = FileSystems.getDefault().newWatchService()) {
+                this.service = service;
+                if (closed) {
+                    // closed before the service was there to be closed
+                    return;
+                }
+                for (Path root : roots) {
+                    register(service, root, root);
+                }
+                watching = true;
+                Logger.info("Watching workspace for file changes");
+                processEvents(service);
+            } catch (IOException e) {
+                Logger.warn("Could not watch the workspace, falling back to modification times: {}", e);
+            } catch (InterruptedException | ClosedWatchServiceException ignored) {
+            } finally {
+                watching = false;
+            }
+        }, "openjml-file-watcher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Stops watching.
+     */
+    public void close() {
+        closed = true;
+        WatchService s = service;
+        if (s != null) {
+            try {
+                s.close();
+            } catch (IOException e) {
+                Logger.warn("Could not stop watching the workspace: {}", e);
+            }
+        }
+    }
+
+    private void processEvents(WatchService service) throws InterruptedException {
+        while (true) {
+            WatchKey key = service.take();
+            Path directory = (Path) key.watchable();
+            for (WatchEvent<?> event : key.pollEvents()) {
+                if (event.kind() == OVERFLOW) {
+                    invalidateAll();
+                    continue;
+                }
+                Path path = directory.resolve((Path) event.context());
+                invalidate(path.toUri().toString());
+                if (event.kind() == ENTRY_CREATE && Files.isDirectory(path)) {
+                    roots.stream().filter(path::startsWith).findFirst()
+                            .ifPresent(root -> register(service, root, path));
+                }
+            }
+            key.reset();
+        }
+    }
+
+    /**
+     * Registers {@code directory} and its subdirectories below the workspace folder {@code root}. Hidden and excluded
+     * directories are skipped with their subtrees, as every watched directory takes a watch of the OS.
+     */
+    private void register(WatchService service, Path root, Path directory) {
+        try {
+            Files.walkFileTree(directory, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attributes) {
+                    if (!dir.equals(root) && (dir.getFileName().toString().startsWith(".")
+                            || SourceIndex.isExcluded(excludes, root, dir))) {
+                        return FileVisitResult.SKIP_SUBTREE;
+                    }
+                    try {
+                        dir.register(service, ENTRY_CREATE, ENTRY_MODIFY, ENTRY_DELETE);
+                    } catch (IOException e) {
+                        Logger.warn("Could not watch {}: {}", dir, e);
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path file, IOException e) {
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (IOException | UncheckedIOException e) {
+            Logger.warn("Could not watch {}: {}", directory, e);
+        }
+    }
+
+    private static Path path(String uri) {
+        try {
+            return Paths.get(URI.create(uri));
+        } catch (IllegalArgumentException | FileSystemNotFoundException e) {
+            // not a local file, e.g. an untitled buffer
+            return Paths.get(uri);
+        }
+    }
+
+    private static class FileState {
+        final long modified;
+        final long size;
+        final long hash;
+
+        FileState(long modified, long size, long hash) {
+            this.modified = modified;
+            this.size = size;
+            this.hash = hash;
+        }
+
+        boolean isCurrent(Path path) {
+            try {
+                BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+                return attributes.lastModifiedTime().toMillis() == modified && attributes.size() == size;
+            } catch (IOException e) {
+                return false;
+            }
+        }
+
+        static FileState read(Path path) {
+            try {
+                BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+                // read, not mapped: a live mapping keeps the editor from saving the file on Windows
+                CRC32C crc = new CRC32C();
+                crc.update(Files.readAllBytes(path));
+                return new FileState(attributes.lastModifiedTime().toMillis(), attributes.size(), crc.getValue());
+            } catch (IOException e) {
+                Logger.warn("Could not read {}: {}", path, e);
+                return null;
+            }
+        }
+    }
+}
@@ -0,0 +1,128 @@
+package com.github.wadoon.openjmllsp;
+
+import org.eclipse.lsp4j.Position;
+import org.eclipse.lsp4j.Range;
+import org.tinylog.Logger;
+
+import javax.tools.Diagnostic;
+import javax.tools.JavaFileObject;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.zip.CRC32C;
+
+/**
+ * Maps the character offsets of one version of a source text, as reported by javac, to LSP positions: a line and a
+ * column in UTF-16 code units. The index holds the offset at which each line starts, so a lookup is a binary search.
+ * Lines end at {@code \n}, {@code \r\n} or {@code \r}, as for javac and LSP.
+ */
+class LineIndex {
+    /**
+     * Content hash of the indexed text.
+     */
+    final long hash;
+    private final int[] lineStarts;
+    private final int length;
+
+    LineIndex(CharSequence text, long hash) {
+        this.hash = hash;
+        this.length = text.length();
+        int[] starts = new int[64];
+        int lines = 1;
+        char previous = 0;
+        for (int i = 0; i < length; i++) {
+            char c = text.charAt(i);
+            if (continuesLineBreak(previous, c)) {
+                starts[lines - 1] = i + 1;
+            } else if (endsLine(previous, c)) {
+                if (lines == starts.length) {
+                    starts = Arrays.copyOf(starts, lines * 2);
+                }
+                starts[lines++] = i + 1;
+            }
+            previous = c;
+        }
+        this.lineStarts = Arrays.copyOf(starts, lines);
+    }
+
+    /**
+     * Whether {@code c}, following {@code previous}, ends a line. A {@code \r\n} ends the line at its {@code \r}, see
+     * {@link #continuesLineBreak(char, char)}. {@link PieceTable} counts lines by the same rule.
+     */
+    static boolean endsLine(char previous, char c) {
+        return c == '\r' || c == '\n' && previous != '\r';
+    }
+
+    /**
+     * Whether {@code c} is the {@code \n} of a {@code \r\n}, so the next line starts behind it.
+     */
+    static boolean continuesLineBreak(char previous, char c) {
+        return c == '\n' && previous == '\r';
+    }
+
+    /**
+     * Indexes the text of {@code source} for looking up positions, without computing its hash. Returns null if the
+     * text cannot be read.
+     */
+    static LineIndex of(JavaFileObject source) {
+        try {
+            return new LineIndex(source.getCharContent(true), 0);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Indexes the file at {@code path}, if its content still has the hash {@code hash}. Returns null otherwise, or if
+     * the file cannot be read.
+     */
+    static LineIndex read(Path path, long hash) {
+        try {
+            byte[] bytes = Files.readAllBytes(path);
+            CRC32C crc = new CRC32C();
+            crc.update(bytes);
+            if (crc.getValue() != hash) {
+                return null;
+            }
+            return new LineIndex(new String(bytes, StandardCharsets.UTF_8), hash);
+        } catch (IOException e) {
+            Logger.warn("Could not read {}: {}", path, e);
+            return null;
+        }
+    }
+
+    public int lineCount() {
+        return lineStarts.length;
+    }
+
+    /**
+     * The position of {@code offset}. Offsets outside the text are clamped to it.
+     */
+    public Position position(long offset) {
+        int o = (int) Math.max(0, Math.min(offset, length));
+        int line = Arrays.binarySearch(lineStarts, o);
+        if (line < 0) {
+            line = -line - 2;
+        }
+        return new Position(line, o - lineStarts[line]);
+    }
+
+    /**
+     * The range of the source code {@code diagnostic} refers to, from its start to its end position. A diagnostic
+     * without an extent gets an empty range at its position.
+     */
+    public Range range(Diagnostic<?> diagnostic) {
+        long start = diagnostic.getStartPosition();
+        if (start == Diagnostic.NOPOS) {
+            start = diagnostic.getPosition();
+        }
+        if (start == Diagnostic.NOPOS) {
+            return new Range(new Position(0, 0), new Position(0, 0));
+        }
+        long end = diagnostic.getEndPosition();
+        Position from = position(start);
+        return new Range(from, end > start ? position(end) : from);
+    }
+}
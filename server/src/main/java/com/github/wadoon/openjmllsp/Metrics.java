@@ -0,0 +1,282 @@
+package com.github.wadoon.openjmllsp;
+
+import com.google.gson.JsonObject;
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import org.tinylog.Logger;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Counters, latency histograms and gauges of the language server.
+ * <p>
+ * The metrics are returned by the {@code openjml/metrics} request and can be written periodically to a file in the
+ * Prometheus text format. Every timed phase is also emitted as a JFR event ({@code openjml.Phase}), which costs
+ * nothing unless a flight recording is running.
+ */
+class Metrics {
+    /**
+     * Upper bounds of the histogram buckets in milliseconds.
+     */
+    private static final long[] BUCKETS = {1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000, 10000, 30000, 60000};
+
+    /**
+     * Number of uris reported by {@link #toJson()}, the slowest ones.
+     */
+    private static final int REPORTED_URIS = 100;
+
+    private final Map<String, LongAdder> counters = new ConcurrentHashMap<>();
+    private final Map<String, Histogram> histograms = new ConcurrentHashMap<>();
+    private final Map<String, LongSupplier> gauges = new ConcurrentHashMap<>();
+    private final Map<String, UriTime> uris = new ConcurrentHashMap<>();
+
+    private final ScheduledExecutorService exporter = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "openjml-metrics");
+        t.setDaemon(true);
+        return t;
+    });
+    private ScheduledFuture<?> export;
+
+    public void count(String name) {
+        count(name, 1);
+    }
+
+    public void count(String name, long n) {
+        counters.computeIfAbsent(name, k -> new LongAdder()).add(n);
+    }
+
+    /**
+     * Counts a hit or a miss of the cache {@code cache}.
+     */
+    public void cache(String cache, boolean hit) {
+        count("cache." + cache + (hit ? ".hit" : ".miss"));
+    }
+
+    public void gauge(String name, LongSupplier value) {
+        gauges.put(name, value);
+    }
+
+    /**
+     * Starts timing the phase {@code name}. {@link Timer#stop()} records the elapsed time.
+     */
+    public Timer time(String name) {
+        return new Timer(name);
+    }
+
+    /**
+     * Records the time elapsed since {@code startNanos} for the phase {@code name}.
+     */
+    public void record(String name, long startNanos) {
+        histograms.computeIfAbsent(name, k -> new Histogram()).add(System.nanoTime() - startNanos);
+    }
+
+    /**
+     * Records how long OpenJML spent on {@code uri} in one check.
+     */
+    public void uriTime(String uri, long nanos) {
+        uris.computeIfAbsent(uri, k -> new UriTime()).add(nanos);
+    }
+
+    /**
+     * Writes the metrics to {@code file} every {@code periodSeconds}, or stops writing if {@code file} is null.
+     */
+    public synchronized void exportTo(Path file, long periodSeconds) {
+        if (export != null) {
+            export.cancel(false);
+            export = null;
+        }
+        if (file != null) {
+            export = exporter.scheduleAtFixedRate(() -> write(file), periodSeconds, periodSeconds, TimeUnit.SECONDS);
+        }
+    }
+
+    public void close() {
+        exporter.shutdownNow();
+    }
+
+    private void write(Path file) {
+        try {
+            Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+            Files.write(tmp, toPrometheus().getBytes(StandardCharsets.UTF_8));
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException | RuntimeException e) {
+            Logger.warn("Could not write metrics to {}: {}", file, e);
+        }
+    }
+
+    public JsonObject toJson() {
+        JsonObject json = new JsonObject();
+        JsonObject c = new JsonObject();
+        new TreeMap<>(counters).forEach((name, value) -> c.addProperty(name, value.sum()));
+        json.add("counters", c);
+
+        JsonObject g = new JsonObject();
+        new TreeMap<>(gauges).forEach((name, value) -> g.addProperty(name, value.getAsLong()));
+        json.add("gauges", g);
+
+        JsonObject caches = new JsonObject();
+        for (String name : counters.keySet()) {
+            if (name.startsWith("cache.") && name.endsWith(".hit")) {
+                String cache = name.substring("cache.".length(), name.length() - ".hit".length());
+                long hits = counters.get(name).sum();
+                LongAdder m = counters.get("cache." + cache + ".miss");
+                long misses = m == null ? 0 : m.sum();
+                JsonObject ratio = new JsonObject();
+                ratio.addProperty("hits", hits);
+                ratio.addProperty("misses", misses);
+                ratio.addProperty("hitRatio", (double) hits / (hits + misses));
+                caches.add(cache, ratio);
+            }
+        }
+        json.add("caches", caches);
+
+        JsonObject h = new JsonObject();
+        new TreeMap<>(histograms).forEach((name, histogram) -> h.add(name, histogram.toJson()));
+        json.add("phases", h);
+
+        JsonObject u = new JsonObject();
+        uris.entrySet().stream()
+                .sorted(Comparator.comparingLong((Map.Entry<String, UriTime> it) -> it.getValue().last).reversed())
+                .limit(REPORTED_URIS)
+                .forEach(it -> u.add(it.getKey(), it.getValue().toJson()));
+        json.add("slowestUris", u);
+        return json;
+    }
+
+    public String toPrometheus() {
+        StringBuilder sb = new StringBuilder(4096);
+        new TreeMap<>(counters).forEach((name, value) -> {
+            String n = "openjml_" + sanitize(name) + "_total";
+            sb.append("# TYPE ").append(n).append(" counter\n").append(n).append(' ').append(value.sum()).append('\n');
+        });
+        new TreeMap<>(gauges).forEach((name, value) -> {
+            String n = "openjml_" + sanitize(name);
+            sb.append("# TYPE ").append(n).append(" gauge\n").append(n).append(' ').append(value.getAsLong())
+                    .append('\n');
+        });
+        new TreeMap<>(histograms).forEach((name, histogram) -> histogram.toPrometheus(sb,
+                "openjml_" + sanitize(name) + "_seconds"));
+        return sb.toString();
+    }
+
+    private static String sanitize(String name) {
+        return name.replaceAll("[^a-zA-Z0-9_]", "_");
+    }
+
+    /**
+     * Times a phase; see {@link #time(String)}.
+     */
+    class Timer {
+        private final String name;
+        private final long start = System.nanoTime();
+        private final PhaseEvent event = new PhaseEvent();
+
+        private Timer(String name) {
+            this.name = name;
+            event.begin();
+        }
+
+        /**
+         * Records the time elapsed since the start, best in a {@code finally} block.
+         */
+        public void stop() {
+            record(name, start);
+            event.end();
+            if (event.shouldCommit()) {
+                event.phase = name;
+                event.commit();
+            }
+        }
+    }
+
+    private static class Histogram {
+        private final LongAdder[] buckets = new LongAdder[BUCKETS.length + 1];
+        private final LongAdder count = new LongAdder();
+        private final LongAdder sumNanos = new LongAdder();
+
+        Histogram() {
+            for (int i = 0; i < buckets.length; i++) {
+                buckets[i] = new LongAdder();
+            }
+        }
+
+        void add(long nanos) {
+            long millis = TimeUnit.NANOSECONDS.toMillis(nanos);
+            int i = 0;
+            while (i < BUCKETS.length && millis > BUCKETS[i]) i++;
+            buckets[i].increment();
+            count.increment();
+            sumNanos.add(nanos);
+        }
+
+        JsonObject toJson() {
+            JsonObject json = new JsonObject();
+            long n = count.sum();
+            json.addProperty("count", n);
+            json.addProperty("totalMillis", sumNanos.sum() / 1e6);
+            json.addProperty("meanMillis", n == 0 ? 0 : sumNanos.sum() / 1e6 / n);
+            JsonObject b = new JsonObject();
+            for (int i = 0; i < buckets.length; i++) {
+                b.addProperty(i < BUCKETS.length ? "le" + BUCKETS[i] : "inf", buckets[i].sum());
+            }
+            json.add("bucketsMillis", b);
+            return json;
+        }
+
+        void toPrometheus(StringBuilder sb, String name) {
+            sb.append("# TYPE ").append(name).append(" histogram\n");
+            long cumulative = 0;
+            for (int i = 0; i < buckets.length; i++) {
+                cumulative += buckets[i].sum();
+                String le = i < BUCKETS.length ? Double.toString(BUCKETS[i] / 1000.0) : "+Inf";
+                sb.append(name).append("_bucket{le=\"").append(le).append("\"} ").append(cumulative).append('\n');
+            }
+            sb.append(name).append("_sum ").append(sumNanos.sum() / 1e9).append('\n');
+            sb.append(name).append("_count ").append(count.sum()).append('\n');
+        }
+    }
+
+    private static class UriTime {
+        private volatile long last;
+        private final LongAdder total = new LongAdder();
+        private final LongAdder checks = new LongAdder();
+
+        void add(long nanos) {
+            last = nanos;
+            total.add(nanos);
+            checks.increment();
+        }
+
+        JsonObject toJson() {
+            JsonObject json = new JsonObject();
+            json.addProperty("lastMillis", last / 1e6);
+            json.addProperty("totalMillis", total.sum() / 1e6);
+            json.addProperty("checks", checks.sum());
+            return json;
+        }
+    }
+
+    @Name("openjml.Phase")
+    @Label("OpenJML LSP Phase")
+    @Category("OpenJML")
+    @Description("A timed phase of the language server")
+    static class PhaseEvent extends Event {
+        @Label("Phase")
+        String phase;
+    }
+}
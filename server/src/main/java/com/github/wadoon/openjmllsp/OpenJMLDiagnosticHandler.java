@@ -1,131 +1,614 @@
 package com.github.wadoon.openjmllsp;
 
+import com.sun.source.util.TaskEvent;
+import com.sun.source.util.TaskListener;
+import com.sun.tools.javac.api.MultiTaskListener;
 import org.eclipse.lsp4j.*;
+import org.eclipse.lsp4j.jsonrpc.messages.Either;
 import org.jmlspecs.annotation.NonNull;
-import org.jmlspecs.openjml.Factory;
 import org.jmlspecs.openjml.IAPI;
+import org.jmlspecs.openjml.JmlTree.JmlCompilationUnit;
 import org.tinylog.Logger;
 
 import javax.tools.Diagnostic;
-import javax.tools.DiagnosticListener;
 import javax.tools.JavaFileObject;
 import java.io.File;
-import java.io.IOException;
-import java.io.PrintWriter;
-import java.io.StringWriter;
 import java.net.URI;
 import java.net.URISyntaxException;
-import java.nio.ByteBuffer;
-import java.nio.channels.SeekableByteChannel;
-import java.nio.file.Files;
+import java.nio.file.FileSystemNotFoundException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.*;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.ForkJoinPool;
-import java.util.function.Supplier;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
 import java.util.stream.Collectors;
-import java.util.stream.Stream;
-import java.util.zip.CRC32;
 
 /**
  * @author Alexander Weigl
  * @version 1 (15.07.22)
  */
 public class OpenJMLDiagnosticHandler {
+    /**
+     * Normalized uris by file uri; see {@link #uriOf(URI)}.
+     */
+    private static final Map<URI, String> URIS = new ConcurrentHashMap<>();
+    private static final int MAX_URIS = 1 << 17;
+    private static final int MAX_LINE_INDEXES = 256;
+
     private final OpenJMLLanguageServer server;
 
-    private final Map<String, List<Diagnostic<? extends JavaFileObject>>> cache
-            = Collections.synchronizedMap(new HashMap<>());
-    private final Map<String, Long> cacheHash = Collections.synchronizedMap(new HashMap<>());
+    /**
+     * State shared with the other sessions on the same workspace folders, attached on first use.
+     */
+    private volatile SharedWorkspace workspace;
+
+    /**
+     * Whether a document is open in this session, see {@link SharedWorkspace#open}.
+     */
+    private final Predicate<String> isOpen;
+
+    /**
+     * Uris changed since their last check. These are the roots of the next incremental run.
+     */
+    private final Set<String> changed = ConcurrentHashMap.newKeySet();
+
+    private final DiagnosticScheduler scheduler;
+
+    private final Metrics metrics;
+
+    private final SyntaxChecker syntax = new SyntaxChecker();
+
+    final Verifier verifier;
+
+    /**
+     * Checks requested in the background after answering with syntax errors only, by uri.
+     */
+    private final Map<String, CompletableFuture<CheckResult>> backgroundChecks = new ConcurrentHashMap<>();
 
-    final List<String> knownOpenFiles = Collections.synchronizedList(new ArrayList<>(512));
+    /**
+     * Line indexes of the latest versions of the files whose diagnostics were translated, least recently used first.
+     */
+    private final Map<String, LineIndex> lineIndexes = Collections.synchronizedMap(
+            new LinkedHashMap<String, LineIndex>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, LineIndex> eldest) {
+                    return size() > MAX_LINE_INDEXES;
+                }
+            });
+
+    /**
+     * Runs the shards of a parallel check, each in its own OpenJML context.
+     */
+    private final ThreadPoolExecutor shardExecutor = new ThreadPoolExecutor(1, 1, 1, TimeUnit.MINUTES,
+            new LinkedBlockingQueue<>(), r -> {
+        Thread t = new Thread(r, "openjml-shard");
+        t.setDaemon(true);
+        return t;
+    });
 
     public OpenJMLDiagnosticHandler(OpenJMLLanguageServer openJMLLanguageServer) {
         this.server = openJMLLanguageServer;
+        this.isOpen = uri -> server.textDocumentService.documents.isOpen(uri);
+        this.scheduler = new DiagnosticScheduler(this::check, server.settings.debounceMillis);
+        this.metrics = server.metrics;
+        this.verifier = new Verifier(server, this);
+        metrics.gauge("scheduler.waiting", scheduler::waiting);
+        metrics.gauge("shards.queued", () -> shardExecutor.getQueue().size());
+        metrics.gauge("contexts.idle", () -> {
+            SharedWorkspace w = workspace;
+            return w == null ? 0 : w.contexts.idleCount();
+        });
+        metrics.gauge("workers.idle", () -> {
+            SharedWorkspace w = workspace;
+            return w == null ? 0 : w.workers.idleCount();
+        });
+        metrics.gauge("checks.waiting", SharedWorkspace::waitingChecks);
+        metrics.gauge("diagnostics.entries", () -> {
+            SharedWorkspace w = workspace;
+            return w == null ? 0 : w.diagnostics.snapshot().size();
+        });
+        metrics.gauge("diagnostics.bytes", () -> {
+            SharedWorkspace w = workspace;
+            return w == null ? 0 : w.diagnostics.bytes();
+        });
+        metrics.gauge("diagnostics.evicted", () -> {
+            SharedWorkspace w = workspace;
+            return w == null ? 0 : w.diagnostics.evictions();
+        });
+    }
+
+    /**
+     * Applies the current {@link OpenJmlSettings} and starts warming up OpenJML contexts.
+     */
+    public void settingsChanged() {
+        OpenJmlSettings settings = server.settings;
+        // queued before the warm-ups started below, once for all sessions on the workspace
+        if (workspace().specsPreloaded.compareAndSet(false, true)) {
+            Path specs = settings.cacheDirectory().resolve("specs");
+            workspace().contexts.preload(() -> SpecIndex.load(specs).preload(SpecIndex.imports(getJavaFiles())));
+        }
+        // the server keeps no contexts warm while the workers do the checks
+        workspace().contexts.setMaxSize(settings.workerProcesses > 0 ? 0 : settings.contextPoolSize);
+        workspace().workers.configure(settings.workerProcesses, settings.workerJvmArgs, settings.workerMaxChecks,
+                settings.workerMaxHeapMb);
+        scheduler.setDebounceMillis(server.settings.debounceMillis);
+        cache().setBounds(settings.diagnosticEntries, settings.diagnosticMemoryMb * 1024L * 1024L);
+        int parallelism = Math.max(1, server.settings.parallelism);
+        if (parallelism > shardExecutor.getMaximumPoolSize()) {
+            shardExecutor.setMaximumPoolSize(parallelism);
+            shardExecutor.setCorePoolSize(parallelism);
+        } else {
+            shardExecutor.setCorePoolSize(parallelism);
+            shardExecutor.setMaximumPoolSize(parallelism);
+        }
+        verifier.setWorkers(server.settings.verificationWorkers);
+        String metricsFile = server.settings.metricsFile;
+        metrics.exportTo(metricsFile.isEmpty() ? null : Paths.get(metricsFile), 10);
+    }
+
+    /**
+     * Starts watching the workspace folders for changes made outside the editor.
+     */
+    public void watchWorkspace() {
+        workspace().watch(folders(), server.settings.exclude);
+    }
+
+    /**
+     * The state shared with other sessions on the same workspace folders.
+     */
+    private synchronized SharedWorkspace workspace() {
+        if (workspace == null) {
+            workspace = SharedWorkspace.open(workspaceKey(), isOpen);
+        }
+        return workspace;
+    }
+
+    /**
+     * Diagnostics of the workspace, shared with the other sessions.
+     */
+    private DiagnosticStore cache() {
+        return workspace().diagnostics;
+    }
+
+    /**
+     * Dependencies between the units of the workspace, shared with the other sessions.
+     */
+    private DependencyGraph dependencies() {
+        return workspace().dependencies;
+    }
+
+    OpenJmlContextPool contexts() {
+        return workspace().contexts;
+    }
+
+    /**
+     * Verification results of the workspace, by {@link Verifier.Target#cacheKey()}.
+     */
+    Map<String, Verifier.Result> verifications() {
+        return workspace().verifications;
+    }
+
+    /**
+     * The worker processes of the workspace, see {@link WorkerPool}.
+     */
+    WorkerPool workers() {
+        return workspace().workers;
+    }
+
+    /**
+     * Content hashes of the files on disk, kept current by file change events.
+     */
+    FileStateIndex fileStates() {
+        return workspace().fileStates;
+    }
+
+    /**
+     * Ends this session and releases the state shared with other sessions.
+     */
+    public synchronized void close() {
+        scheduler.shutdown();
+        shardExecutor.shutdown();
+        verifier.close();
+        if (workspace != null) {
+            workspace.release(isOpen);
+            workspace = null;
+        }
     }
 
     public void invalidateAllResults() {
-        cacheHash.clear();
-        cache.clear();
+        fileStates().invalidateAll();
+        workspace().resetSources();
+        cache().clear();
+        dependencies().clear();
+        changed.clear();
+        scheduler.edited();
     }
 
-    public void remove(String uri) {
-        invalidate(uri);
+    /**
+     * Files or directories were created.
+     */
+    public void created(Collection<String> uris) {
+        for (String uri : uris) {
+            sources().created(uri(uri));
+        }
+        invalidate(uris);
+    }
+
+    /**
+     * A file or directory was deleted.
+     */
+    public void remove(Collection<String> uris) {
+        for (String uri : uris) {
+            sources().deleted(uri(uri));
+        }
+        invalidate(uris);
+        changed.removeAll(uris);
+        Set<String> affected = dependencies().affectedBy(uris);
+        uris.forEach(dependencies()::remove);
+        affected.removeAll(uris);
+        changed.addAll(affected);
     }
 
+    /**
+     * Drops the results of {@code uri} and of all units depending on it.
+     */
     public void invalidate(String uri) {
-        cacheHash.remove(uri);
-        cache.remove(uri);
-    }
-
-    public CompletableFuture<WorkspaceDiagnosticReport> completeDiagnostics() {
-        return triggerOpenJmlAsync()
-                .thenApply(this::updateCache)
-                .thenApply(this::constructWorkspaceDiagnosticReport);
-    }
-
-    private List<Diagnostic<? extends JavaFileObject>> updateCache(List<Diagnostic<? extends JavaFileObject>> diagnostics) {
-        cache.clear();
-        for (Diagnostic<? extends JavaFileObject> diagnostic : diagnostics) {
-            String uri = diagnostic.getSource().toUri().toString().replace("file:/", "file:///");
-            cache.computeIfAbsent(uri, k -> new LinkedList<>()).add(diagnostic);
-            cacheHash.put(uri, getHash(uri));
-        }
-        return diagnostics;
-    }
-
-    private long getHash(String uri) {
-        try (SeekableByteChannel in =
-                     Files.newByteChannel(Paths.get(uri.replaceFirst("file://", "")))) {
-            CRC32 crc = new CRC32();
-            crc.reset();
-            ByteBuffer buffer = ByteBuffer.allocate(4 * 1024);
-            int len = 0;
-            while ((len = in.read(buffer)) > 0) {
-                crc.update(buffer);
-            }
-            return crc.getValue();
-        } catch (IOException e) {
-            Logger.error(e);
-            return -1;
-        }
-    }
-
-    private WorkspaceDiagnosticReport constructWorkspaceDiagnosticReport(List<Diagnostic<? extends JavaFileObject>> diagnostics) {
-        Map<String, List<Diagnostic<? extends JavaFileObject>>> diagnosticMap = new HashMap<>();
-        for (Diagnostic<? extends JavaFileObject> diagnostic : diagnostics) {
-            String uri = diagnostic.getSource().toUri().toString().replace("file:/", "file:///");
-            Logger.info("URI from javacc: {}", uri);
-            diagnosticMap.computeIfAbsent(uri, k -> new LinkedList<>()).add(diagnostic);
-        }
-
-        List<WorkspaceDocumentDiagnosticReport> files = diagnosticMap.entrySet().stream().map(it -> {
-                    List<org.eclipse.lsp4j.Diagnostic> items =
-                            it.getValue().stream().map(this::translate).collect(Collectors.toList());
-                    Integer version = server.textDocumentService.versionForUri.get(it.getKey());
-                    return new WorkspaceDocumentDiagnosticReport(
-                            new WorkspaceFullDocumentDiagnosticReport(items, it.getKey(), version));
-                })
-                .collect(Collectors.toList());
-        Logger.info("Report {} files with {} issues", files.size(),
-                files.stream().mapToInt(it -> it.getWorkspaceFullDocumentDiagnosticReport().getItems().size())
-                        .sum());
-        Logger.info(files);
+        invalidate(Collections.singleton(uri));
+    }
+
+    /**
+     * Drops the results of {@code uris} and of all units depending on them. The store is updated once for all of
+     * them, as every update copies it.
+     */
+    public void invalidate(Collection<String> uris) {
+        if (uris.isEmpty()) {
+            return;
+        }
+        for (String uri : uris) {
+            fileStates().invalidate(uri);
+            verifier.changed(uri);
+        }
+        cache().removeAll(dependencies().affectedBy(uris));
+        changed.addAll(uris);
+        scheduler.edited();
+    }
+
+    /**
+     * @param previousResultIds  the result ids of the reports the client has, as sent with the request
+     * @param partialResultToken if given, the reports of the files are streamed as partial results while OpenJML
+     *                           is running; once a report was streamed, the others follow as partial results, too,
+     *                           and the final report is empty
+     */
+    public CompletableFuture<WorkspaceDiagnosticReport> completeDiagnostics(List<PreviousResultId> previousResultIds,
+                                                                          Either<String, Integer> partialResultToken) {
+        long start = System.nanoTime();
+        Map<String, String> previous = new HashMap<>();
+        if (previousResultIds != null) {
+            for (PreviousResultId id : previousResultIds) {
+                previous.put(id.getUri(), id.getValue());
+            }
+        }
+        boolean hit = server.settings.incremental && !dependencies().isEmpty() && changed.isEmpty();
+        metrics.cache("workspace", hit);
+        if (hit) {
+            WorkspaceDiagnosticReport report = constructWorkspaceDiagnosticReport(previous, null);
+            metrics.record("completeDiagnostics", start);
+            return CompletableFuture.completedFuture(report);
+        }
+        WorkspaceStream stream = partialResultToken != null && server.client != null
+                ? new WorkspaceStream(partialResultToken) : null;
+        CompletableFuture<CheckResult> check = scheduler.request(Collections.emptySet(), stream);
+        return cancelling(check.thenApply(ignored -> {
+            WorkspaceDiagnosticReport report = constructWorkspaceDiagnosticReport(previous, stream);
+            if (stream != null) {
+                report.getItems().addAll(stream.retracted());
+                report = stream.complete(report);
+            }
+            metrics.record("completeDiagnostics", start);
+            return report;
+        }), check);
+    }
+
+    /**
+     * Checks the whole workspace, as the batch mode does, streaming the diagnostics to {@code observer}.
+     */
+    CompletableFuture<CheckResult> requestWorkspaceCheck(DiagnosticScheduler.Observer observer) {
+        return scheduler.request(Collections.emptySet(), observer);
+    }
+
+    /**
+     * Streams the reports of the files to the client as partial results of a workspace diagnostic request, as soon
+     * as OpenJML is done with a file.
+     */
+    private class WorkspaceStream implements DiagnosticScheduler.Observer {
+        private final Either<String, Integer> token;
+        private final Map<String, List<Diagnostic<? extends JavaFileObject>>> collected = new HashMap<>();
+        private final Map<String, List<Diagnostic<? extends JavaFileObject>>> sent = new HashMap<>();
+        private boolean first = true;
+
+        WorkspaceStream(Either<String, Integer> token) {
+            this.token = token;
+        }
+
+        @Override
+        public synchronized void started(Set<String> uris) {
+            if (uris == null) {
+                collected.clear();
+            } else {
+                collected.keySet().removeAll(uris);
+            }
+        }
+
+        @Override
+        public synchronized void report(String uri, Diagnostic<? extends JavaFileObject> diagnostic) {
+            collected.computeIfAbsent(uri, k -> new ArrayList<>()).add(diagnostic);
+        }
+
+        @Override
+        public void flush(String uri) {
+            List<Diagnostic<? extends JavaFileObject>> diagnostics;
+            boolean isFirst;
+            synchronized (this) {
+                diagnostics = new ArrayList<>(collected.getOrDefault(uri, Collections.emptyList()));
+                sent.put(uri, diagnostics);
+                isFirst = first;
+                first = false;
+            }
+            List<org.eclipse.lsp4j.Diagnostic> items = diagnostics.stream()
+                    .map(OpenJMLDiagnosticHandler.this::translate).collect(Collectors.toList());
+            WorkspaceFullDocumentDiagnosticReport report = new WorkspaceFullDocumentDiagnosticReport(items, uri,
+                    server.textDocumentService.versionForUri.get(uri));
+            // the same id as the stored entry will have, so that the next pull can answer unchanged
+            report.setResultId(DiagnosticStore.resultId(getHash(uri), items));
+            send(Collections.singletonList(new WorkspaceDocumentDiagnosticReport(report)), isFirst);
+        }
+
+        private void send(List<WorkspaceDocumentDiagnosticReport> reports, boolean isFirst) {
+            // the first value of a partial result stream has to be the report itself
+            Object value = isFirst ? new WorkspaceDiagnosticReport(reports)
+                    : new WorkspaceDiagnosticReportPartialResult(reports);
+            server.client.notifyProgress(new ProgressParams(token, Either.forRight(value)));
+        }
+
+        /**
+         * The final response to the request, given the reports not streamed yet. Once partial results were sent, the
+         * response has to be empty, so the reports are sent as a last partial result instead.
+         */
+        synchronized WorkspaceDiagnosticReport complete(WorkspaceDiagnosticReport rest) {
+            if (first) {
+                return rest;
+            }
+            if (!rest.getItems().isEmpty()) {
+                send(rest.getItems(), false);
+            }
+            return new WorkspaceDiagnosticReport(new ArrayList<>());
+        }
+
+        /**
+         * Empty reports for the files that were streamed with diagnostics, but are clean now.
+         */
+        synchronized List<WorkspaceDocumentDiagnosticReport> retracted() {
+            List<WorkspaceDocumentDiagnosticReport> reports = new ArrayList<>();
+            Map<String, DiagnosticStore.Entry> current = cache().snapshot();
+            sent.forEach((uri, diagnostics) -> {
+                DiagnosticStore.Entry entry = current.get(uri);
+                if (!diagnostics.isEmpty() && (entry == null || entry.diagnostics.isEmpty())) {
+                    reports.add(new WorkspaceDocumentDiagnosticReport(new WorkspaceFullDocumentDiagnosticReport(
+                            new ArrayList<>(), uri, server.textDocumentService.versionForUri.get(uri))));
+                }
+            });
+            return reports;
+        }
+
+        /**
+         * Whether exactly the given diagnostics have been sent for {@code uri}.
+         */
+        synchronized boolean isStreamed(String uri, List<Diagnostic<? extends JavaFileObject>> diagnostics) {
+            List<Diagnostic<? extends JavaFileObject>> s = sent.get(uri);
+            if (s == null || s.size() != diagnostics.size()) {
+                return false;
+            }
+            for (int i = 0; i < s.size(); i++) {
+                if (!s.get(i).equals(diagnostics.get(i))) return false;
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Propagates the cancellation of {@code result}, which lsp4j performs on {@code $/cancelRequest}, to the
+     * scheduled check it was derived from.
+     */
+    private static <T> CompletableFuture<T> cancelling(CompletableFuture<T> result, CompletableFuture<?> source) {
+        result.whenComplete((r, e) -> {
+            if (result.isCancelled()) {
+                source.cancel(true);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Stores the results of a check run. Every checked uri gets an entry, an empty one if it is clean.
+     */
+    void updateCache(CheckResult result) {
+        Metrics.Timer timer = metrics.time("check.store");
+        try {
+            store(result);
+        } finally {
+            timer.stop();
+        }
+    }
+
+    private void store(CheckResult result) {
+        Map<String, List<Diagnostic<? extends JavaFileObject>>> fresh = new HashMap<>();
+        for (String uri : result.checked) {
+            fresh.put(uri, new ArrayList<>());
+        }
+        // diagnostics of a file come in a row and share its file object
+        JavaFileObject lastSource = null;
+        List<Diagnostic<? extends JavaFileObject>> lastList = null;
+        for (Diagnostic<? extends JavaFileObject> diagnostic : result.diagnostics) {
+            JavaFileObject source = diagnostic.getSource();
+            if (source == null) continue;
+            if (source != lastSource) {
+                lastSource = source;
+                lastList = fresh.computeIfAbsent(uriOf(source), k -> new ArrayList<>());
+            }
+            lastList.add(diagnostic);
+        }
+        List<DiagnosticStore.Entry> entries = new ArrayList<>(fresh.size());
+        for (Map.Entry<String, List<Diagnostic<? extends JavaFileObject>>> entry : fresh.entrySet()) {
+            Long hash = result.hashes.get(entry.getKey());
+            entries.add(new DiagnosticStore.Entry(entry.getKey(), hash != null ? hash : getHash(entry.getKey()),
+                    entry.getValue()));
+        }
+        cache().publish(entries);
+    }
+
+    /**
+     * Normalized uri of a file object, in the form the client uses ({@code file:///...}).
+     */
+    static String uriOf(JavaFileObject source) {
+        return uriOf(source.toUri());
+    }
+
+    static String uriOf(Path file) {
+        return uriOf(file.toUri());
+    }
+
+    /**
+     * Normalizes {@code uri} once; later calls return the same string, so the maps keyed by uri share their keys.
+     */
+    private static String uriOf(URI uri) {
+        String normalized = URIS.get(uri);
+        if (normalized == null) {
+            if (URIS.size() >= MAX_URIS) {
+                URIS.clear();
+            }
+            normalized = normalize(uri);
+            String existing = URIS.putIfAbsent(uri, normalized);
+            if (existing != null) {
+                normalized = existing;
+            }
+        }
+        return normalized;
+    }
+
+    private static String normalize(URI uri) {
+        if ("file".equals(uri.getScheme())) {
+            try {
+                return Paths.get(uri).toUri().toString();
+            } catch (IllegalArgumentException | FileSystemNotFoundException e) {
+                // not a local file
+            }
+        }
+        return uri.toString();
+    }
+
+    /**
+     * Hash of the current content of {@code uri}: of the editor buffer if it is open, else from the
+     * {@link #fileStates()}.
+     */
+    long getHash(String uri) {
+        Long hash = server.textDocumentService.documents.getHash(uri);
+        return hash != null ? hash : fileStates().hash(uri);
+    }
+
+    /**
+     * The report of the stored results. Files whose report at the client is still current are reported as
+     * unchanged, clean files only if the client has a report for them.
+     *
+     * @param previousResultIds the result id of the report the client has, by uri
+     * @param streamed          the stream of this request, whose files are left out if they were streamed already
+     */
+    WorkspaceDiagnosticReport constructWorkspaceDiagnosticReport(Map<String, String> previousResultIds,
+                                                                 WorkspaceStream streamed) {
+        Collection<DiagnosticStore.Entry> entries = cache().snapshot().values();
+        List<WorkspaceDocumentDiagnosticReport> files = new ArrayList<>(entries.size());
+        int unchanged = 0;
+        int issues = 0;
+        for (DiagnosticStore.Entry entry : entries) {
+            if (streamed != null && streamed.isStreamed(entry.uri, entry.diagnostics)) {
+                continue;
+            }
+            String previous = previousResultIds.get(entry.uri);
+            if (previous == null && entry.diagnostics.isEmpty()) {
+                continue;
+            }
+            String resultId = entry.resultId(this::translateAll);
+            Integer version = server.textDocumentService.versionForUri.get(entry.uri);
+            if (resultId.equals(previous)) {
+                files.add(new WorkspaceDocumentDiagnosticReport(
+                        new WorkspaceUnchangedDocumentDiagnosticReport(resultId, entry.uri, version)));
+                unchanged++;
+            } else {
+                WorkspaceFullDocumentDiagnosticReport report = new WorkspaceFullDocumentDiagnosticReport(
+                        entry.translated(this::translateAll), entry.uri, version);
+                report.setResultId(resultId);
+                files.add(new WorkspaceDocumentDiagnosticReport(report));
+                issues += entry.diagnostics.size();
+            }
+        }
+        Logger.debug("Report {} files with {} issues, {} unchanged", files.size() - unchanged, issues, unchanged);
         return new WorkspaceDiagnosticReport(files);
     }
 
-    private org.eclipse.lsp4j.Diagnostic translate(Diagnostic<? extends JavaFileObject> diagnostic) {
+    /**
+     * Translates the diagnostics of a stored entry, with the positions resolved in the content they were computed for.
+     */
+    List<org.eclipse.lsp4j.Diagnostic> translateAll(DiagnosticStore.Entry entry) {
+        List<org.eclipse.lsp4j.Diagnostic> items = new ArrayList<>(entry.diagnostics.size());
+        if (!entry.diagnostics.isEmpty()) {
+            LineIndex index = lineIndex(entry.uri, entry.hash);
+            for (Diagnostic<? extends JavaFileObject> diagnostic : entry.diagnostics) {
+                items.add(translate(diagnostic, index));
+            }
+        }
+        return items;
+    }
+
+    /**
+     * Translates a diagnostic, with the positions resolved in the current content of its source.
+     */
+    org.eclipse.lsp4j.Diagnostic translate(Diagnostic<? extends JavaFileObject> diagnostic) {
+        JavaFileObject source = diagnostic.getSource();
+        LineIndex index = null;
+        if (source instanceof DocumentStore.BufferFileObject) {
+            DocumentStore.BufferFileObject buffer = (DocumentStore.BufferFileObject) source;
+            String uri = uriOf(buffer);
+            index = lineIndexes.get(uri);
+            if (index == null || index.hash != buffer.hash()) {
+                index = new LineIndex(buffer.getCharContent(true), buffer.hash());
+                lineIndexes.put(uri, index);
+            }
+        } else if (source != null) {
+            String uri = uriOf(source);
+            index = lineIndex(uri, getHash(uri));
+        }
+        return translate(diagnostic, index);
+    }
+
+    /**
+     * @param index the line index of the content the diagnostic was computed for, or null if it is not available
+     */
+    private org.eclipse.lsp4j.Diagnostic translate(Diagnostic<? extends JavaFileObject> diagnostic, LineIndex index) {
         Range range;
-        try {
-            Logger.info("!!! {}", diagnostic.getSource());
-            final int length = 10; // error in openjml: diagnostic.getEndPosition() - diagnostic.getStartPosition()
-            final int line = (int) diagnostic.getLineNumber() - 1;
-            final int column = (int) diagnostic.getColumnNumber() - 1;
-            range = new Range(new Position(line, column), new Position(line, length + column));
-        } catch (StackOverflowError e) {
-            range = null;
-            Logger.error("Stackoverflow caught", e);
+        if (index != null) {
+            range = index.range(diagnostic);
+        } else if (diagnostic instanceof StoredDiagnostic && diagnostic.getLineNumber() > 0) {
+            // detached from a source that cannot be read anymore
+            Position position = new Position((int) diagnostic.getLineNumber() - 1,
+                    (int) Math.max(0, diagnostic.getColumnNumber() - 1));
+            range = new Range(position, position);
+        } else {
+            range = new Range(new Position(0, 0), new Position(0, 0));
         }
 
         String message = diagnostic.getMessage(Locale.getDefault());
@@ -150,131 +633,589 @@ public class OpenJMLDiagnosticHandler {
     }
 
     public CompletableFuture<DocumentDiagnosticReport> fileDiagnostic(String uri) {
-        if (validEntry(uri)) {
-            Logger.info("URI {} is valid", uri);
-            final List<Diagnostic<? extends JavaFileObject>> diagnostics = cache.get(uri);
+        return fileDiagnostic(uri, null);
+    }
+
+    /**
+     * @param previousResultId the result id of the report the client has for {@code uri}, or null
+     */
+    public CompletableFuture<DocumentDiagnosticReport> fileDiagnostic(String uri, String previousResultId) {
+        long start = System.nanoTime();
+        DiagnosticStore.Entry entry = validEntry(uri);
+        metrics.cache("diagnostics", entry != null);
+        if (entry != null) {
             return CompletableFuture.supplyAsync(() -> {
-                List<org.eclipse.lsp4j.Diagnostic> items = diagnostics.stream().map(this::translate)
-                        .collect(Collectors.toList());
-                Logger.info("Issues: {} for {}", items.size(), uri);
-                return new DocumentDiagnosticReport(new RelatedFullDocumentDiagnosticReport(items));
+                DocumentDiagnosticReport report = documentReport(entry, previousResultId);
+                metrics.record("fileDiagnostic", start);
+                return report;
             });
         }
-        Logger.info("URI {} is not valid", uri);
-        return triggerOpenJmlAsync()
-                .thenApply(this::updateCache)
-                .thenApply(seq -> {
-                    List<org.eclipse.lsp4j.Diagnostic> items =
-                            seq.stream()
-                                    .filter(it -> uri.equals(it.getSource().toUri().toString()))
-                                    .map(this::translate)
-                                    .collect(Collectors.toList());
-                    Logger.info("Issues: {} for {}", items.size(), uri);
-                    return new DocumentDiagnosticReport(new RelatedFullDocumentDiagnosticReport(items));
-                });
-    }
-
-    private boolean validEntry(String uri) {
-        synchronized (cacheHash) {
-            synchronized (cache) {
-                if (cacheHash.containsKey(uri) && cache.containsKey(uri)) {
-                    long hash = getHash(uri);
-                    return cacheHash.get(uri) == hash;
+        // files outside the workspace get no stored entry, so the client would be asked to pull them forever
+        DocumentStore.BufferFileObject buffer = server.settings.tieredChecking && server.refreshSupport
+                && sources().contains(uri(uri)) ? server.textDocumentService.documents.getFileObject(uri) : null;
+        if (buffer != null) {
+            checkInBackground(uri);
+            return CompletableFuture.supplyAsync(() -> {
+                List<org.eclipse.lsp4j.Diagnostic> items;
+                Metrics.Timer timer = metrics.time("check.syntax");
+                try {
+                    items = syntax.check(uri, buffer.hash(), buffer.getCharContent(true).toString());
+                } finally {
+                    timer.stop();
                 }
+                metrics.record("fileDiagnostic", start);
+                return new DocumentDiagnosticReport(new RelatedFullDocumentDiagnosticReport(items));
+            });
+        }
+        CompletableFuture<CheckResult> check = scheduler.request(Collections.singleton(uri));
+        return cancelling(check.thenApply(result -> {
+            DocumentDiagnosticReport report;
+            DiagnosticStore.Entry checked = cache().get(uri);
+            if (checked != null) {
+                report = documentReport(checked, previousResultId);
+            } else {
+                // not a unit of the workspace, so not stored
+                List<org.eclipse.lsp4j.Diagnostic> items =
+                        result.diagnostics.stream()
+                                .filter(it -> it.getSource() != null && uri.equals(uriOf(it.getSource())))
+                                .map(this::translate)
+                                .collect(Collectors.toList());
+                report = new DocumentDiagnosticReport(new RelatedFullDocumentDiagnosticReport(items));
+            }
+            metrics.record("fileDiagnostic", start);
+            return report;
+        }), check);
+    }
+
+    /**
+     * Requests a check of {@code uri}, after which the client is asked to pull the diagnostics again if the check
+     * stored them.
+     */
+    private void checkInBackground(String uri) {
+        CompletableFuture<CheckResult> running = backgroundChecks.get(uri);
+        if (running != null && !running.isDone()) {
+            return;
+        }
+        CompletableFuture<CheckResult> check = scheduler.request(Collections.singleton(uri));
+        backgroundChecks.put(uri, check);
+        check.whenComplete((result, e) -> {
+            backgroundChecks.remove(uri, check);
+            if (e == null && server.client != null && result.checked.contains(uri) && cache().get(uri) != null) {
+                server.client.refreshDiagnostics();
+            }
+        });
+    }
+
+    private DocumentDiagnosticReport documentReport(DiagnosticStore.Entry entry, String previousResultId) {
+        String resultId = entry.resultId(this::translateAll);
+        if (resultId.equals(previousResultId)) {
+            return new DocumentDiagnosticReport(new RelatedUnchangedDocumentDiagnosticReport(resultId));
+        }
+        RelatedFullDocumentDiagnosticReport report =
+                new RelatedFullDocumentDiagnosticReport(entry.translated(this::translateAll));
+        report.setResultId(resultId);
+        return new DocumentDiagnosticReport(report);
+    }
+
+    /**
+     * The line index of {@code uri} for the content with hash {@code hash}, built from the editor buffer or the file
+     * on disk. Returns null if neither has that content anymore.
+     */
+    private LineIndex lineIndex(String uri, long hash) {
+        LineIndex index = lineIndexes.get(uri);
+        metrics.cache("lineIndex", index != null && index.hash == hash);
+        if (index != null && index.hash == hash) {
+            return index;
+        }
+        String text = server.textDocumentService.documents.getText(uri, hash);
+        index = text != null ? new LineIndex(text, hash) : LineIndex.read(uri(uri), hash);
+        if (index != null) {
+            lineIndexes.put(uri, index);
+        }
+        return index;
+    }
+
+    /**
+     * The stored entry of {@code uri} if it was computed for the current content, else null.
+     */
+    private DiagnosticStore.Entry validEntry(String uri) {
+        DiagnosticStore.Entry entry = cache().get(uri);
+        return entry != null && entry.hash == getHash(uri) ? entry : null;
+    }
+
+    /**
+     * Checks the given uris together with everything that changed since the last run, and stores the results. In
+     * incremental mode only the changed units and their dependents are checked; the whole workspace is checked if
+     * there is no dependency information for a changed unit yet. Runs on the thread of the {@link #scheduler}.
+     */
+    private CheckResult check(Set<String> uris, DiagnosticScheduler.Run run) {
+        metrics.record("check.queued", run.requested);
+        Set<String> roots = new HashSet<>(uris);
+        roots.addAll(changed);
+        changed.removeAll(roots);
+        Metrics.Timer timer = metrics.time("check");
+        try {
+            CheckResult result;
+            if (server.settings.incremental && !dependencies().isEmpty()
+                    && roots.stream().allMatch(dependencies()::contains)) {
+                metrics.count("check.incremental");
+                result = checkIncremental(roots, run);
+            } else {
+                metrics.count("check.workspace");
+                result = checkWorkspace(run);
+            }
+            run.checkCancelled();
+            updateCache(result);
+            persist(result);
+            return result;
+        } catch (CancellationException e) {
+            metrics.count("check.cancelled");
+            changed.addAll(roots);
+            throw e;
+        } finally {
+            timer.stop();
+        }
+    }
+
+    private CheckResult checkWorkspace(DiagnosticScheduler.Run run) {
+        File[] files = getJavaFiles();
+        Set<String> uris = Arrays.stream(files).map(it -> uriOf(it.toPath())).collect(Collectors.toSet());
+        PersistentDiagnosticCache store = persistentCache();
+        if (store != null) {
+            if (dependencies().isEmpty()) {
+                store.getGraph(workspaceKey()).forEach(dependencies()::update);
+            }
+            CheckResult result = restore(uris);
+            Set<String> misses = new HashSet<>(uris);
+            misses.removeAll(result.checked);
+            Logger.info("Restored {} of {} units from the persistent cache", result.checked.size(), uris.size());
+            if (misses.isEmpty()) {
+                return result;
+            }
+            if (server.settings.incremental && misses.stream().allMatch(dependencies()::contains)) {
+                result.addAll(checkIncremental(misses, run));
+                return result;
             }
         }
-        return false;
+        if (server.settings.parallelism > 1 && uris.stream().allMatch(dependencies()::contains)) {
+            return checkSharded(uris, run);
+        }
+        dependencies().clear();
+        if (server.settings.parallelism > 1 && files.length > 1) {
+            List<List<File>> parts = SourceIndex.partition(files, server.settings.parallelism);
+            Logger.info("Check {} units in {} parts by package", files.length, parts.size());
+            List<File[]> inputs = new ArrayList<>(parts.size());
+            List<Set<String>> reports = new ArrayList<>(parts.size());
+            for (List<File> part : parts) {
+                inputs.add(part.toArray(new File[0]));
+                reports.add(part.stream().map(it -> uriOf(it.toPath())).collect(Collectors.toSet()));
+            }
+            return runShards(inputs, reports, run);
+        }
+        return runOpenJml(files, null, run);
+    }
+
+    /**
+     * Re-checks the {@code changedUris} and their dependents. The units they depend on are handed to OpenJML for
+     * attribution, but their earlier results are kept. Units the changed ones newly refer to are found by OpenJML
+     * through the source path, and enter the dependency graph with the references collected from this run.
+     */
+    private CheckResult checkIncremental(Set<String> changedUris, DiagnosticScheduler.Run run) {
+        Set<String> affected = dependencies().affectedBy(changedUris);
+        CheckResult restored = restore(affected);
+        affected.removeAll(restored.checked);
+        if (affected.isEmpty()) {
+            return restored;
+        }
+        Set<String> inputs = dependencies().requiredBy(affected);
+        Logger.info("Incremental check of {} units ({} changed, {} inputs)",
+                affected.size(), changedUris.size(), inputs.size());
+        CheckResult result = server.settings.parallelism > 1
+                ? checkSharded(affected, run)
+                : runOpenJml(filesOf(inputs), affected, run);
+        restored.addAll(result);
+        return restored;
+    }
+
+    /**
+     * Whether {@code diagnostic} reports a type or package that could not be found. Such a result turns stale as
+     * soon as the missing unit is created, which changes none of the hashes it depends on.
+     */
+    private static boolean isUnresolved(Diagnostic<? extends JavaFileObject> diagnostic) {
+        String code = diagnostic.getCode();
+        return diagnostic.getKind() == Diagnostic.Kind.ERROR && code != null
+                && (code.startsWith("compiler.err.cant.resolve") || code.equals("compiler.err.doesnt.exist"));
     }
 
-    private CompletableFuture<List<Diagnostic<? extends JavaFileObject>>> triggerOpenJmlAsync() {
-        Supplier<List<Diagnostic<? extends JavaFileObject>>> task = () -> {
-            CapturingListener listener = new CapturingListener();
+    /**
+     * The persistent cache, opened on first use, or null if it is disabled or cannot be opened.
+     */
+    private PersistentDiagnosticCache persistentCache() {
+        if (!server.settings.persistentCache) {
+            return null;
+        }
+        try {
+            return SharedWorkspace.persistentCache(server.settings);
+        } catch (Exception e) {
+            Logger.error("Could not open persistent cache", e);
+            server.settings.persistentCache = false;
+            return null;
+        }
+    }
+
+    private String workspaceKey() {
+        return server.workspaceRoot == null ? ""
+                : server.workspaceRoot.stream().map(WorkspaceFolder::getUri).sorted().collect(Collectors.joining("\n"));
+    }
+
+    /**
+     * Key of {@code uri} in the persistent cache, from its content and the contents of the units it depends on.
+     */
+    private String persistentKey(PersistentDiagnosticCache store, String sourcepath, String uri,
+                                 Map<String, Long> hashes) {
+        SortedMap<String, Long> dependencyHashes = new TreeMap<>();
+        for (String dependency : dependencies().requiredBy(Collections.singleton(uri))) {
+            if (!dependency.equals(uri)) {
+                dependencyHashes.put(dependency, hashes.computeIfAbsent(dependency, this::getHash));
+            }
+        }
+        return store.key(sourcepath, uri, hashes.computeIfAbsent(uri, this::getHash), dependencyHashes);
+    }
+
+    private String sourcepath() {
+        return String.join(File.pathSeparator, sourceRoots());
+    }
+
+    /**
+     * Takes the results of the given uris from the persistent cache, as far as they are present.
+     */
+    private CheckResult restore(Set<String> uris) {
+        CheckResult result = new CheckResult();
+        PersistentDiagnosticCache store = persistentCache();
+        if (store == null) {
+            return result;
+        }
+        Map<String, Long> hashes = new HashMap<>();
+        String sourcepath = sourcepath();
+        for (String uri : uris) {
+            if (!dependencies().contains(uri)) continue;
+            List<Diagnostic<? extends JavaFileObject>> diagnostics;
+            Metrics.Timer timer = metrics.time("check.restore");
             try {
-                StringWriter sw = new StringWriter();
-                @NonNull IAPI api = Factory.makeAPI(new PrintWriter(sw), listener, null);
-                api.parseAndCheck(getJavaFiles());
-                api.close();
-            } catch (Exception e) {
-                Logger.error("Catched", e);
-            } catch (StackOverflowError e) {
-                Logger.error("Catched!", e);
-            }
-            return listener.diagnostics;
-        };
-        return CompletableFuture.supplyAsync(task, ForkJoinPool.commonPool());
-    }
-
-    private File[] getJavaFiles() throws IOException {
-        for (WorkspaceFolder workspaceFolder : server.workspaceRoot) {
-            Logger.info("workspaceRoot: ", workspaceFolder);
-        }
-        List<Path> javaFiles =
-                server.workspaceRoot.stream().flatMap(
-                                p -> {
-                                    try {
-                                        return Files.walk(uri(p.getUri()))
-                                                .filter(it -> it.getFileName().toString().endsWith(".java"));
-                                    } catch (IOException e) {
-                                        return Stream.empty();
-                                    }
-                                })
-                        .collect(Collectors.toList());
-
-        for (Path javaFile : javaFiles) {
-            Logger.info("JavaFile: {}", javaFile);
-        }
-
-        /*
-        List<Path> sourceRoots = new ArrayList<>();
-        for (Path javaFile : javaFiles) {
-            if (prefixIsIn(sourceRoots, javaFile)) {
-                continue;
+                diagnostics = store.get(persistentKey(store, sourcepath, uri, hashes), uri);
+            } finally {
+                timer.stop();
+            }
+            metrics.cache("persistent", diagnostics != null);
+            if (diagnostics != null) {
+                result.checked.add(uri);
+                result.restored.add(uri);
+                result.diagnostics.addAll(diagnostics);
+                result.hashes.put(uri, hashes.get(uri));
             }
-            sourceRoots.add(getSourceRoot(javaFile));
-        }*/
+        }
+        return result;
+    }
 
-        File[] f = new File[javaFiles.size()];
-        for (int i = 0; i < f.length; i++) {
-            f[i] = javaFiles.get(i).toFile();
+    /**
+     * Writes the fresh results of a check and the dependency graph to the persistent cache. Results with unresolved
+     * symbols are not written, see {@link #isUnresolved}.
+     */
+    private void persist(CheckResult result) {
+        PersistentDiagnosticCache store = persistentCache();
+        if (store == null || result.restored.containsAll(result.checked)) {
+            return;
+        }
+        Metrics.Timer timer = metrics.time("check.persist");
+        try {
+            persist(store, result);
+        } finally {
+            timer.stop();
         }
-        return f;
     }
 
-    private Path uri(String uri) {
-        return Paths.get(uri
-                .replaceFirst("file://", "")
-                .replaceFirst("file:/", ""));
+    private void persist(PersistentDiagnosticCache store, CheckResult result) {
+        Map<String, Long> hashes = new HashMap<>(result.hashes);
+        Map<String, DiagnosticStore.Entry> stored = cache().snapshot();
+        String sourcepath = sourcepath();
+        for (String uri : result.checked) {
+            DiagnosticStore.Entry entry = stored.get(uri);
+            if (!result.restored.contains(uri) && entry != null
+                    && entry.diagnostics.stream().noneMatch(OpenJMLDiagnosticHandler::isUnresolved)) {
+                store.put(persistentKey(store, sourcepath, uri, hashes), entry.diagnostics);
+            }
+        }
+        store.putGraph(workspaceKey(), dependencies().snapshot());
     }
 
-    private Path getSourceRoot(Path javaFile) throws IOException {
-        return Files.readAllLines(javaFile).stream().filter(it -> it.trim().startsWith("package"))
-                .findFirst()
-                .map(this::countDots)
-                .map(it -> goUpwards(javaFile, it))
-                .orElse(null);
+    /**
+     * Checks {@code uris} in parallel. They are split into independent shards along the dependency graph; every shard
+     * is checked in its own OpenJML context. The units a shard requires are resolved through the source path and only
+     * attributed as far as the shard needs them, except for those open in the editor, which are handed to OpenJML so
+     * that their buffers are used.
+     */
+    private CheckResult checkSharded(Set<String> uris, DiagnosticScheduler.Run run) {
+        List<Set<String>> shards = dependencies().shards(uris, server.settings.parallelism);
+        Logger.info("Check {} units in {} shards", uris.size(), shards.size());
+        List<File[]> inputs = new ArrayList<>(shards.size());
+        for (Set<String> shard : shards) {
+            Set<String> files = new HashSet<>(shard);
+            dependencies().requiredBy(shard).stream()
+                    .filter(server.textDocumentService.documents::isOpen)
+                    .forEach(files::add);
+            inputs.add(filesOf(files));
+        }
+        return runShards(inputs, shards, run);
+    }
+
+    /**
+     * Runs OpenJML on each of the {@code inputs} in parallel, reporting the uris of the corresponding
+     * {@code reports}, and merges the results.
+     */
+    private CheckResult runShards(List<File[]> inputs, List<Set<String>> reports, DiagnosticScheduler.Run run) {
+        List<CompletableFuture<CheckResult>> futures = new ArrayList<>(inputs.size());
+        for (int i = 0; i < inputs.size(); i++) {
+            File[] files = inputs.get(i);
+            Set<String> report = reports.get(i);
+            futures.add(CompletableFuture.supplyAsync(() -> runOpenJml(files, report, run), shardExecutor));
+        }
+        CheckResult merged = new CheckResult(new HashSet<>(), new ArrayList<>());
+        for (CompletableFuture<CheckResult> future : futures) {
+            try {
+                CheckResult result = future.join();
+                merged.checked.addAll(result.checked);
+                merged.diagnostics.addAll(result.diagnostics);
+                merged.hashes.putAll(result.hashes);
+                merged.failed |= result.failed;
+            } catch (CompletionException e) {
+                if (e.getCause() instanceof CancellationException) {
+                    throw (CancellationException) e.getCause();
+                }
+                throw e;
+            }
+        }
+        return merged;
     }
 
-    private Path goUpwards(Path javaFile, int count) {
-        for (int i = 0; i < count; i++) {
-            javaFile = javaFile.getParent();
+    private File[] filesOf(Collection<String> uris) {
+        return uris.stream().map(it -> uri(it).toFile()).filter(File::exists).toArray(File[]::new);
+    }
+
+    /**
+     * Parses and type checks the given files and records their dependencies. Files opened in the editor are read
+     * from their buffers.
+     *
+     * @param report the uris to report diagnostics for, or null for all
+     */
+    private CheckResult runOpenJml(File[] files, Set<String> report, DiagnosticScheduler.Run run) {
+        long start = System.nanoTime();
+        SharedWorkspace.beginCheck(run::checkCancelled);
+        metrics.record("openjml.slot", start);
+        try {
+            return runOpenJmlInSlot(files, report, run);
+        } finally {
+            SharedWorkspace.endCheck();
         }
-        return javaFile;
     }
 
-    private int countDots(String it) {
-        return it.chars().map(c -> c == '.' ? 1 : 0).sum();
+    /**
+     * Lets OpenJML look up the types referenced by the checked files in the source roots of the workspace.
+     */
+    void addSourcepath(IAPI api) {
+        List<String> roots = sourceRoots();
+        if (!roots.isEmpty()) {
+            api.addOptions("-sourcepath", String.join(File.pathSeparator, roots));
+        }
     }
 
-    private boolean prefixIsIn(List<Path> sourceRoots, Path javaFile) {
-        return sourceRoots.stream().anyMatch(javaFile::startsWith);
+    /**
+     * The source roots of the workspace, as handed to OpenJML.
+     */
+    List<String> sourceRoots() {
+        return sources().sourceRoots().stream().map(Path::toString).collect(Collectors.toList());
+    }
+
+    private CheckResult runOpenJmlInSlot(File[] files, Set<String> report, DiagnosticScheduler.Run run) {
+        WorkerPool workers = workspace().workers;
+        if (workers.isEnabled()) {
+            Metrics.Timer acquire = metrics.time("worker.acquire");
+            WorkerPool.Worker worker = workers.acquire(run::checkCancelled);
+            acquire.stop();
+            if (worker != null) {
+                try {
+                    return runInWorker(worker, files, report, run);
+                } finally {
+                    workers.release(worker);
+                }
+            }
+        }
+        CapturingListener listener = new CapturingListener(report, run.observers());
+        Set<String> checked = new HashSet<>();
+        Map<String, Long> hashes = new HashMap<>();
+        boolean failed = false;
+        Metrics.Timer acquire = metrics.time("openjml.acquire");
+        try (OpenJmlContextPool.Lease lease = workspace().contexts.acquire(listener)) {
+            acquire.stop();
+            metrics.cache("contexts", lease.isWarm());
+            @NonNull IAPI api = lease.api();
+            MultiTaskListener.instance(api.context()).add(new UnitTimer(metrics));
+            addSourcepath(api);
+            JavaFileObject[] sources = new JavaFileObject[files.length];
+            for (int i = 0; i < files.length; i++) {
+                String uri = uriOf(files[i].toPath());
+                DocumentStore.BufferFileObject buffer = server.textDocumentService.documents.getFileObject(uri);
+                if (buffer != null) {
+                    sources[i] = buffer;
+                    hashes.put(uriOf(buffer), buffer.hash());
+                } else {
+                    sources[i] = api.makeJFOfromFile(files[i]);
+                }
+            }
+            run.checkCancelled();
+            List<JmlCompilationUnit> units;
+            Metrics.Timer parse = metrics.time("openjml.parse");
+            try {
+                units = api.parseFiles(sources);
+            } finally {
+                parse.stop();
+            }
+            run.checkCancelled();
+            Metrics.Timer typecheck = metrics.time("openjml.typecheck");
+            try {
+                api.typecheck(units);
+            } finally {
+                typecheck.stop();
+            }
+            run.checkCancelled();
+            listener.done();
+            Metrics.Timer collect = metrics.time("openjml.dependencies");
+            try {
+                for (JmlCompilationUnit unit : units) {
+                    String uri = uriOf(unit.sourcefile);
+                    dependencies().update(uri, DependencyGraph.collectReferences(unit));
+                    checked.add(uri);
+                }
+            } finally {
+                collect.stop();
+            }
+            metrics.count("openjml.units", units.size());
+        } catch (CancellationException e) {
+            throw e;
+        } catch (Exception e) {
+            Logger.error("Catched", e);
+            failed = true;
+        } catch (StackOverflowError e) {
+            Logger.error("Catched!", e);
+            failed = true;
+        }
+        return result(checked, listener, hashes, report, failed);
+    }
+
+    /**
+     * Runs OpenJML in a worker process, see {@link WorkerPool}. The diagnostics are streamed from the worker to the
+     * observers of {@code run} as in process.
+     */
+    private CheckResult runInWorker(WorkerPool.Worker worker, File[] files, Set<String> report,
+                                    DiagnosticScheduler.Run run) {
+        CapturingListener listener = new CapturingListener(report, run.observers());
+        Set<String> checked = new HashSet<>();
+        Map<String, Long> hashes = new HashMap<>();
+        WorkerProtocol.Check check = new WorkerProtocol.Check(workspace().workers.nextId(), report, sourceRoots());
+        for (File file : files) {
+            String uri = uriOf(file.toPath());
+            DocumentStore.BufferFileObject buffer = server.textDocumentService.documents.getFileObject(uri);
+            if (buffer != null) {
+                hashes.put(uri, buffer.hash());
+                check.add(uri, file.getPath(), buffer.getCharContent(true).toString());
+            } else {
+                check.add(uri, file.getPath(), null);
+            }
+        }
+        WorkerProtocol.Done done;
+        Metrics.Timer timer = metrics.time("worker.check");
+        try {
+            done = worker.check(check, listener, run::checkCancelled);
+        } finally {
+            timer.stop();
+        }
+        boolean failed = done == null;
+        if (failed) {
+            metrics.count("worker.crashed");
+        } else {
+            listener.done();
+            done.references.forEach((uri, uses) -> {
+                dependencies().update(uri, uses);
+                checked.add(uri);
+            });
+            metrics.count("openjml.units", done.references.size());
+        }
+        return result(checked, listener, hashes, report, failed);
+    }
+
+    private static CheckResult result(Set<String> checked, CapturingListener listener, Map<String, Long> hashes,
+                                      Set<String> report, boolean failed) {
+        if (report != null) {
+            checked.retainAll(report);
+        }
+        CheckResult result = new CheckResult(checked, listener.diagnostics);
+        hashes.keySet().retainAll(checked);
+        result.hashes.putAll(hashes);
+        result.failed = failed;
+        return result;
+    }
+
+    /**
+     * The index of the Java files in the workspace, built on first use.
+     */
+    private SourceIndex sources() {
+        return workspace().sources(folders(), server.settings.exclude, metrics);
+    }
+
+    private List<Path> folders() {
+        return server.workspaceRoot == null ? Collections.emptyList()
+                : server.workspaceRoot.stream().map(it -> uri(it.getUri())).collect(Collectors.toList());
+    }
+
+    File[] getJavaFiles() {
+        return sources().files();
+    }
+
+    private Path uri(String uri) {
+        try {
+            return Paths.get(URI.create(uri));
+        } catch (IllegalArgumentException | FileSystemNotFoundException e) {
+            return Paths.get(uri
+                    .replaceFirst("file://", "")
+                    .replaceFirst("file:/", ""));
+        }
     }
 }
 
-class CapturingListener implements DiagnosticListener<JavaFileObject> {
-    List<Diagnostic<? extends JavaFileObject>> diagnostics = new ArrayList<>(1024);
+/**
+ * Measures how long OpenJML attributes each compilation unit.
+ */
+class UnitTimer implements TaskListener {
+    private final Metrics metrics;
+    private final Map<JavaFileObject, Long> started = new HashMap<>();
+
+    UnitTimer(Metrics metrics) {
+        this.metrics = metrics;
+    }
 
     @Override
-    public void report(Diagnostic<? extends JavaFileObject> diagnostic) {
-        diagnostics.add(diagnostic);
+    public void started(TaskEvent e) {
+        if (e.getKind() == TaskEvent.Kind.ANALYZE && e.getSourceFile() != null) {
+            started.put(e.getSourceFile(), System.nanoTime());
+        }
     }
-}
\ No newline at end of file
+
+    @Override
+    public void finished(TaskEvent e) {
+        if (e.getKind() == TaskEvent.Kind.ANALYZE && e.getSourceFile() != null) {
+            Long start = started.remove(e.getSourceFile());
+            if (start != null) {
+                metrics.uriTime(OpenJMLDiagnosticHandler.uriOf(e.getSourceFile()), System.nanoTime() - start);
+            }
+        }
+    }
+}
@@ -1,8 +1,10 @@
 package com.github.wadoon.openjmllsp;
 
+import com.google.gson.JsonObject;
 import org.eclipse.lsp4j.InitializeParams;
 import org.eclipse.lsp4j.InitializeResult;
 import org.eclipse.lsp4j.*;
+import org.eclipse.lsp4j.jsonrpc.services.JsonRequest;
 import org.eclipse.lsp4j.ServerCapabilities;
 import org.eclipse.lsp4j.services.LanguageServer;
 import org.eclipse.lsp4j.services.LanguageClient;
@@ -14,51 +16,105 @@ import org.jmlspecs.openjml.Factory;
 import org.jmlspecs.openjml.IAPI;
 import org.tinylog.Logger;
 
+import java.util.Collections;
 import java.util.List;
 import java.util.concurrent.CompletableFuture;
 
 class OpenJMLLanguageServer implements LanguageServer, LanguageClientAware {
 
+    volatile OpenJmlSettings settings = new OpenJmlSettings();
+
+    final Metrics metrics = new Metrics();
+
     OpenJMLDiagnosticHandler diagnosticHandler = new OpenJMLDiagnosticHandler(this);
 
     LanguageClient client = null;
 
     List<WorkspaceFolder> workspaceRoot = null;
 
+    /**
+     * Whether the client re-pulls diagnostics on {@code workspace/diagnostic/refresh}.
+     */
+    boolean refreshSupport = false;
+
+    /**
+     * Whether the client accepts progress reports initiated by the server.
+     */
+    boolean workDoneProgressSupport = false;
+
     OpenJmlTextDocumentService textDocumentService = new OpenJmlTextDocumentService(this);
     private WorkspaceService workspaceService = new OpenJmlWorkspaceService(this);
 
     @Override
     public CompletableFuture<InitializeResult> initialize(InitializeParams params) {
         workspaceRoot = params.getWorkspaceFolders();
+        settings = OpenJmlSettings.from(params.getInitializationOptions());
+        ClientCapabilities clientCapabilities = params.getCapabilities();
+        refreshSupport = clientCapabilities != null && clientCapabilities.getWorkspace() != null
+                && clientCapabilities.getWorkspace().getDiagnostics() != null
+                && Boolean.TRUE.equals(clientCapabilities.getWorkspace().getDiagnostics().getRefreshSupport());
+        workDoneProgressSupport = clientCapabilities != null && clientCapabilities.getWindow() != null
+                && Boolean.TRUE.equals(clientCapabilities.getWindow().getWorkDoneProgress());
+        diagnosticHandler.settingsChanged();
+        diagnosticHandler.watchWorkspace();
 
         ServerCapabilities capabilities = new ServerCapabilities();
-        capabilities.setTextDocumentSync(TextDocumentSyncKind.Full);
+        capabilities.setTextDocumentSync(TextDocumentSyncKind.Incremental);
         capabilities.setCodeActionProvider(true);
+        capabilities.setExecuteCommandProvider(new ExecuteCommandOptions(Collections.singletonList(Verifier.COMMAND)));
         capabilities.setDiagnosticProvider(new DiagnosticRegistrationOptions(true, true));
 
-        try {
-            Logger.info("Send greetings!");
-            String version = getOpenJMLVersion();
-            client.logMessage(new MessageParams(MessageType.Info, "OpenJml " + version));
-        } catch (Exception e) {
-            client.logMessage(new MessageParams(MessageType.Error,
-                    "Error happened during loading OpenJml " + e.getMessage()));
-        }
-
         return CompletableFuture.completedFuture(new InitializeResult(capabilities));
     }
 
+    /**
+     * Loads OpenJML in the background, so that the client does not wait for it on {@code initialize}.
+     */
+    @Override
+    public void initialized(InitializedParams params) {
+        CompletableFuture.runAsync(() -> {
+            Metrics.Timer timer = metrics.time("openjml.load");
+            try {
+                String version = getOpenJMLVersion();
+                Logger.info("OpenJML version: {}", version);
+                client.logMessage(new MessageParams(MessageType.Info, "OpenJml " + version));
+            } catch (Exception e) {
+                client.logMessage(new MessageParams(MessageType.Error,
+                        "Error happened during loading OpenJml " + e.getMessage()));
+            } finally {
+                timer.stop();
+            }
+        });
+    }
+
+    @Override
+    public void cancelProgress(WorkDoneProgressCancelParams params) {
+        diagnosticHandler.verifier.cancel(params.getToken());
+    }
+
     @Override
     public CompletableFuture<Object> shutdown() {
         Logger.info("OpenJMLLanguageServer.shutdown");
         return CompletableFuture.completedFuture(null);
     }
 
+    /**
+     * Releases the resources of the session.
+     */
+    void close() {
+        diagnosticHandler.close();
+        metrics.close();
+    }
+
+    /**
+     * Ends the session on {@code exit}. Terminates the process, unless the server runs as a daemon.
+     */
+    Runnable onExit = () -> System.exit(0);
+
     @Override
     public void exit() {
         Logger.info("OpenJMLLanguageServer.exit");
-        System.exit(0);
+        onExit.run();
     }
 
     @Override
@@ -67,9 +123,29 @@ class OpenJMLLanguageServer implements LanguageServer, LanguageClientAware {
         this.client = client;
     }
 
-    public static @NonNull String getOpenJMLVersion() throws Exception {
-        @NonNull IAPI api = Factory.makeAPI();
-        return api.version();
+    private static String openJmlVersion;
+
+    /**
+     * The version of OpenJML. The first call creates an OpenJML context, which takes seconds.
+     */
+    public static synchronized @NonNull String getOpenJMLVersion() throws Exception {
+        if (openJmlVersion == null) {
+            @NonNull IAPI api = Factory.makeAPI();
+            try {
+                openJmlVersion = api.version();
+            } finally {
+                api.close();
+            }
+        }
+        return openJmlVersion;
+    }
+
+    /**
+     * Counters, phase latencies and cache hit ratios, see {@link Metrics}.
+     */
+    @JsonRequest("openjml/metrics")
+    public CompletableFuture<JsonObject> metrics() {
+        return CompletableFuture.completedFuture(metrics.toJson());
     }
 
     @Override
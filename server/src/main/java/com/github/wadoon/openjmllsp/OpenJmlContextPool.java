@@ -0,0 +1,259 @@
+package com.github.wadoon.openjmllsp;
+
+import org.jmlspecs.openjml.Factory;
+import org.jmlspecs.openjml.IAPI;
+import org.tinylog.Logger;
+
+import javax.management.ListenerNotFoundException;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import javax.tools.Diagnostic;
+import javax.tools.DiagnosticListener;
+import javax.tools.JavaFileObject;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryNotificationInfo;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Supplier;
+
+/**
+ * Pool of warm OpenJML contexts.
+ * <p>
+ * Creating an {@link IAPI} initializes the JDK symbol table and the options, and the first check in a context loads
+ * the {@code java.lang} specifications from jmlspecs.jar, as well as those of the library types the workspace imports
+ * once they are known, see {@link #preload}. The pool does this work in the background and hands out
+ * contexts that are ready to use. A context carries the compilation state of its run (entered classes, attributed
+ * trees), which javac cannot unload, so every context serves exactly one run and is replaced by a fresh spare
+ * afterwards. The per-run state is only the diagnostic listener, which is re-routed on each lease.
+ * <p>
+ * At most {@code maxSize} contexts are kept idle. They are closed when the heap runs low after a collection. A pool
+ * that is no longer used has to be {@link #close() closed}, which stops its warm-up thread and memory listener.
+ */
+class OpenJmlContextPool {
+    private static final double MEMORY_THRESHOLD = 0.8;
+
+    /**
+     * Name of the unit checked to warm up a context. It is in a package of its own, so that it cannot clash with a
+     * class of the workspace.
+     */
+    static final String WARMUP_FILE = "com/github/wadoon/openjmllsp/warmup/OpenJmlWarmup.java";
+
+    private final Deque<PooledContext> idle = new ArrayDeque<>();
+    private final ExecutorService warmer = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "openjml-context-warmer");
+        t.setDaemon(true);
+        return t;
+    });
+    private final NotificationListener memoryListener = (notification, handback) -> {
+        if (MemoryNotificationInfo.MEMORY_COLLECTION_THRESHOLD_EXCEEDED.equals(notification.getType())) {
+            evict();
+        }
+    };
+    private int maxSize;
+    private int pending = 0;
+    private boolean closed = false;
+    private volatile String warmupSource = warmupSource(Collections.emptyList());
+
+    OpenJmlContextPool(int maxSize) {
+        this.maxSize = maxSize;
+        registerMemoryListener();
+    }
+
+    public synchronized void setMaxSize(int maxSize) {
+        this.maxSize = Math.max(0, maxSize);
+        while (idle.size() > this.maxSize) {
+            idle.pollLast().api.close();
+        }
+        fill();
+    }
+
+    /**
+     * Starts warming up contexts until the pool is full.
+     */
+    public synchronized void fill() {
+        while (!closed && idle.size() + pending < maxSize) {
+            pending++;
+            warmer.execute(this::warmUp);
+        }
+    }
+
+    /**
+     * Makes the contexts warmed up from now on load the specifications of {@code types}, computed on the warm-up
+     * thread. Contexts that are idle already are kept.
+     */
+    public synchronized void preload(Supplier<List<String>> types) {
+        if (closed) {
+            return;
+        }
+        warmer.execute(() -> {
+            try {
+                List<String> t = types.get();
+                warmupSource = warmupSource(t);
+                Logger.info("Warm contexts load the specifications of {} library types", t.size());
+            } catch (RuntimeException e) {
+                Logger.warn("Could not determine the specifications to preload: {}", e);
+            }
+        });
+    }
+
+    /**
+     * A class using each of the given types, so that type checking it loads and attributes their specifications.
+     */
+    static String warmupSource(List<String> types) {
+        StringBuilder sb = new StringBuilder("package com.github.wadoon.openjmllsp.warmup;"
+                + " class OpenJmlWarmup { /*@ pure */ String s(Object o) { return o.toString(); }");
+        for (int i = 0; i < types.size(); i++) {
+            sb.append(' ').append(types.get(i)).append(" f").append(i).append(';');
+        }
+        return sb.append(" }").toString();
+    }
+
+    /**
+     * Takes a warm context from the pool, or creates a cold one if none is available. The diagnostics of the
+     * context are reported to {@code listener} until the lease is closed.
+     */
+    public Lease acquire(DiagnosticListener<? super JavaFileObject> listener) throws Exception {
+        PooledContext context = poll();
+        boolean warm = context != null;
+        if (!warm) {
+            Logger.info("No warm OpenJML context available");
+            context = create();
+        }
+        fill();
+        context.target = listener;
+        return new Lease(context, warm);
+    }
+
+    public synchronized int idleCount() {
+        return idle.size();
+    }
+
+    private synchronized PooledContext poll() {
+        return idle.pollFirst();
+    }
+
+    /**
+     * Drops the idle contexts and stops warming up new ones. Contexts that are leased are closed with their lease.
+     */
+    public void close() {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            maxSize = 0;
+            while (!idle.isEmpty()) {
+                idle.pollFirst().api.close();
+            }
+        }
+        warmer.shutdownNow();
+        try {
+            ((NotificationEmitter) ManagementFactory.getMemoryMXBean()).removeNotificationListener(memoryListener);
+        } catch (ListenerNotFoundException e) {
+            // never registered
+        }
+    }
+
+    /**
+     * Drops all idle contexts.
+     */
+    public synchronized void evict() {
+        Logger.info("Evicting {} idle OpenJML contexts", idle.size());
+        while (!idle.isEmpty()) {
+            idle.pollFirst().api.close();
+        }
+    }
+
+    private void warmUp() {
+        PooledContext context = null;
+        try {
+            context = create();
+            JavaFileObject warmup = context.api.makeJFOfromString(WARMUP_FILE, warmupSource);
+            context.api.typecheck(context.api.parseFiles(warmup));
+        } catch (Exception e) {
+            Logger.error("Could not warm up OpenJML context", e);
+        }
+        synchronized (this) {
+            pending--;
+            if (context != null && idle.size() < maxSize) {
+                idle.addLast(context);
+                context = null;
+            }
+        }
+        if (context != null) {
+            context.api.close();
+        }
+    }
+
+    private static PooledContext create() throws Exception {
+        PooledContext context = new PooledContext();
+        context.api = Factory.makeAPI(new PrintWriter(Writer.nullWriter()), context, null);
+        return context;
+    }
+
+    private void registerMemoryListener() {
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP && pool.isCollectionUsageThresholdSupported()
+                    && pool.getUsage().getMax() > 0) {
+                pool.setCollectionUsageThreshold((long) (pool.getUsage().getMax() * MEMORY_THRESHOLD));
+            }
+        }
+        ((NotificationEmitter) ManagementFactory.getMemoryMXBean()).addNotificationListener(memoryListener, null,
+                null);
+    }
+
+    /**
+     * A context leased for one run. Closing the lease closes the context.
+     */
+    static class Lease implements AutoCloseable {
+        private final PooledContext context;
+        private final boolean warm;
+
+        private Lease(PooledContext context, boolean warm) {
+            this.context = context;
+            this.warm = warm;
+        }
+
+        /**
+         * Whether the context was taken warm from the pool.
+         */
+        public boolean isWarm() {
+            return warm;
+        }
+
+        public IAPI api() {
+            return context.api;
+        }
+
+        @Override
+        public void close() {
+            context.target = null;
+            context.api.close();
+        }
+    }
+
+    /**
+     * A context, which is also its own diagnostic listener: diagnostics are forwarded to the listener of the current
+     * lease. Diagnostics from the warm-up run are dropped.
+     */
+    private static class PooledContext implements DiagnosticListener<JavaFileObject> {
+        IAPI api;
+        volatile DiagnosticListener<? super JavaFileObject> target;
+
+        @Override
+        public void report(Diagnostic<? extends JavaFileObject> diagnostic) {
+            DiagnosticListener<? super JavaFileObject> t = target;
+            if (t != null) {
+                t.report(diagnostic);
+            }
+        }
+    }
+}
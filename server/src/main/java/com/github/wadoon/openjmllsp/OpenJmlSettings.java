@@ -0,0 +1,183 @@
+package com.github.wadoon.openjmllsp;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Server settings, synchronized by the client from the {@code openjml} configuration section.
+ */
+class OpenJmlSettings {
+    /**
+     * Re-check only changed compilation units and their dependents instead of the whole workspace.
+     */
+    boolean incremental = true;
+
+    /**
+     * Answer the diagnostic request of an edited file with its syntax errors at once, and with the results of OpenJML
+     * when its check is done. Needs a client that supports diagnostic refresh requests.
+     */
+    boolean tieredChecking = true;
+
+    /**
+     * Number of OpenJML contexts kept warm for upcoming checks.
+     */
+    int contextPoolSize = 2;
+
+    /**
+     * Time without edits before a requested check starts.
+     */
+    long debounceMillis = 250;
+
+    /**
+     * Number of shards checked concurrently, each in its own OpenJML context. 1 disables parallel checking.
+     */
+    int parallelism = 1;
+
+    /**
+     * Number of worker processes running the OpenJML checks outside the server. 0 checks in the server process.
+     */
+    int workerProcesses = 0;
+
+    /**
+     * JVM options of the worker processes, e.g. their heap size.
+     */
+    List<String> workerJvmArgs = Arrays.asList("-Xmx2g", "-Xss16m");
+
+    /**
+     * Number of checks after which a worker process is replaced. 0 for no limit.
+     */
+    int workerMaxChecks = 50;
+
+    /**
+     * Heap size in megabytes after which a worker process is replaced. 0 for no limit.
+     */
+    int workerMaxHeapMb = 1536;
+
+    /**
+     * Number of files whose diagnostics are kept in memory. 0 for no limit.
+     */
+    int diagnosticEntries = 100000;
+
+    /**
+     * Estimated size in megabytes of the diagnostics kept in memory. 0 for no limit.
+     */
+    int diagnosticMemoryMb = 128;
+
+    /**
+     * Keep diagnostics in an on-disk cache, which survives server restarts.
+     */
+    boolean persistentCache = true;
+
+    /**
+     * Directory of the on-disk cache. Empty for {@code ~/.cache/openjml-lsp}.
+     */
+    String cacheDirectory = "";
+
+    /**
+     * Size bound of the on-disk cache in megabytes.
+     */
+    int cacheSizeMb = 256;
+
+    /**
+     * Glob patterns of directories not searched for sources, matched against the directory name and against its path
+     * relative to the workspace folder.
+     */
+    List<String> exclude = Arrays.asList("build", "target", ".git", "node_modules");
+
+    /**
+     * Number of verifications running at the same time.
+     */
+    int verificationWorkers = 1;
+
+    /**
+     * Time limit of a verification, also passed to the prover as the limit of each proof.
+     */
+    int verificationTimeoutSeconds = 300;
+
+    /**
+     * Prover used for verification, e.g. {@code z3_4_3}. Empty for the OpenJML default.
+     */
+    String prover = "";
+
+    /**
+     * Path of the prover executable. Empty for the OpenJML default.
+     */
+    String proverExecutable = "";
+
+    /**
+     * File to which the metrics are written periodically in the Prometheus text format. Empty to disable.
+     */
+    String metricsFile = "";
+
+    static OpenJmlSettings from(Object settings) {
+        OpenJmlSettings s = new OpenJmlSettings();
+        if (!(settings instanceof JsonObject)) {
+            return s;
+        }
+        JsonObject root = (JsonObject) settings;
+        JsonObject section = root.has("openjml") && root.get("openjml").isJsonObject()
+                ? root.getAsJsonObject("openjml") : root;
+
+        s.incremental = getBoolean(section, "incremental", s.incremental);
+        s.tieredChecking = getBoolean(section, "tieredChecking", s.tieredChecking);
+        s.contextPoolSize = getInt(section, "contextPoolSize", s.contextPoolSize);
+        s.debounceMillis = getInt(section, "debounceMillis", (int) s.debounceMillis);
+        s.parallelism = getInt(section, "parallelism", s.parallelism);
+        s.workerProcesses = getInt(section, "workerProcesses", s.workerProcesses);
+        s.workerJvmArgs = getStringList(section, "workerJvmArgs", s.workerJvmArgs);
+        s.workerMaxChecks = getInt(section, "workerMaxChecks", s.workerMaxChecks);
+        s.workerMaxHeapMb = getInt(section, "workerMaxHeapMb", s.workerMaxHeapMb);
+        s.diagnosticEntries = getInt(section, "diagnosticEntries", s.diagnosticEntries);
+        s.diagnosticMemoryMb = getInt(section, "diagnosticMemoryMb", s.diagnosticMemoryMb);
+        s.persistentCache = getBoolean(section, "persistentCache", s.persistentCache);
+        s.cacheDirectory = getString(section, "cacheDirectory", s.cacheDirectory);
+        s.cacheSizeMb = getInt(section, "cacheSizeMb", s.cacheSizeMb);
+        s.exclude = getStringList(section, "exclude", s.exclude);
+        s.verificationWorkers = getInt(section, "verificationWorkers", s.verificationWorkers);
+        s.verificationTimeoutSeconds = getInt(section, "verificationTimeoutSeconds", s.verificationTimeoutSeconds);
+        s.prover = getString(section, "prover", s.prover);
+        s.proverExecutable = getString(section, "proverExecutable", s.proverExecutable);
+        s.metricsFile = getString(section, "metricsFile", s.metricsFile);
+        return s;
+    }
+
+    Path cacheDirectory() {
+        return cacheDirectory.isEmpty()
+                ? Paths.get(System.getProperty("user.home"), ".cache", "openjml-lsp")
+                : Paths.get(cacheDirectory);
+    }
+
+    private static String getString(JsonObject section, String key, String defaultValue) {
+        JsonElement e = section.get(key);
+        return e != null && e.isJsonPrimitive() ? e.getAsString() : defaultValue;
+    }
+
+    private static List<String> getStringList(JsonObject section, String key, List<String> defaultValue) {
+        JsonElement e = section.get(key);
+        if (e == null || !e.isJsonArray()) {
+            return defaultValue;
+        }
+        List<String> list = new ArrayList<>();
+        for (JsonElement item : (JsonArray) e) {
+            list.add(item.getAsString());
+        }
+        return list;
+    }
+
+    private static int getInt(JsonObject section, String key, int defaultValue) {
+        JsonElement e = section.get(key);
+        return e != null && e.isJsonPrimitive() ? e.getAsInt() : defaultValue;
+    }
+
+    private static boolean getBoolean(JsonObject section, String key, boolean defaultValue) {
+        JsonElement e = section.get(key);
+        return e != null && e.isJsonPrimitive() ? e.getAsBoolean() : defaultValue;
+    }
+}
@@ -11,6 +11,7 @@ import java.util.concurrent.CompletableFuture;
 class OpenJmlTextDocumentService implements TextDocumentService {
     private final OpenJMLLanguageServer server;
     Map<String, Integer> versionForUri = Collections.synchronizedMap(new TreeMap<>());
+    final DocumentStore documents = new DocumentStore();
 
     public OpenJmlTextDocumentService(OpenJMLLanguageServer openJMLLanguageServer) {
         this.server = openJMLLanguageServer;
@@ -18,43 +19,50 @@ class OpenJmlTextDocumentService implements TextDocumentService {
 
     @Override
     public void didOpen(DidOpenTextDocumentParams params) {
-        Logger.info(params);
-        versionForUri.put(params.getTextDocument().getUri(), params.getTextDocument().getVersion());
+        TextDocumentItem document = params.getTextDocument();
+        Logger.debug("didOpen {} ({})", document.getUri(), document.getVersion());
+        documents.open(document.getUri(), document.getVersion(), document.getText());
+        versionForUri.put(document.getUri(), document.getVersion());
     }
 
     @Override
     public void didChange(DidChangeTextDocumentParams params) {
-        Logger.info(params);
-        server.diagnosticHandler.invalidate(params.getTextDocument().getUri());
-        versionForUri.put(params.getTextDocument().getUri(), params.getTextDocument().getVersion());
+        VersionedTextDocumentIdentifier document = params.getTextDocument();
+        Logger.debug("didChange {} ({})", document.getUri(), document.getVersion());
+        documents.change(document.getUri(), document.getVersion(), params.getContentChanges());
+        server.diagnosticHandler.invalidate(document.getUri());
+        versionForUri.put(document.getUri(), document.getVersion());
     }
 
     @Override
     public void didClose(DidCloseTextDocumentParams params) {
-        Logger.info(params);
+        Logger.debug("didClose {}", params.getTextDocument().getUri());
+        documents.close(params.getTextDocument().getUri());
         versionForUri.remove(params.getTextDocument().getUri());
     }
 
     @Override
     public void didSave(DidSaveTextDocumentParams params) {
-        Logger.info(params);
+        Logger.debug("didSave {}", params.getTextDocument().getUri());
     }
 
     @Override
     public CompletableFuture<DocumentDiagnosticReport> diagnostic(DocumentDiagnosticParams params) {
-        Logger.info(params);
-        return server.diagnosticHandler.fileDiagnostic(params.getTextDocument().getUri());
+        Logger.debug("diagnostic {}", params.getTextDocument().getUri());
+        return server.diagnosticHandler.fileDiagnostic(params.getTextDocument().getUri(),
+                params.getPreviousResultId());
     }
 
     @Override
     public CompletableFuture<List<Either<Command, CodeAction>>> codeAction(CodeActionParams params) {
-        Logger.info(params);
-        return CompletableFuture.completedFuture(new ArrayList<>());
+        Logger.debug("codeAction {}", params.getTextDocument().getUri());
+        return CompletableFuture.supplyAsync(() -> server.diagnosticHandler.verifier.codeActions(
+                params.getTextDocument().getUri(), params.getRange()));
     }
 
     @Override
     public CompletableFuture<CodeAction> resolveCodeAction(CodeAction unresolved) {
-        Logger.info(unresolved);
-        return CompletableFuture.completedFuture(new CodeAction("Do something"));
+        Logger.debug("resolveCodeAction {}", unresolved.getTitle());
+        return CompletableFuture.completedFuture(unresolved);
     }
 }
@@ -0,0 +1,206 @@
+package com.github.wadoon.openjmllsp;
+
+import org.jmlspecs.openjml.IAPI;
+import org.jmlspecs.openjml.JmlTree.JmlCompilationUnit;
+import org.tinylog.Logger;
+
+import javax.tools.Diagnostic;
+import javax.tools.DiagnosticListener;
+import javax.tools.JavaFileObject;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * A worker process, started by the {@link WorkerPool} of the language server with {@code --worker}. It runs the
+ * OpenJML checks sent to it on its standard input, one at a time, and streams their diagnostics back on its standard
+ * output, see {@link WorkerProtocol}. Its log goes to the standard error, which the server inherits.
+ * <p>
+ * The worker keeps one OpenJML context warm for the next check. It exits when the server closes its standard input.
+ */
+class OpenJmlWorker {
+    private static final Object EXIT = new Object();
+
+    private final DataInputStream in;
+    private final DataOutputStream out;
+    private final OpenJmlContextPool contexts = new OpenJmlContextPool(1);
+    private final BlockingQueue<Object> checks = new LinkedBlockingQueue<>();
+    private volatile long cancelled = -1;
+
+    OpenJmlWorker(InputStream in, OutputStream out) {
+        this.in = new DataInputStream(new BufferedInputStream(in));
+        this.out = new DataOutputStream(new BufferedOutputStream(out, 1 << 16));
+    }
+
+    /**
+     * Serves the server on the standard streams. Has to be called before anything is logged.
+     */
+    static void serve() throws IOException {
+        OutputStream protocol = new FileOutputStream(FileDescriptor.out);
+        // the standard output carries the protocol, everything printed goes to the log
+        System.setOut(System.err);
+        new OpenJmlWorker(System.in, protocol).run();
+    }
+
+    void run() throws IOException {
+        WorkerProtocol.writeHello(out);
+        contexts.fill();
+        Thread reader = new Thread(this::read, "openjml-worker-reader");
+        reader.setDaemon(true);
+        reader.start();
+        while (true) {
+            Object check;
+            try {
+                check = checks.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (check == EXIT) {
+                return;
+            }
+            WorkerProtocol.write(out, check((WorkerProtocol.Check) check));
+        }
+    }
+
+    private void read() {
+        try {
+            while (true) {
+                Object message = WorkerProtocol.read(in);
+                if (message instanceof WorkerProtocol.Cancel) {
+                    cancelled = ((WorkerProtocol.Cancel) message).id;
+                } else {
+                    checks.add(message);
+                }
+            }
+        } catch (EOFException e) {
+            Logger.info("Server closed the connection, exiting");
+        } catch (IOException e) {
+            Logger.error("Could not read from server", e);
+        }
+        checks.add(EXIT);
+    }
+
+    /**
+     * Parses and type checks the files of {@code check} like {@link OpenJMLDiagnosticHandler} does in process, or
+     * verifies its target like {@link Verifier} does.
+     */
+    WorkerProtocol.Done check(WorkerProtocol.Check check) {
+        Map<String, Set<String>> references = new HashMap<>();
+        String status = null;
+        Listener listener = new Listener(check.report);
+        try (OpenJmlContextPool.Lease lease = contexts.acquire(listener)) {
+            IAPI api = lease.api();
+            if (!check.sourcepath.isEmpty()) {
+                api.addOptions("-sourcepath", String.join(File.pathSeparator, check.sourcepath));
+            }
+            if (!check.options.isEmpty()) {
+                api.addOptions(check.options.toArray(new String[0]));
+            }
+            JavaFileObject[] sources = new JavaFileObject[check.uris.size()];
+            for (int i = 0; i < sources.length; i++) {
+                String text = check.texts.get(i);
+                sources[i] = text != null
+                        ? new DocumentStore.BufferFileObject(URI.create(check.uris.get(i)), text, 0)
+                        : api.makeJFOfromFile(new File(check.paths.get(i)));
+            }
+            checkCancelled(check);
+            if (check.verify != null) {
+                // the parse and type errors are reported by the checks already
+                listener.muted = true;
+                status = Verifier.esc(api, sources[0], check.verify, () -> listener.muted = false,
+                        () -> cancelled == check.id, message -> {
+                        });
+                status = status != null ? status : "not found";
+                checkCancelled(check);
+                return done(check, references, status);
+            }
+            List<JmlCompilationUnit> units = api.parseFiles(sources);
+            checkCancelled(check);
+            api.typecheck(units);
+            checkCancelled(check);
+            for (JmlCompilationUnit unit : units) {
+                references.put(OpenJMLDiagnosticHandler.uriOf(unit.sourcefile),
+                        DependencyGraph.collectReferences(unit));
+            }
+        } catch (CancellationException e) {
+            references.clear();
+            status = null;
+        } catch (UncheckedIOException e) {
+            throw e;
+        } catch (Exception e) {
+            Logger.error("Catched", e);
+            status = check.verify != null ? "failed: " + e.getMessage() : null;
+        } catch (StackOverflowError e) {
+            Logger.error("Catched!", e);
+            status = check.verify != null ? "failed: stack overflow" : null;
+        }
+        return done(check, references, status);
+    }
+
+    private static WorkerProtocol.Done done(WorkerProtocol.Check check, Map<String, Set<String>> references,
+                                            String status) {
+        Runtime runtime = Runtime.getRuntime();
+        return new WorkerProtocol.Done(check.id, references, runtime.totalMemory() - runtime.freeMemory(), status);
+    }
+
+    private void checkCancelled(WorkerProtocol.Check check) {
+        if (cancelled == check.id) {
+            throw new CancellationException();
+        }
+    }
+
+    /**
+     * Writes the diagnostics of a check to the server, flushing whenever OpenJML moves on to the next file.
+     */
+    private class Listener implements DiagnosticListener<JavaFileObject> {
+        private final Set<String> report;
+        private String last;
+        private LineIndex lines;
+        /**
+         * Whether diagnostics are dropped, e.g. those of the type check before a verification.
+         */
+        volatile boolean muted = false;
+
+        Listener(Set<String> report) {
+            this.report = report;
+        }
+
+        @Override
+        public void report(Diagnostic<? extends JavaFileObject> diagnostic) {
+            String uri = diagnostic.getSource() == null ? null
+                    : OpenJMLDiagnosticHandler.uriOf(diagnostic.getSource());
+            if (muted || report != null && (uri == null || !report.contains(uri))) {
+                return;
+            }
+            try {
+                if (last != null && !last.equals(uri)) {
+                    out.flush();
+                }
+                if (uri != null && !uri.equals(last)) {
+                    lines = LineIndex.of(diagnostic.getSource());
+                }
+                last = uri;
+                WorkerProtocol.write(out, uri, StoredDiagnostic.of(diagnostic, null, uri != null ? lines : null));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+}
@@ -4,6 +4,8 @@ import org.eclipse.lsp4j.*;
 import org.eclipse.lsp4j.services.WorkspaceService;
 import org.tinylog.Logger;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.CompletableFuture;
 
 /**
@@ -20,29 +22,58 @@ public class OpenJmlWorkspaceService implements WorkspaceService {
     @Override
     public void didChangeConfiguration(DidChangeConfigurationParams params) {
         Logger.info("OpenJmlWorkspaceService.didChangeConfiguration");
+        server.settings = OpenJmlSettings.from(params.getSettings());
+        server.diagnosticHandler.settingsChanged();
         server.diagnosticHandler.invalidateAllResults();
     }
 
     @Override
     public void didChangeWatchedFiles(DidChangeWatchedFilesParams params) {
-        Logger.info("OpenJmlWorkspaceService.didChangeWatchedFiles");
+        Logger.debug("didChangeWatchedFiles ({} changes)", params.getChanges().size());
+        // consecutive events of one type are applied together, e.g. those of a branch switch
+        FileChangeType type = null;
+        List<String> uris = new ArrayList<>();
         for (FileEvent change : params.getChanges()) {
-            switch (change.getType()) {
-                case Changed:
-                    server.diagnosticHandler.invalidate(change.getUri());
-                    break;
-                case Deleted:
-                    server.diagnosticHandler.remove(change.getUri());
-                    break;
-                case Created:
-                    break;
+            if (change.getType() != type) {
+                apply(type, uris);
+                type = change.getType();
+                uris = new ArrayList<>();
             }
+            uris.add(change.getUri());
         }
+        apply(type, uris);
+    }
+
+    private void apply(FileChangeType type, List<String> uris) {
+        if (type == null || uris.isEmpty()) {
+            return;
+        }
+        switch (type) {
+            case Changed:
+                server.diagnosticHandler.invalidate(uris);
+                break;
+            case Deleted:
+                server.diagnosticHandler.remove(uris);
+                break;
+            case Created:
+                server.diagnosticHandler.created(uris);
+                break;
+        }
+    }
+
+    @Override
+    public CompletableFuture<Object> executeCommand(ExecuteCommandParams params) {
+        Logger.debug("executeCommand {}", params.getCommand());
+        if (Verifier.COMMAND.equals(params.getCommand())) {
+            return server.diagnosticHandler.verifier.execute(params.getArguments(), params.getWorkDoneToken());
+        }
+        return CompletableFuture.completedFuture(null);
     }
 
     @Override
     public CompletableFuture<WorkspaceDiagnosticReport> diagnostic(WorkspaceDiagnosticParams params) {
-        Logger.info(params);
-        return server.diagnosticHandler.completeDiagnostics();
+        Logger.debug("workspace diagnostic");
+        return server.diagnosticHandler.completeDiagnostics(params.getPreviousResultIds(),
+                params.getPartialResultToken());
     }
 }
@@ -0,0 +1,311 @@
+package com.github.wadoon.openjmllsp;
+
+import org.tinylog.Logger;
+
+import javax.tools.Diagnostic;
+import javax.tools.JavaFileObject;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * On-disk cache of diagnostics, surviving server restarts.
+ * <p>
+ * Entries are content-addressed: the key of a file is the SHA-256 over the OpenJML version, the JDK and class path,
+ * the source path of the workspace, the uri and content hash of the file, and the uris and content hashes of all units
+ * it transitively depends on. Each entry is stored in its own file in a compact binary format. Entries are small and
+ * read into the heap, not mapped, as a live mapping would keep the file from being deleted or replaced on Windows.
+ * <p>
+ * The least recently used entries are evicted when the entries grow beyond the size bound. The time of use is the
+ * modification time of the entry file. Reads only note it in memory; it is written in batches, and before evicting.
+ * <p>
+ * The dependency graph is stored alongside, as the keys cannot be computed without it.
+ */
+class PersistentDiagnosticCache {
+    private static final int MAGIC = 0x4f4a4d4c; // OJML
+    private static final int FORMAT_VERSION = 1;
+    private static final Diagnostic.Kind[] KINDS = Diagnostic.Kind.values();
+    private static final int TOUCH_BATCH = 256;
+
+    private final Path directory;
+    private final long maxBytes;
+    private final String fingerprint;
+    /**
+     * Total size of the entry files.
+     */
+    private final AtomicLong size = new AtomicLong();
+    /**
+     * Time of the last read of the entries read since the last {@link #flushUses()}.
+     */
+    private final Map<Path, Long> uses = new ConcurrentHashMap<>();
+
+    /**
+     * @param fingerprint OpenJML version, JDK and class path; entries of other fingerprints are never hit
+     */
+    PersistentDiagnosticCache(Path directory, long maxBytes, String fingerprint) throws IOException {
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+        this.fingerprint = fingerprint;
+        Files.createDirectories(directory);
+        try (Stream<Path> files = Files.list(directory)) {
+            size.set(files.filter(PersistentDiagnosticCache::isEntry).mapToLong(it -> it.toFile().length()).sum());
+        }
+    }
+
+    /**
+     * Whether {@code file} holds an entry, rather than a dependency graph or a file being written.
+     */
+    private static boolean isEntry(Path file) {
+        String name = file.getFileName().toString();
+        return !name.startsWith("graph-") && !name.startsWith("tmp");
+    }
+
+    /**
+     * @param sourcepath the source roots OpenJML resolves types in, which decide whether a missing type is found
+     */
+    public String key(String sourcepath, String uri, long contentHash, SortedMap<String, Long> dependencyHashes) {
+        MessageDigest digest = sha256();
+        update(digest, fingerprint);
+        update(digest, sourcepath);
+        update(digest, uri);
+        update(digest, Long.toHexString(contentHash));
+        for (Map.Entry<String, Long> dependency : dependencyHashes.entrySet()) {
+            update(digest, dependency.getKey());
+            update(digest, Long.toHexString(dependency.getValue()));
+        }
+        return toHex(digest.digest());
+    }
+
+    /**
+     * The diagnostics stored under {@code key}, or null on a miss.
+     */
+    public List<Diagnostic<? extends JavaFileObject>> get(String key, String uri) {
+        Path file = directory.resolve(key);
+        if (!Files.exists(file)) {
+            return null;
+        }
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(file));
+            if (buffer.getInt() != MAGIC || buffer.getInt() != FORMAT_VERSION) {
+                return null;
+            }
+            JavaFileObject source = StoredDiagnostic.sourceOf(uri);
+            int count = buffer.getInt();
+            List<Diagnostic<? extends JavaFileObject>> diagnostics = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                Diagnostic.Kind kind = KINDS[buffer.get()];
+                long position = buffer.getLong();
+                long start = buffer.getLong();
+                long end = buffer.getLong();
+                long line = buffer.getLong();
+                long column = buffer.getLong();
+                String code = getString(buffer);
+                String message = getString(buffer);
+                diagnostics.add(new StoredDiagnostic(kind, source, position, start, end, line, column, code, message));
+            }
+            uses.put(file, System.currentTimeMillis());
+            if (uses.size() >= TOUCH_BATCH) {
+                flushUses();
+            }
+            return diagnostics;
+        } catch (IOException | RuntimeException e) {
+            Logger.warn("Could not read cache entry {}: {}", file, e);
+            return null;
+        }
+    }
+
+    public void put(String key, List<? extends Diagnostic<? extends JavaFileObject>> diagnostics) {
+        Path file = directory.resolve(key);
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 + 128 * diagnostics.size());
+            try (DataOutputStream out = new DataOutputStream(bytes)) {
+                out.writeInt(MAGIC);
+                out.writeInt(FORMAT_VERSION);
+                out.writeInt(diagnostics.size());
+                for (Diagnostic<? extends JavaFileObject> d : diagnostics) {
+                    StoredDiagnostic s = StoredDiagnostic.of(d, null);
+                    out.writeByte(s.kind.ordinal());
+                    out.writeLong(s.position);
+                    out.writeLong(s.startPosition);
+                    out.writeLong(s.endPosition);
+                    out.writeLong(s.lineNumber);
+                    out.writeLong(s.columnNumber);
+                    putString(out, s.code);
+                    putString(out, s.message);
+                }
+            }
+            long old = file.toFile().length();
+            write(file, bytes.toByteArray());
+            uses.remove(file);
+            size.addAndGet(bytes.size() - old);
+            if (size.get() > maxBytes) {
+                evict();
+            }
+        } catch (IOException e) {
+            Logger.warn("Could not write cache entry {}: {}", file, e);
+        }
+    }
+
+    /**
+     * Deletes the least recently used entries until the cache has shrunk to 3/4 of its bound.
+     */
+    private synchronized void evict() {
+        flushUses();
+        try (Stream<Path> files = Files.list(directory)) {
+            List<Path> entries = files.filter(PersistentDiagnosticCache::isEntry)
+                    .sorted(Comparator.comparingLong(it -> it.toFile().lastModified()))
+                    .collect(Collectors.toList());
+            for (Path entry : entries) {
+                if (size.get() <= maxBytes * 3 / 4) break;
+                long length = entry.toFile().length();
+                if (Files.deleteIfExists(entry)) {
+                    size.addAndGet(-length);
+                }
+            }
+        } catch (IOException e) {
+            Logger.warn("Could not evict cache entries: {}", e);
+        }
+    }
+
+    /**
+     * Writes the noted times of use to the entry files.
+     */
+    synchronized void flushUses() {
+        for (Iterator<Map.Entry<Path, Long>> it = uses.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<Path, Long> use = it.next();
+            it.remove();
+            try {
+                Files.setLastModifiedTime(use.getKey(), FileTime.fromMillis(use.getValue()));
+            } catch (NoSuchFileException ignored) {
+                // evicted meanwhile
+            } catch (IOException e) {
+                Logger.warn("Could not touch cache entry {}: {}", use.getKey(), e);
+            }
+        }
+    }
+
+    /**
+     * Stores the dependency graph of the given workspace.
+     */
+    public void putGraph(String workspace, Map<String, Set<String>> graph) {
+        Path file = directory.resolve("graph-" + toHex(sha256(workspace)));
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            try (DataOutputStream out = new DataOutputStream(bytes)) {
+                out.writeInt(MAGIC);
+                out.writeInt(FORMAT_VERSION);
+                out.writeInt(graph.size());
+                for (Map.Entry<String, Set<String>> node : graph.entrySet()) {
+                    putString(out, node.getKey());
+                    out.writeInt(node.getValue().size());
+                    for (String dependency : node.getValue()) {
+                        putString(out, dependency);
+                    }
+                }
+            }
+            write(file, bytes.toByteArray());
+        } catch (IOException e) {
+            Logger.warn("Could not write dependency graph {}: {}", file, e);
+        }
+    }
+
+    /**
+     * Loads the dependency graph of the given workspace, or returns an empty map.
+     */
+    public Map<String, Set<String>> getGraph(String workspace) {
+        Path file = directory.resolve("graph-" + toHex(sha256(workspace)));
+        Map<String, Set<String>> graph = new HashMap<>();
+        if (!Files.exists(file)) {
+            return graph;
+        }
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(file));
+            if (buffer.getInt() != MAGIC || buffer.getInt() != FORMAT_VERSION) {
+                return graph;
+            }
+            int nodes = buffer.getInt();
+            for (int i = 0; i < nodes; i++) {
+                String uri = getString(buffer);
+                int count = buffer.getInt();
+                Set<String> dependencies = new HashSet<>(count);
+                for (int j = 0; j < count; j++) {
+                    dependencies.add(getString(buffer));
+                }
+                graph.put(uri, dependencies);
+            }
+        } catch (IOException | RuntimeException e) {
+            Logger.warn("Could not read dependency graph {}: {}", file, e);
+            graph.clear();
+        }
+        return graph;
+    }
+
+    /**
+     * Writes to a temporary file first, so that readers never see half-written entries.
+     */
+    private void write(Path file, byte[] content) throws IOException {
+        Path tmp = Files.createTempFile(directory, "tmp", null);
+        try {
+            Files.write(tmp, content);
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    private static void putString(DataOutputStream out, String s) throws IOException {
+        if (s == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String getString(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static byte[] sha256(String s) {
+        MessageDigest digest = sha256();
+        update(digest, s);
+        return digest.digest();
+    }
+
+    private static void update(MessageDigest digest, String s) {
+        digest.update(s.getBytes(StandardCharsets.UTF_8));
+        digest.update((byte) 0);
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,215 @@
+package com.github.wadoon.openjmllsp;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Text buffer for incremental edits.
+ * <p>
+ * The text is a sequence of pieces, each referring to a span of the original text or of an append-only buffer that
+ * holds all inserted text. An edit only splits pieces and appends the inserted text, it never copies the document.
+ * Pieces remember their number of line breaks, so LSP positions are resolved without scanning the skipped pieces.
+ * Lines end at {@code \n}, {@code \r\n} or {@code \r}, by the rule of {@link LineIndex}; a {@code \r\n} may span two
+ * pieces. Characters are counted in UTF-16 code units, as in Java strings and in LSP.
+ */
+class PieceTable {
+    private static final int MAX_PIECES = 1024;
+
+    private String original;
+    private final StringBuilder added = new StringBuilder();
+    private final List<Piece> pieces = new ArrayList<>();
+    private int length;
+    private String text;
+
+    PieceTable(String text) {
+        reset(text);
+    }
+
+    /**
+     * Replaces the whole content.
+     */
+    public void reset(String text) {
+        original = text;
+        added.setLength(0);
+        pieces.clear();
+        if (!text.isEmpty()) {
+            pieces.add(new Piece(false, 0, text.length(), countLines(text, 0, text.length())));
+        }
+        length = text.length();
+        this.text = text;
+    }
+
+    public int length() {
+        return length;
+    }
+
+    /**
+     * Replaces {@code count} characters at {@code offset} by {@code insert}.
+     */
+    public void replace(int offset, int count, String insert) {
+        if (offset < 0 || count < 0 || offset + count > length) {
+            throw new IndexOutOfBoundsException("replace " + offset + "+" + count + " in " + length);
+        }
+        text = null;
+        int first = split(offset);
+        int last = split(offset + count);
+        pieces.subList(first, last).clear();
+        if (!insert.isEmpty()) {
+            Piece previous = first > 0 ? pieces.get(first - 1) : null;
+            int lines = countLines(insert, 0, insert.length());
+            if (previous != null && previous.added && previous.start + previous.length == added.length()) {
+                // typing continues directly after the last insertion
+                previous.length += insert.length();
+                previous.lines += lines - (joinsLineBreak(added, added.length(), insert, 0) ? 1 : 0);
+            } else {
+                pieces.add(first, new Piece(true, added.length(), insert.length(), lines));
+            }
+            added.append(insert);
+        }
+        length += insert.length() - count;
+        if (pieces.size() > MAX_PIECES) {
+            reset(toString());
+        }
+    }
+
+    /**
+     * Splits the piece containing {@code offset} such that a piece starts at {@code offset}.
+     *
+     * @return the index of the piece starting at {@code offset}
+     */
+    private int split(int offset) {
+        int pos = 0;
+        for (int i = 0; i < pieces.size(); i++) {
+            Piece piece = pieces.get(i);
+            if (offset == pos) {
+                return i;
+            }
+            if (offset < pos + piece.length) {
+                int head = offset - pos;
+                CharSequence buffer = buffer(piece);
+                int headLines = countLines(buffer, piece.start, piece.start + head);
+                // the tail counts on its own the \n of a \r\n split here
+                int tailLines = piece.lines - headLines
+                        + (joinsLineBreak(buffer, piece.start + head, buffer, piece.start + head) ? 1 : 0);
+                Piece tail = new Piece(piece.added, piece.start + head, piece.length - head, tailLines);
+                piece.length = head;
+                piece.lines = headLines;
+                pieces.add(i + 1, tail);
+                return i + 1;
+            }
+            pos += piece.length;
+        }
+        return pieces.size();
+    }
+
+    /**
+     * Offset of the given LSP position. Positions behind the end of a line or of the text are clamped.
+     */
+    public int offsetAt(int line, int character) {
+        int pos = 0;
+        int remaining = line;
+        int i = 0;
+        for (; i < pieces.size() && remaining > lines(i); i++) {
+            remaining -= lines(i);
+            pos += pieces.get(i).length;
+        }
+        int column = 0;
+        char previous = i > 0 ? lastChar(pieces.get(i - 1)) : 0;
+        for (; i < pieces.size(); i++) {
+            Piece piece = pieces.get(i);
+            CharSequence buffer = buffer(piece);
+            for (int j = piece.start; j < piece.start + piece.length; j++) {
+                char c = buffer.charAt(j);
+                if (LineIndex.continuesLineBreak(previous, c)) {
+                    // counted at the \r
+                } else if (remaining > 0) {
+                    if (LineIndex.endsLine(previous, c)) remaining--;
+                } else if (column == character || LineIndex.endsLine(previous, c)) {
+                    return pos;
+                } else {
+                    column++;
+                }
+                previous = c;
+                pos++;
+            }
+        }
+        return pos;
+    }
+
+    /**
+     * The number of lines ended in piece {@code i}, which is one less than it counts on its own if it starts with the
+     * {@code \n} of a {@code \r\n} that started in the piece before.
+     */
+    private int lines(int i) {
+        Piece piece = pieces.get(i);
+        if (i == 0) {
+            return piece.lines;
+        }
+        Piece before = pieces.get(i - 1);
+        boolean joined = joinsLineBreak(buffer(before), before.start + before.length, buffer(piece), piece.start);
+        return piece.lines - (joined ? 1 : 0);
+    }
+
+    private char lastChar(Piece piece) {
+        return buffer(piece).charAt(piece.start + piece.length - 1);
+    }
+
+    /**
+     * Whether the text ending at {@code end} of {@code a} and the text starting at {@code start} of {@code b} join to a
+     * {@code \r\n}.
+     */
+    private static boolean joinsLineBreak(CharSequence a, int end, CharSequence b, int start) {
+        return end > 0 && start < b.length() && LineIndex.continuesLineBreak(a.charAt(end - 1), b.charAt(start));
+    }
+
+    private CharSequence buffer(Piece piece) {
+        return piece.added ? added : original;
+    }
+
+    /**
+     * The number of lines ended between {@code from} and {@code to}, taking the text on its own.
+     */
+    private static int countLines(CharSequence s, int from, int to) {
+        int n = 0;
+        char previous = 0;
+        for (int i = from; i < to; i++) {
+            char c = s.charAt(i);
+            if (LineIndex.endsLine(previous, c)) n++;
+            previous = c;
+        }
+        return n;
+    }
+
+    /**
+     * The current content. The result is cached until the next edit.
+     */
+    @Override
+    public String toString() {
+        if (text == null) {
+            StringBuilder sb = new StringBuilder(length);
+            for (Piece piece : pieces) {
+                if (piece.added) {
+                    sb.append(added, piece.start, piece.start + piece.length);
+                } else {
+                    sb.append(original, piece.start, piece.start + piece.length);
+                }
+            }
+            text = sb.toString();
+        }
+        return text;
+    }
+
+    private static class Piece {
+        final boolean added;
+        final int start;
+        int length;
+        int lines;
+
+        Piece(boolean added, int start, int length, int lines) {
+            this.added = added;
+            this.start = start;
+            this.length = length;
+            this.lines = lines;
+        }
+    }
+}
@@ -0,0 +1,202 @@
+package com.github.wadoon.openjmllsp;
+
+import org.tinylog.Logger;
+
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Predicate;
+
+/**
+ * State of a workspace that is shared by all sessions opened on the same workspace folders, e.g. by several editor
+ * windows connected to one server in daemon mode: the warm OpenJML contexts and worker processes, the index of the
+ * files on disk, the source index, the diagnostics with the dependency graph they were computed from and the
+ * verification results. A stored diagnostic is only used while the content it was computed for is the content the
+ * session sees, so results of another session's unsaved buffers are rechecked. Only the result ids a client has are
+ * kept per session.
+ * <p>
+ * The number of OpenJML runs executing at the same time is bounded across all workspaces.
+ */
+class SharedWorkspace {
+    private static final Map<String, SharedWorkspace> OPEN = new HashMap<>();
+    private static final Map<Path, PersistentDiagnosticCache> PERSISTENT_CACHES = new HashMap<>();
+
+    private static final int MAX_VERIFICATIONS = 4096;
+
+    private static final ResizableSemaphore CHECKS = new ResizableSemaphore(Integer.MAX_VALUE);
+    private static int maxConcurrentChecks = Integer.MAX_VALUE;
+
+    final String key;
+    final OpenJmlContextPool contexts = new OpenJmlContextPool(0);
+    final WorkerPool workers = new WorkerPool();
+    final FileStateIndex fileStates = new FileStateIndex();
+    /**
+     * Diagnostics of the workspace; those of documents open in any session are kept from eviction.
+     */
+    final DiagnosticStore diagnostics = new DiagnosticStore(this::isOpen);
+    final DependencyGraph dependencies = new DependencyGraph();
+    /**
+     * Whether a session has queued the preloading of the specifications into {@link #contexts}.
+     */
+    final AtomicBoolean specsPreloaded = new AtomicBoolean();
+    final Map<String, Verifier.Result> verifications = Collections.synchronizedMap(
+            new LinkedHashMap<String, Verifier.Result>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Verifier.Result> eldest) {
+                    return size() > MAX_VERIFICATIONS;
+                }
+            });
+    /**
+     * Whether a document is open, one test for each session.
+     */
+    private final List<Predicate<String>> openDocuments = new CopyOnWriteArrayList<>();
+    private SourceIndex sources;
+    private boolean watching = false;
+
+    private SharedWorkspace(String key) {
+        this.key = key;
+    }
+
+    /**
+     * The shared state of the workspace {@code key}, created if no session has it open.
+     *
+     * @param isOpen whether a document is open in the new session
+     */
+    static synchronized SharedWorkspace open(String key, Predicate<String> isOpen) {
+        SharedWorkspace workspace = OPEN.computeIfAbsent(key, SharedWorkspace::new);
+        workspace.openDocuments.add(isOpen);
+        return workspace;
+    }
+
+    /**
+     * Closes the session opened with {@code isOpen}. The state is dropped when the last session is closed.
+     */
+    void release(Predicate<String> isOpen) {
+        synchronized (SharedWorkspace.class) {
+            openDocuments.remove(isOpen);
+            if (!openDocuments.isEmpty()) {
+                return;
+            }
+            OPEN.remove(key);
+        }
+        Logger.info("Last session on {} closed", key);
+        contexts.close();
+        workers.close();
+        fileStates.close();
+    }
+
+    /**
+     * The index of the Java files in the workspace folders, built on first use.
+     */
+    synchronized SourceIndex sources(List<Path> folders, List<String> exclude, Metrics metrics) {
+        if (sources == null) {
+            Metrics.Timer timer = metrics.time("sources.scan");
+            try {
+                sources = new SourceIndex(folders, exclude).scan();
+            } finally {
+                timer.stop();
+            }
+        }
+        return sources;
+    }
+
+    private boolean isOpen(String uri) {
+        for (Predicate<String> session : openDocuments) {
+            if (session.test(uri)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    synchronized void resetSources() {
+        sources = null;
+    }
+
+    /**
+     * Starts watching the workspace folders, unless another session did already.
+     */
+    synchronized void watch(List<Path> folders, List<String> exclude) {
+        if (!watching) {
+            watching = true;
+            fileStates.watch(folders, exclude);
+        }
+    }
+
+    /**
+     * The persistent cache in the configured directory, shared by all workspaces using that directory.
+     *
+     * @throws Exception if the cache directory cannot be opened
+     */
+    static synchronized PersistentDiagnosticCache persistentCache(OpenJmlSettings settings) throws Exception {
+        Path directory = settings.cacheDirectory().resolve("diagnostics");
+        PersistentDiagnosticCache cache = PERSISTENT_CACHES.get(directory);
+        if (cache == null) {
+            String fingerprint = String.join("\0", OpenJMLLanguageServer.getOpenJMLVersion(),
+                    System.getProperty("java.home"), System.getProperty("java.version"),
+                    System.getProperty("java.class.path"));
+            cache = new PersistentDiagnosticCache(directory, settings.cacheSizeMb * 1024L * 1024L, fingerprint);
+            PERSISTENT_CACHES.put(directory, cache);
+        }
+        return cache;
+    }
+
+    /**
+     * Bounds the number of OpenJML runs executing at the same time, over all sessions.
+     */
+    static synchronized void setMaxConcurrentChecks(int max) {
+        int bound = max <= 0 ? Integer.MAX_VALUE : max;
+        if (bound > maxConcurrentChecks) {
+            CHECKS.release(bound - maxConcurrentChecks);
+        } else if (bound < maxConcurrentChecks) {
+            CHECKS.reducePermits(maxConcurrentChecks - bound);
+        }
+        maxConcurrentChecks = bound;
+    }
+
+    /**
+     * Waits for a check slot, aborting as soon as {@code checkCancelled} throws a {@link CancellationException}, e.g.
+     * {@link DiagnosticScheduler.Run#checkCancelled()}. Verifications take slots, too. The slot has to be handed back
+     * with {@link #endCheck()}.
+     */
+    static void beginCheck(Runnable checkCancelled) {
+        try {
+            while (!CHECKS.tryAcquire(50, TimeUnit.MILLISECONDS)) {
+                checkCancelled.run();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CancellationException();
+        }
+    }
+
+    static void endCheck() {
+        CHECKS.release();
+    }
+
+    /**
+     * Number of OpenJML runs waiting for a slot.
+     */
+    static int waitingChecks() {
+        return CHECKS.getQueueLength();
+    }
+
+    private static class ResizableSemaphore extends Semaphore {
+        ResizableSemaphore(int permits) {
+            super(permits, true);
+        }
+
+        @Override
+        protected void reducePermits(int reduction) {
+            super.reducePermits(reduction);
+        }
+    }
+}
@@ -0,0 +1,262 @@
+package com.github.wadoon.openjmllsp;
+
+import org.tinylog.Logger;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+/**
+ * The Java files of the workspace folders and the source roots they belong to.
+ * <p>
+ * The folders are scanned once, in parallel, skipping excluded directories. Afterwards the index is kept up to date
+ * by {@link #created(Path)} and {@link #deleted(Path)}. The source root of a directory is derived from the package
+ * declaration of one of its files.
+ */
+class SourceIndex {
+    /**
+     * Start of a line that cannot precede the package declaration.
+     */
+    private static final Pattern DECLARATION =
+            Pattern.compile("(import|public|protected|private|abstract|final|class|interface|enum|record)\\b");
+
+    private final List<Path> folders;
+    private final List<PathMatcher> excludes;
+
+    private final Set<Path> files = ConcurrentHashMap.newKeySet();
+    /**
+     * Source root of each directory containing Java files.
+     */
+    private final Map<Path, Path> sourceRoots = new ConcurrentHashMap<>();
+    private volatile File[] snapshot;
+
+    SourceIndex(List<Path> folders, List<String> exclude) {
+        this.folders = folders;
+        this.excludes = excludes(exclude);
+    }
+
+    /**
+     * Matchers for the exclude globs of the settings.
+     */
+    static List<PathMatcher> excludes(List<String> exclude) {
+        FileSystem fs = FileSystems.getDefault();
+        return exclude.stream().map(it -> fs.getPathMatcher("glob:" + it)).collect(Collectors.toList());
+    }
+
+    /**
+     * Scans the workspace folders.
+     */
+    public SourceIndex scan() {
+        long start = System.currentTimeMillis();
+        folders.stream().map(it -> ForkJoinPool.commonPool().submit(new Scan(it, it)))
+                .collect(Collectors.toList())
+                .forEach(ForkJoinTask::join);
+        snapshot = null;
+        Logger.info("Found {} Java files in {} source roots in {} ms", files.size(), sourceRoots().size(),
+                System.currentTimeMillis() - start);
+        return this;
+    }
+
+    /**
+     * The Java files, in a stable order.
+     */
+    public File[] files() {
+        File[] f = snapshot;
+        if (f == null) {
+            f = files.stream().sorted().map(Path::toFile).toArray(File[]::new);
+            snapshot = f;
+        }
+        return f;
+    }
+
+    public boolean contains(Path file) {
+        return files.contains(file);
+    }
+
+    /**
+     * Splits {@code files}, sorted by path, into at most {@code count} parts of similar size without splitting a
+     * directory. Used to check a workspace in parallel before its dependencies are known: the files of a package
+     * tend to refer to each other, and everything else is resolved through the source path.
+     */
+    static List<List<File>> partition(File[] files, int count) {
+        int target = (files.length + count - 1) / Math.max(1, count);
+        List<List<File>> parts = new ArrayList<>();
+        List<File> current = new ArrayList<>();
+        for (int i = 0; i < files.length; i++) {
+            File file = files[i];
+            boolean newDirectory = i == 0 || !Objects.equals(file.getParent(), files[i - 1].getParent());
+            if (newDirectory && current.size() >= target && parts.size() < count - 1) {
+                parts.add(current);
+                current = new ArrayList<>();
+            }
+            current.add(file);
+        }
+        if (!current.isEmpty()) {
+            parts.add(current);
+        }
+        return parts;
+    }
+
+    public List<Path> sourceRoots() {
+        return sourceRoots.values().stream().distinct().sorted().collect(Collectors.toList());
+    }
+
+    /**
+     * Adds a created Java file, or the Java files below a created directory.
+     */
+    public void created(Path path) {
+        Path folder = folderOf(path);
+        if (folder == null) {
+            return;
+        }
+        if (Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
+            if (!isExcluded(folder, path)) {
+                ForkJoinPool.commonPool().invoke(new Scan(folder, path));
+            }
+        } else if (isJavaFile(path) && !isExcluded(folder, path.getParent())) {
+            files.add(path);
+            sourceRoots.computeIfAbsent(path.getParent(), it -> getSourceRoot(path));
+        }
+        snapshot = null;
+    }
+
+    /**
+     * Removes a deleted Java file, or everything below a deleted directory.
+     */
+    public void deleted(Path path) {
+        if (!files.remove(path)) {
+            files.removeIf(it -> it.startsWith(path));
+        }
+        Path directory = isJavaFile(path) ? path.getParent() : path;
+        sourceRoots.keySet().removeIf(it -> it.startsWith(directory)
+                && files.stream().noneMatch(file -> it.equals(file.getParent())));
+        snapshot = null;
+    }
+
+    private Path folderOf(Path path) {
+        return folders.stream().filter(path::startsWith).findFirst().orElse(null);
+    }
+
+    private boolean isExcluded(Path folder, Path directory) {
+        return isExcluded(excludes, folder, directory);
+    }
+
+    /**
+     * Whether {@code directory} or one of its parents below the workspace folder {@code folder} is excluded. A glob
+     * matches the name of a directory or its path relative to the folder.
+     */
+    static boolean isExcluded(List<PathMatcher> excludes, Path folder, Path directory) {
+        if (directory.equals(folder)) {
+            return false;
+        }
+        for (Path p = directory; p != null && !p.equals(folder); p = p.getParent()) {
+            Path name = p.getFileName();
+            Path relative = folder.relativize(p);
+            for (PathMatcher exclude : excludes) {
+                if (exclude.matches(name) || exclude.matches(relative)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static boolean isJavaFile(Path path) {
+        return path.getFileName() != null && path.getFileName().toString().endsWith(".java");
+    }
+
+    /**
+     * The source root of {@code javaFile}: its directory, moved up by one level per package name segment. Falls back
+     * to the directory if the package does not match the directory layout.
+     */
+    static Path getSourceRoot(Path javaFile) {
+        Path directory = javaFile.getParent();
+        String pkg = packageOf(javaFile);
+        if (pkg == null) {
+            return directory;
+        }
+        Path root = goUpwards(directory, countDots(pkg) + 1);
+        return root != null && root.resolve(pkg.replace('.', File.separatorChar)).equals(directory) ? root : directory;
+    }
+
+    /**
+     * The package declared by {@code javaFile}, or null for the default package. Only the header of the file is read.
+     */
+    private static String packageOf(Path javaFile) {
+        try (BufferedReader in = Files.newBufferedReader(javaFile, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                String trimmed = line.trim();
+                if (trimmed.startsWith("package ")) {
+                    int end = trimmed.indexOf(';');
+                    return trimmed.substring("package ".length(), end < 0 ? trimmed.length() : end).trim();
+                }
+                if (DECLARATION.matcher(trimmed).lookingAt()) {
+                    return null;
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            Logger.warn("Could not read package of {}: {}", javaFile, e);
+        }
+        return null;
+    }
+
+    private static Path goUpwards(Path path, int count) {
+        for (int i = 0; i < count && path != null; i++) {
+            path = path.getParent();
+        }
+        return path;
+    }
+
+    private static int countDots(String it) {
+        return (int) it.chars().filter(c -> c == '.').count();
+    }
+
+    /**
+     * Scans a directory; subdirectories are scanned by forked tasks.
+     */
+    private class Scan extends RecursiveAction {
+        private final Path folder;
+        private final Path directory;
+
+        Scan(Path folder, Path directory) {
+            this.folder = folder;
+            this.directory = directory;
+        }
+
+        @Override
+        protected void compute() {
+            List<Scan> subdirectories = new ArrayList<>();
+            Path firstJavaFile = null;
+            try (DirectoryStream<Path> entries = Files.newDirectoryStream(directory)) {
+                for (Path entry : entries) {
+                    if (Files.isDirectory(entry, LinkOption.NOFOLLOW_LINKS)) {
+                        if (!isExcluded(folder, entry)) {
+                            subdirectories.add(new Scan(folder, entry));
+                        }
+                    } else if (isJavaFile(entry)) {
+                        files.add(entry);
+                        if (firstJavaFile == null) {
+                            firstJavaFile = entry;
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                Logger.warn("Could not list {}: {}", directory, e);
+            }
+            if (firstJavaFile != null) {
+                sourceRoots.put(directory, getSourceRoot(firstJavaFile));
+            }
+            invokeAll(subdirectories);
+        }
+    }
+}
@@ -0,0 +1,276 @@
+package com.github.wadoon.openjmllsp;
+
+import org.tinylog.Logger;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32C;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Index of the JML specification library shipped with OpenJML: the types that have a {@code .jml} file, with the
+ * size of the file.
+ * <p>
+ * Scanning the library means reading through the jars on the class path, so the index is built once per library
+ * version, by {@code App --precompile-specs} (the {@code precompileSpecs} Gradle task) or at the first start of the
+ * server, and stored in a compact binary file. The file name is derived from the names
+ * and sizes of the scanned jars, so an update of OpenJML yields a new index.
+ * <p>
+ * The warm OpenJML contexts use the index to load the specifications of the library types used by the workspace
+ * before a check asks for them, see {@link OpenJmlContextPool#preload}.
+ */
+class SpecIndex {
+    private static final int MAGIC = 0x4f4a5350; // OJSP
+    private static final int FORMAT_VERSION = 1;
+    private static final String SUFFIX = ".jml";
+
+    /**
+     * Total size of the specifications loaded ahead of a check. Loading costs about as much as parsing them.
+     */
+    private static final long MAX_PRELOAD_BYTES = 4L << 20;
+
+    private static final Pattern IMPORT = Pattern.compile("^\\s*import\\s+(static\\s+)?([\\w.]+)\\s*;");
+    private static final Pattern DECLARATION = Pattern.compile(
+            "^\\s*(public\\s+|abstract\\s+|final\\s+)*(class|interface|enum|record|@interface)\\b");
+
+    /**
+     * Spec size in bytes, by fully qualified type name.
+     */
+    private final Map<String, Integer> sizes;
+
+    private SpecIndex(Map<String, Integer> sizes) {
+        this.sizes = sizes;
+    }
+
+    public int size() {
+        return sizes.size();
+    }
+
+    public boolean contains(String type) {
+        return sizes.containsKey(type);
+    }
+
+    /**
+     * The index of the library on the class path, read from {@code directory} or built and stored there.
+     */
+    static SpecIndex load(Path directory) {
+        List<Path> jars = classPath();
+        Path file = directory.resolve("specs-" + fingerprint(jars) + ".bin");
+        SpecIndex index = read(file);
+        if (index == null) {
+            long start = System.currentTimeMillis();
+            index = build(jars);
+            Logger.info("Indexed {} library specifications in {} ms", index.size(),
+                    System.currentTimeMillis() - start);
+            index.write(file);
+        }
+        return index;
+    }
+
+    /**
+     * Scans the given jars and directories for {@code .jml} files.
+     */
+    static SpecIndex build(List<Path> roots) {
+        Map<String, Integer> sizes = new HashMap<>();
+        for (Path root : roots) {
+            if (Files.isDirectory(root)) {
+                continue;
+            }
+            try (ZipFile zip = new ZipFile(root.toFile())) {
+                Enumeration<? extends ZipEntry> entries = zip.entries();
+                while (entries.hasMoreElements()) {
+                    ZipEntry entry = entries.nextElement();
+                    if (!entry.isDirectory() && entry.getName().endsWith(SUFFIX)) {
+                        sizes.putIfAbsent(typeName(entry.getName()), (int) size(zip, entry));
+                    }
+                }
+            } catch (IOException e) {
+                Logger.warn("Could not scan {} for specifications: {}", root, e);
+            }
+        }
+        return new SpecIndex(sizes);
+    }
+
+    private static long size(ZipFile zip, ZipEntry entry) throws IOException {
+        if (entry.getSize() >= 0) {
+            return entry.getSize();
+        }
+        try (InputStream in = zip.getInputStream(entry)) {
+            return in.transferTo(OutputStream.nullOutputStream());
+        }
+    }
+
+    /**
+     * The type specified by the spec file {@code path}. Leading directories that cannot be packages, like
+     * {@code specs/} or a version directory, are dropped.
+     */
+    static String typeName(String path) {
+        String[] segments = path.substring(0, path.length() - SUFFIX.length()).split("/");
+        int first = 0;
+        while (first < segments.length - 1 && (segments[first].equals("specs")
+                || !Character.isJavaIdentifierStart(segments[first].charAt(0)))) {
+            first++;
+        }
+        return String.join(".", Arrays.asList(segments).subList(first, segments.length));
+    }
+
+    /**
+     * The library types whose specifications should be loaded ahead of checks of a workspace: those of
+     * {@code java.lang}, which every unit uses, and the imported ones, most imported first.
+     *
+     * @param imports how often each type is imported by the workspace
+     */
+    public List<String> preload(Map<String, Integer> imports) {
+        List<String> candidates = new ArrayList<>();
+        sizes.keySet().stream()
+                .filter(it -> it.startsWith("java.lang.") && it.indexOf('.', "java.lang.".length()) < 0)
+                .sorted()
+                .forEach(candidates::add);
+        imports.entrySet().stream()
+                .filter(it -> sizes.containsKey(it.getKey()) && !candidates.contains(it.getKey()))
+                .sorted(Map.Entry.<String, Integer>comparingByValue().reversed()
+                        .thenComparing(Map.Entry.comparingByKey()))
+                .forEach(it -> candidates.add(it.getKey()));
+        List<String> types = new ArrayList<>();
+        long bytes = 0;
+        for (String type : candidates) {
+            bytes += sizes.get(type);
+            if (bytes > MAX_PRELOAD_BYTES) {
+                break;
+            }
+            types.add(type);
+        }
+        return types;
+    }
+
+    /**
+     * Counts the types imported by the given files. Only the import section of each file is read.
+     */
+    static Map<String, Integer> imports(File[] files) {
+        Map<String, Integer> counts = new HashMap<>();
+        for (File file : files) {
+            try (BufferedReader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+                String line;
+                while ((line = reader.readLine()) != null && !DECLARATION.matcher(line).find()) {
+                    Matcher m = IMPORT.matcher(line);
+                    if (m.find()) {
+                        String name = m.group(2);
+                        if (m.group(1) != null) {
+                            name = name.substring(0, Math.max(0, name.lastIndexOf('.')));
+                        }
+                        counts.merge(name, 1, Integer::sum);
+                    }
+                }
+            } catch (IOException e) {
+                Logger.debug("Could not read imports of {}: {}", file, e);
+            }
+        }
+        return counts;
+    }
+
+    private static List<Path> classPath() {
+        List<Path> jars = new ArrayList<>();
+        for (String entry : System.getProperty("java.class.path").split(File.pathSeparator)) {
+            if (entry.endsWith(".jar")) {
+                jars.add(Paths.get(entry));
+            }
+        }
+        return jars;
+    }
+
+    private static String fingerprint(List<Path> jars) {
+        CRC32C crc = new CRC32C();
+        crc.update(FORMAT_VERSION);
+        for (Path jar : jars) {
+            File f = jar.toFile();
+            // neither path nor time, so that the index survives copying the server jar, e.g. into the extension
+            crc.update((f.getName() + "\0" + f.length() + "\0").getBytes(StandardCharsets.UTF_8));
+        }
+        return Long.toHexString(crc.getValue());
+    }
+
+    /**
+     * Reads the index stored in {@code file}, or returns null if there is none or it cannot be read.
+     */
+    static SpecIndex read(Path file) {
+        if (!Files.exists(file)) {
+            return null;
+        }
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(file));
+            if (buffer.getInt() != MAGIC || buffer.getInt() != FORMAT_VERSION) {
+                return null;
+            }
+            int count = buffer.getInt();
+            Map<String, Integer> sizes = new LinkedHashMap<>(count * 2);
+            for (int i = 0; i < count; i++) {
+                String type = getString(buffer);
+                sizes.put(type, buffer.getInt());
+            }
+            return new SpecIndex(sizes);
+        } catch (IOException | RuntimeException e) {
+            Logger.warn("Could not read specification index {}: {}", file, e);
+            return null;
+        }
+    }
+
+    /**
+     * Stores the index in {@code file}. A temporary file is written first, so readers never see half of it.
+     */
+    void write(Path file) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(32 * sizes.size());
+            try (DataOutputStream out = new DataOutputStream(bytes)) {
+                out.writeInt(MAGIC);
+                out.writeInt(FORMAT_VERSION);
+                out.writeInt(sizes.size());
+                List<String> types = new ArrayList<>(sizes.keySet());
+                Collections.sort(types);
+                for (String type : types) {
+                    byte[] name = type.getBytes(StandardCharsets.UTF_8);
+                    out.writeInt(name.length);
+                    out.write(name);
+                    out.writeInt(sizes.get(type));
+                }
+            }
+            Files.createDirectories(file.getParent());
+            Path tmp = Files.createTempFile(file.getParent(), "tmp", null);
+            try {
+                Files.write(tmp, bytes.toByteArray());
+                Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(tmp);
+            }
+        } catch (IOException e) {
+            Logger.warn("Could not write specification index {}: {}", file, e);
+        }
+    }
+
+    private static String getString(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getInt()];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,146 @@
+package com.github.wadoon.openjmllsp;
+
+import org.eclipse.lsp4j.Position;
+
+import javax.tools.Diagnostic;
+import javax.tools.JavaFileObject;
+import javax.tools.SimpleJavaFileObject;
+import java.net.URI;
+import java.util.Locale;
+import java.util.Objects;
+
+/**
+ * A diagnostic detached from the compiler: it keeps positions, code and message, but neither the compiler context
+ * nor the source text. Used to persist diagnostics across server restarts.
+ */
+class StoredDiagnostic implements Diagnostic<JavaFileObject> {
+    final Kind kind;
+    final JavaFileObject source;
+    final long position;
+    final long startPosition;
+    final long endPosition;
+    final long lineNumber;
+    final long columnNumber;
+    final String code;
+    final String message;
+
+    StoredDiagnostic(Kind kind, JavaFileObject source, long position, long startPosition, long endPosition,
+                     long lineNumber, long columnNumber, String code, String message) {
+        this.kind = kind;
+        this.source = source;
+        this.position = position;
+        this.startPosition = startPosition;
+        this.endPosition = endPosition;
+        this.lineNumber = lineNumber;
+        this.columnNumber = columnNumber;
+        this.code = code;
+        this.message = message;
+    }
+
+    static StoredDiagnostic of(Diagnostic<? extends JavaFileObject> d, JavaFileObject source) {
+        return of(d, source, null);
+    }
+
+    /**
+     * A detached copy of {@code d} with the source {@code source}. Line and column are only kept for translating
+     * diagnostics whose file cannot be read anymore, so they are taken from {@code lines}, the index of the text
+     * {@code d} was reported for, instead of from the compiler; without an index they are unknown.
+     */
+    static StoredDiagnostic of(Diagnostic<? extends JavaFileObject> d, JavaFileObject source, LineIndex lines) {
+        if (d instanceof StoredDiagnostic) {
+            StoredDiagnostic s = (StoredDiagnostic) d;
+            return s.source == source ? s : new StoredDiagnostic(s.kind, source, s.position, s.startPosition,
+                    s.endPosition, s.lineNumber, s.columnNumber, s.code, s.message);
+        }
+        long line = NOPOS;
+        long column = NOPOS;
+        long offset = d.getStartPosition() != NOPOS ? d.getStartPosition() : d.getPosition();
+        if (lines != null && offset != NOPOS) {
+            Position position = lines.position(offset);
+            line = position.getLine() + 1;
+            column = position.getCharacter() + 1;
+        }
+        return new StoredDiagnostic(d.getKind(), source, d.getPosition(), d.getStartPosition(), d.getEndPosition(),
+                line, column, d.getCode(), d.getMessage(Locale.getDefault()));
+    }
+
+    /**
+     * A file object standing in for the source of detached diagnostics. It has no content.
+     */
+    static JavaFileObject sourceOf(String uri) {
+        return new SimpleJavaFileObject(URI.create(uri), JavaFileObject.Kind.SOURCE) {
+        };
+    }
+
+    /**
+     * Diagnostics are equal if they have the same content and their sources have the same uri.
+     */
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof StoredDiagnostic)) {
+            return false;
+        }
+        StoredDiagnostic d = (StoredDiagnostic) o;
+        return kind == d.kind && position == d.position && startPosition == d.startPosition
+                && endPosition == d.endPosition && lineNumber == d.lineNumber && columnNumber == d.columnNumber
+                && Objects.equals(code, d.code) && Objects.equals(message, d.message)
+                && Objects.equals(uri(), d.uri());
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(kind, startPosition, endPosition, code, message);
+    }
+
+    private URI uri() {
+        return source == null ? null : source.toUri();
+    }
+
+    @Override
+    public Kind getKind() {
+        return kind;
+    }
+
+    @Override
+    public JavaFileObject getSource() {
+        return source;
+    }
+
+    @Override
+    public long getPosition() {
+        return position;
+    }
+
+    @Override
+    public long getStartPosition() {
+        return startPosition;
+    }
+
+    @Override
+    public long getEndPosition() {
+        return endPosition;
+    }
+
+    @Override
+    public long getLineNumber() {
+        return lineNumber;
+    }
+
+    @Override
+    public long getColumnNumber() {
+        return columnNumber;
+    }
+
+    @Override
+    public String getCode() {
+        return code;
+    }
+
+    @Override
+    public String getMessage(Locale locale) {
+        return message;
+    }
+}
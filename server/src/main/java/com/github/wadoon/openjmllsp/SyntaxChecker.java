@@ -0,0 +1,75 @@
+package com.github.wadoon.openjmllsp;
+
+import com.github.javaparser.JavaParser;
+import com.github.javaparser.ParseResult;
+import com.github.javaparser.ParserConfiguration;
+import com.github.javaparser.Problem;
+import com.github.javaparser.TokenRange;
+import com.github.javaparser.ast.CompilationUnit;
+import org.eclipse.lsp4j.Diagnostic;
+import org.eclipse.lsp4j.DiagnosticSeverity;
+import org.eclipse.lsp4j.Position;
+import org.eclipse.lsp4j.Range;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * The first tier of checking: parses a single file with jmlparser and reports its syntax errors. This takes
+ * milliseconds regardless of the size of the workspace, so its results are shown while OpenJML, the second tier,
+ * runs the type and JML checks, whose results replace them.
+ */
+class SyntaxChecker {
+    private final ParserConfiguration configuration = new ParserConfiguration()
+            .setLanguageLevel(ParserConfiguration.LanguageLevel.JAVA_17)
+            .setAttributeComments(false);
+
+    /**
+     * The result of the last parse, which is asked for again on every pull until the second tier is done.
+     */
+    private volatile Result last;
+
+    /**
+     * The syntax errors of {@code text}, the content of {@code uri} with hash {@code hash}.
+     */
+    public List<Diagnostic> check(String uri, long hash, String text) {
+        Result result = last;
+        if (result != null && result.hash == hash && result.uri.equals(uri)) {
+            return result.diagnostics;
+        }
+        // parsers are not thread-safe, but cheap to create
+        ParseResult<CompilationUnit> parsed = new JavaParser(configuration).parse(text);
+        List<Diagnostic> diagnostics = new ArrayList<>(parsed.getProblems().size());
+        for (Problem problem : parsed.getProblems()) {
+            diagnostics.add(new Diagnostic(range(problem), problem.getMessage(), DiagnosticSeverity.Error,
+                    "openjml"));
+        }
+        last = new Result(uri, hash, Collections.unmodifiableList(diagnostics));
+        return last.diagnostics;
+    }
+
+    private static Range range(Problem problem) {
+        Optional<com.github.javaparser.Range> range = problem.getLocation().flatMap(TokenRange::toRange);
+        if (!range.isPresent()) {
+            return new Range(new Position(0, 0), new Position(0, 0));
+        }
+        com.github.javaparser.Range r = range.get();
+        // jmlparser counts lines and columns from 1 and includes the last column
+        return new Range(new Position(r.begin.line - 1, r.begin.column - 1),
+                new Position(r.end.line - 1, r.end.column));
+    }
+
+    private static final class Result {
+        final String uri;
+        final long hash;
+        final List<Diagnostic> diagnostics;
+
+        Result(String uri, long hash, List<Diagnostic> diagnostics) {
+            this.uri = uri;
+            this.hash = hash;
+            this.diagnostics = diagnostics;
+        }
+    }
+}
@@ -0,0 +1,686 @@
+package com.github.wadoon.openjmllsp;
+
+import com.github.javaparser.JavaParser;
+import com.github.javaparser.ParseResult;
+import com.github.javaparser.ParserConfiguration;
+import com.github.javaparser.ast.CompilationUnit;
+import com.github.javaparser.ast.body.CallableDeclaration;
+import com.github.javaparser.ast.body.ConstructorDeclaration;
+import com.github.javaparser.ast.body.TypeDeclaration;
+import com.google.gson.JsonPrimitive;
+import com.sun.tools.javac.code.Symbol;
+import com.sun.tools.javac.tree.JCTree;
+import org.eclipse.lsp4j.*;
+import org.eclipse.lsp4j.jsonrpc.ResponseErrorException;
+import org.eclipse.lsp4j.jsonrpc.messages.Either;
+import org.eclipse.lsp4j.jsonrpc.messages.ResponseError;
+import org.eclipse.lsp4j.jsonrpc.messages.ResponseErrorCode;
+import org.jmlspecs.openjml.IAPI;
+import org.jmlspecs.openjml.JmlTree.JmlCompilationUnit;
+import org.jmlspecs.openjml.proverinterface.IProverResult;
+import org.tinylog.Logger;
+
+import javax.tools.JavaFileObject;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+
+/**
+ * Runs OpenJML's static verification (ESC) of single methods or classes on request, offered as code actions.
+ * <p>
+ * Verification takes seconds to minutes, so it runs on its own bounded pool of workers and never delays the
+ * diagnostics. Like a check, each verification takes one of the check slots of {@link SharedWorkspace} and runs in a
+ * worker process if the {@link WorkerPool} is enabled. Jobs are started by priority, methods before classes, and each
+ * target has at most one waiting job: requesting it again while it waits joins that job. A job is cancelled when it
+ * exceeds the time limit, which is also passed to the prover for each proof, or when the user cancels its progress. As
+ * every worker drives one prover at a time, the number of solver processes is bounded by the number of workers.
+ * <p>
+ * Results are cached by the hash of the source text of the target, i.e. its body and its specifications, and
+ * published as push diagnostics of the file, separate from the pulled check results.
+ */
+class Verifier {
+    static final String COMMAND = "openjml.verify";
+
+    private static final ParserConfiguration PARSER = new ParserConfiguration()
+            .setLanguageLevel(ParserConfiguration.LanguageLevel.JAVA_17);
+
+    enum Kind {METHOD, CLASS}
+
+    private final OpenJMLLanguageServer server;
+    private final OpenJMLDiagnosticHandler handler;
+    private final Metrics metrics;
+
+    private final ThreadPoolExecutor workers = new ThreadPoolExecutor(1, 1, 1, TimeUnit.MINUTES,
+            new PriorityBlockingQueue<>(), r -> {
+        Thread t = new Thread(r, "openjml-verifier");
+        t.setDaemon(true);
+        return t;
+    });
+    private final AtomicLong jobs = new AtomicLong();
+
+    /**
+     * Waiting and running jobs by {@link Target#key()}.
+     */
+    private final Map<String, Job> waiting = new HashMap<>();
+    private final Map<String, Job> running = new HashMap<>();
+
+    /**
+     * Published diagnostics by uri and target key, with lines relative to the start of the target.
+     */
+    private final Map<String, Map<String, Published>> published = new ConcurrentHashMap<>();
+
+    Verifier(OpenJMLLanguageServer server, OpenJMLDiagnosticHandler handler) {
+        this.server = server;
+        this.handler = handler;
+        this.metrics = server.metrics;
+        metrics.gauge("verification.queued", () -> workers.getQueue().size());
+    }
+
+    public void setWorkers(int n) {
+        int size = Math.max(1, n);
+        if (size > workers.getMaximumPoolSize()) {
+            workers.setMaximumPoolSize(size);
+            workers.setCorePoolSize(size);
+        } else {
+            workers.setCorePoolSize(size);
+            workers.setMaximumPoolSize(size);
+        }
+    }
+
+    /**
+     * The verification actions for the method and the class at {@code range}.
+     */
+    public List<Either<Command, CodeAction>> codeActions(String uri, Range range) {
+        String text = server.textDocumentService.documents.getText(uri);
+        if (text == null) {
+            return new ArrayList<>();
+        }
+        List<Either<Command, CodeAction>> actions = new ArrayList<>();
+        for (Target target : targetsAt(uri, text, range.getStart().getLine())) {
+            Result cached = handler.verifications().get(target.cacheKey());
+            String title = "Verify " + target.label + " with OpenJML"
+                    + (cached != null ? " (last result: " + cached.status + ")" : "");
+            CodeAction action = new CodeAction(title);
+            action.setCommand(new Command(title, COMMAND,
+                    Arrays.asList(uri, target.kind.name(), range.getStart().getLine())));
+            actions.add(Either.forRight(action));
+        }
+        return actions;
+    }
+
+    /**
+     * Executes {@link #COMMAND}: verifies the target of the given kind at the given line. Malformed arguments are
+     * answered with an {@link ResponseErrorCode#InvalidParams} error.
+     */
+    public CompletableFuture<Object> execute(List<Object> arguments, Either<String, Integer> workDoneToken) {
+        if (arguments == null || arguments.size() < 3) {
+            return invalidParams("Expected the arguments uri, kind and line");
+        }
+        String uri = argument(arguments.get(0));
+        Kind kind;
+        int line;
+        try {
+            kind = Kind.valueOf(argument(arguments.get(1)));
+            line = Integer.parseInt(argument(arguments.get(2)));
+        } catch (IllegalArgumentException e) {
+            return invalidParams("Invalid kind or line: " + e.getMessage());
+        }
+        String text = server.textDocumentService.documents.getText(uri);
+        if (text == null) {
+            return CompletableFuture.completedFuture(null);
+        }
+        targetsAt(uri, text, line).stream().filter(it -> it.kind == kind).findFirst()
+                .ifPresent(it -> submit(it, workDoneToken));
+        return CompletableFuture.completedFuture(null);
+    }
+
+    private static CompletableFuture<Object> invalidParams(String message) {
+        CompletableFuture<Object> error = new CompletableFuture<>();
+        error.completeExceptionally(new ResponseErrorException(
+                new ResponseError(ResponseErrorCode.InvalidParams, message, null)));
+        return error;
+    }
+
+    private static String argument(Object value) {
+        return value instanceof JsonPrimitive ? ((JsonPrimitive) value).getAsString() : String.valueOf(value);
+    }
+
+    /**
+     * Queues the verification of {@code target}, unless its result is cached or it is queued already.
+     */
+    synchronized CompletableFuture<Result> submit(Target target, Either<String, Integer> workDoneToken) {
+        Result cached = handler.verifications().get(target.cacheKey());
+        metrics.cache("verification", cached != null);
+        if (cached != null) {
+            publish(target, cached);
+            return CompletableFuture.completedFuture(cached);
+        }
+        Job job = waiting.get(target.key());
+        if (job != null) {
+            job.target = target;
+        } else {
+            Job current = running.get(target.key());
+            if (current != null && current.target.hash == target.hash) {
+                return current.result;
+            }
+            job = new Job(target, jobs.incrementAndGet(), workDoneToken);
+            waiting.put(target.key(), job);
+            job.begin();
+            workers.execute(job);
+        }
+        return job.result;
+    }
+
+    /**
+     * Cancels the job whose progress has the token {@code token}.
+     */
+    public synchronized void cancel(Either<String, Integer> token) {
+        for (Job job : concat(waiting.values(), running.values())) {
+            if (token.equals(job.token)) {
+                job.cancelled = true;
+            }
+        }
+    }
+
+    /**
+     * The content of {@code uri} changed. The published results are removed, as their positions are outdated; they
+     * stay cached for the unchanged targets.
+     */
+    public void changed(String uri) {
+        if (published.remove(uri) != null && server.client != null) {
+            server.client.publishDiagnostics(new PublishDiagnosticsParams(uri, new ArrayList<>()));
+        }
+    }
+
+    public synchronized void close() {
+        for (Job job : concat(waiting.values(), running.values())) {
+            job.cancelled = true;
+        }
+        for (Runnable queued : workers.shutdownNow()) {
+            ((Job) queued).end(new Result("cancelled", new ArrayList<>()));
+        }
+    }
+
+    private static List<Job> concat(Collection<Job> a, Collection<Job> b) {
+        List<Job> all = new ArrayList<>(a);
+        all.addAll(b);
+        return all;
+    }
+
+    private void run(Job job) {
+        synchronized (this) {
+            waiting.remove(job.target.key(), job);
+            running.put(job.target.key(), job);
+        }
+        Result result;
+        Metrics.Timer timer = metrics.time("verification");
+        try {
+            result = job.cancelled ? new Result("cancelled", new ArrayList<>()) : verify(job);
+            if (job.verified) {
+                handler.verifications().put(job.target.cacheKey(), result);
+            }
+            publish(job.target, result);
+            metrics.count("verification.done");
+        } catch (Exception e) {
+            Logger.error("Verification of {} failed", job.target.label, e);
+            result = new Result("failed: " + e.getMessage(), new ArrayList<>());
+            metrics.count("verification.failed");
+        } finally {
+            timer.stop();
+            synchronized (this) {
+                running.remove(job.target.key(), job);
+            }
+        }
+        job.end(result);
+    }
+
+    private Result verify(Job job) throws Exception {
+        DocumentStore.BufferFileObject source = server.textDocumentService.documents.getFileObject(job.target.uri);
+        if (source == null) {
+            return new Result("not open", new ArrayList<>());
+        }
+        String key = job.target.key();
+        Target target = targets(job.target.uri, source.getCharContent(true).toString()).stream()
+                .filter(it -> it.key().equals(key)).findFirst().orElse(null);
+        if (target == null) {
+            return new Result("not found", new ArrayList<>());
+        }
+        job.target = target;
+        try {
+            SharedWorkspace.beginCheck(job::checkCancelled);
+            try {
+                WorkerPool workers = handler.workers();
+                if (workers.isEnabled()) {
+                    WorkerPool.Worker worker = workers.acquire(job::checkCancelled);
+                    if (worker != null) {
+                        try {
+                            return verifyInWorker(worker, job, target, source);
+                        } finally {
+                            workers.release(worker);
+                        }
+                    }
+                }
+                return verifyInProcess(job, target, source);
+            } finally {
+                SharedWorkspace.endCheck();
+            }
+        } catch (CancellationException e) {
+            return new Result(job.cancelled ? "cancelled" : "timeout", new ArrayList<>());
+        }
+    }
+
+    private Result verifyInProcess(Job job, Target target, DocumentStore.BufferFileObject source) throws Exception {
+        CapturingListener listener = new CapturingListener(Collections.singleton(target.uri),
+                Collections.emptyList());
+        try (OpenJmlContextPool.Lease lease = handler.contexts().acquire(listener)) {
+            IAPI api = lease.api();
+            handler.addSourcepath(api);
+            api.addOptions(proverOptions().toArray(new String[0]));
+            // the parse and type errors are reported by the diagnostics already
+            int[] checked = new int[1];
+            String status = esc(api, source, target.verify(), () -> checked[0] = listener.diagnostics.size(),
+                    () -> job.cancelled || job.timedOut(), job::report);
+            listener.done();
+            return result(job, target, status,
+                    listener.diagnostics.subList(checked[0], listener.diagnostics.size()));
+        }
+    }
+
+    /**
+     * Verifies in a worker process, which reports only the diagnostics of the verification.
+     */
+    private Result verifyInWorker(WorkerPool.Worker worker, Job job, Target target,
+                                  DocumentStore.BufferFileObject source) throws Exception {
+        CapturingListener listener = new CapturingListener(Collections.singleton(target.uri),
+                Collections.emptyList());
+        WorkerProtocol.Check check = new WorkerProtocol.Check(handler.workers().nextId(),
+                Collections.singleton(target.uri), handler.sourceRoots(), proverOptions(), target.verify());
+        check.add(target.uri, null, source.getCharContent(true).toString());
+        WorkerProtocol.Done done = worker.check(check, listener, job::checkCancelled);
+        if (done == null) {
+            metrics.count("worker.crashed");
+            return new Result("failed", new ArrayList<>());
+        }
+        listener.done();
+        return result(job, target, done.status, listener.diagnostics);
+    }
+
+    private List<String> proverOptions() {
+        OpenJmlSettings settings = server.settings;
+        List<String> options = new ArrayList<>(Arrays.asList("-timeout",
+                String.valueOf(settings.verificationTimeoutSeconds)));
+        if (!settings.prover.isEmpty()) {
+            options.add("-prover");
+            options.add(settings.prover);
+        }
+        if (!settings.proverExecutable.isEmpty()) {
+            options.add("-exec");
+            options.add(settings.proverExecutable);
+        }
+        return options;
+    }
+
+    /**
+     * The result of a verification with {@code status}, null if the target was not found, and the diagnostics
+     * {@code found} by the prover.
+     */
+    private Result result(Job job, Target target, String status,
+                          List<javax.tools.Diagnostic<? extends JavaFileObject>> found) {
+        if (status == null) {
+            return new Result("not found", new ArrayList<>());
+        }
+        job.verified = !job.cancelled && !job.timedOut();
+        if (job.cancelled || job.timedOut()) {
+            status = job.cancelled ? "cancelled" : "timeout";
+        }
+        List<Diagnostic> diagnostics = new ArrayList<>(found.size());
+        for (javax.tools.Diagnostic<? extends JavaFileObject> d : found) {
+            Diagnostic translated = handler.translate(d);
+            translated.setSource("openjml-esc");
+            diagnostics.add(shift(translated, -target.firstLine));
+        }
+        return new Result(status, diagnostics);
+    }
+
+    /**
+     * Parses and type checks {@code source} and verifies {@code target} in it, in process or in a worker. Calls
+     * {@code typechecked} before the prover starts, and stops the prover as soon as {@code stop} holds.
+     *
+     * @return the status of the verification, or null if {@code target} is not found
+     */
+    static String esc(IAPI api, JavaFileObject source, WorkerProtocol.Verify target, Runnable typechecked,
+                      BooleanSupplier stop, Consumer<String> progress) throws Exception {
+        api.setProgressListener(new IAPI.IProgressListener() {
+            @Override
+            public boolean report(int level, String message) {
+                if (level <= 1) {
+                    progress.accept(message);
+                }
+                // true cancels the verification
+                return stop.getAsBoolean();
+            }
+
+            @Override
+            public void setContext(com.sun.tools.javac.util.Context context) {
+            }
+        });
+        List<JmlCompilationUnit> units = api.parseFiles(source);
+        api.typecheck(units);
+        typechecked.run();
+        Symbol symbol = units.isEmpty() ? null : findSymbol(units.get(0), target);
+        if (symbol == null) {
+            return null;
+        }
+        IProverResult result = symbol instanceof Symbol.MethodSymbol
+                ? api.doESC((Symbol.MethodSymbol) symbol) : api.doESC((Symbol.ClassSymbol) symbol);
+        return result == null ? "done" : String.valueOf(result.result());
+    }
+
+    /**
+     * Publishes the diagnostics of {@code target} together with those of the other verified targets of its file,
+     * if the target is still where it was verified.
+     */
+    private void publish(Target target, Result result) {
+        String text = server.textDocumentService.documents.getText(target.uri);
+        if (text == null || server.client == null) {
+            return;
+        }
+        Target current = targets(target.uri, text).stream()
+                .filter(it -> it.key().equals(target.key()) && it.hash == target.hash)
+                .findFirst().orElse(null);
+        if (current == null) {
+            return;
+        }
+        Map<String, Published> file = published.computeIfAbsent(target.uri, k -> new ConcurrentHashMap<>());
+        file.put(target.key(), new Published(current.firstLine, result.diagnostics));
+        List<Diagnostic> all = new ArrayList<>();
+        for (Published p : file.values()) {
+            for (Diagnostic d : p.diagnostics) {
+                all.add(shift(d, p.firstLine));
+            }
+        }
+        server.client.publishDiagnostics(new PublishDiagnosticsParams(target.uri, all));
+    }
+
+    private static Diagnostic shift(Diagnostic d, int lines) {
+        Range r = d.getRange();
+        Range range = new Range(new Position(r.getStart().getLine() + lines, r.getStart().getCharacter()),
+                new Position(r.getEnd().getLine() + lines, r.getEnd().getCharacter()));
+        return new Diagnostic(range, d.getMessage(), d.getSeverity(), d.getSource());
+    }
+
+    /**
+     * The innermost method and class containing the line {@code line} of {@code text}, counted from 0.
+     */
+    static List<Target> targetsAt(String uri, String text, int line) {
+        Target method = null;
+        Target type = null;
+        for (Target target : targets(uri, text)) {
+            if (!target.declares(line + 1)) {
+                continue;
+            }
+            if (target.kind == Kind.METHOD && (method == null || target.beginLine >= method.beginLine)) {
+                method = target;
+            } else if (target.kind == Kind.CLASS && (type == null || target.beginLine >= type.beginLine)) {
+                type = target;
+            }
+        }
+        List<Target> targets = new ArrayList<>();
+        if (method != null) targets.add(method);
+        if (type != null) targets.add(type);
+        return targets;
+    }
+
+    /**
+     * All methods, constructors and classes declared in {@code text}.
+     */
+    static List<Target> targets(String uri, String text) {
+        ParseResult<CompilationUnit> parsed = new JavaParser(PARSER).parse(text);
+        if (!parsed.getResult().isPresent()) {
+            return new ArrayList<>();
+        }
+        CompilationUnit unit = parsed.getResult().get();
+        String[] lines = text.split("\\R", -1);
+        List<Target> targets = new ArrayList<>();
+        for (CallableDeclaration<?> method : unit.<CallableDeclaration<?>>findAll(callableClass())) {
+            if (!method.getRange().isPresent()) continue;
+            String owner = method.getParentNode().filter(TypeDeclaration.class::isInstance)
+                    .map(it -> ((TypeDeclaration<?>) it).getNameAsString()).orElse("");
+            String name = method instanceof ConstructorDeclaration ? "<init>" : method.getNameAsString();
+            targets.add(new Target(uri, Kind.METHOD, owner, name, method.getParameters().size(),
+                    "method " + method.getSignature().asString(), lines, method.getRange().get()));
+        }
+        for (TypeDeclaration<?> type : unit.<TypeDeclaration<?>>findAll(typeClass())) {
+            if (!type.getRange().isPresent()) continue;
+            targets.add(new Target(uri, Kind.CLASS, type.getNameAsString(), type.getNameAsString(), -1,
+                    "class " + type.getNameAsString(), lines, type.getRange().get()));
+        }
+        return targets;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Class<CallableDeclaration<?>> callableClass() {
+        return (Class<CallableDeclaration<?>>) (Class<?>) CallableDeclaration.class;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Class<TypeDeclaration<?>> typeClass() {
+        return (Class<TypeDeclaration<?>>) (Class<?>) TypeDeclaration.class;
+    }
+
+    /**
+     * The symbol of {@code target} in an attributed compilation unit.
+     */
+    private static Symbol findSymbol(JCTree.JCCompilationUnit unit, WorkerProtocol.Verify target) {
+        Deque<JCTree> queue = new ArrayDeque<>(unit.defs);
+        while (!queue.isEmpty()) {
+            JCTree tree = queue.poll();
+            if (tree instanceof JCTree.JCClassDecl) {
+                JCTree.JCClassDecl clazz = (JCTree.JCClassDecl) tree;
+                if (target.kind == Kind.CLASS && clazz.name.toString().equals(target.name)
+                        && target.declares(unit.lineMap.getLineNumber(clazz.pos))) {
+                    return clazz.sym;
+                }
+                queue.addAll(clazz.defs);
+            } else if (tree instanceof JCTree.JCMethodDecl) {
+                JCTree.JCMethodDecl method = (JCTree.JCMethodDecl) tree;
+                if (target.kind == Kind.METHOD && method.name.toString().equals(target.name)
+                        && method.params.size() == target.parameters
+                        && target.declares(unit.lineMap.getLineNumber(method.pos))) {
+                    return method.sym;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * A method or class to verify, in one version of its file.
+     */
+    static final class Target {
+        final String uri;
+        final Kind kind;
+        final String owner;
+        final String name;
+        final int parameters;
+        final String label;
+        /**
+         * First line of the specifications in front of the declaration, from 0.
+         */
+        final int firstLine;
+        /**
+         * Lines of the declaration, from 1.
+         */
+        final int beginLine;
+        final int endLine;
+        /**
+         * Hash of the text from the specifications to the end of the declaration, with indentation removed.
+         */
+        final long hash;
+
+        Target(String uri, Kind kind, String owner, String name, int parameters, String label, String[] lines,
+               com.github.javaparser.Range range) {
+            this.uri = uri;
+            this.kind = kind;
+            this.owner = owner;
+            this.name = name;
+            this.parameters = parameters;
+            this.label = label;
+            this.beginLine = range.begin.line;
+            this.endLine = range.end.line;
+            this.firstLine = specificationStart(lines, beginLine - 1);
+            StringBuilder sb = new StringBuilder();
+            for (int i = firstLine; i < endLine && i < lines.length; i++) {
+                sb.append(lines[i].trim()).append('\n');
+            }
+            this.hash = FileStateIndex.contentHash(sb.toString());
+        }
+
+        /**
+         * Identifies the target across versions of the file.
+         */
+        String key() {
+            return uri + "#" + kind + ":" + owner + "." + name + "/" + parameters;
+        }
+
+        String cacheKey() {
+            return key() + "@" + Long.toHexString(hash);
+        }
+
+        boolean declares(long line) {
+            return beginLine <= line && line <= endLine;
+        }
+
+        WorkerProtocol.Verify verify() {
+            return new WorkerProtocol.Verify(kind, name, parameters, beginLine, endLine);
+        }
+
+        /**
+         * The first line of the JML comments directly in front of line {@code begin}.
+         */
+        private static int specificationStart(String[] lines, int begin) {
+            int i = begin - 1;
+            while (i >= 0) {
+                String line = lines[i].trim();
+                if (line.endsWith("@*/") && !line.startsWith("/*@")) {
+                    // end of a specification block spanning several lines
+                    int j = i;
+                    while (j >= 0 && !lines[j].trim().startsWith("/*@")) j--;
+                    if (j < 0) break;
+                    begin = j;
+                    i = j - 1;
+                } else if (line.startsWith("//@") || line.startsWith("/*@") || line.startsWith("@")) {
+                    begin = i--;
+                } else {
+                    break;
+                }
+            }
+            return begin;
+        }
+    }
+
+    /**
+     * The outcome of a verification, with diagnostic lines relative to the start of the target.
+     */
+    static final class Result {
+        final String status;
+        final List<Diagnostic> diagnostics;
+
+        Result(String status, List<Diagnostic> diagnostics) {
+            this.status = status;
+            this.diagnostics = Collections.unmodifiableList(diagnostics);
+        }
+    }
+
+    private static final class Published {
+        final int firstLine;
+        final List<Diagnostic> diagnostics;
+
+        Published(int firstLine, List<Diagnostic> diagnostics) {
+            this.firstLine = firstLine;
+            this.diagnostics = diagnostics;
+        }
+    }
+
+    private class Job implements Runnable, Comparable<Job> {
+        /**
+         * The target, in the version last requested; replaced by the version actually verified.
+         */
+        volatile Target target;
+        final long sequence;
+        final CompletableFuture<Result> result = new CompletableFuture<>();
+        final Either<String, Integer> token;
+        private final boolean progress;
+        private CompletableFuture<?> notifications;
+        private volatile long deadline = Long.MAX_VALUE;
+        volatile boolean cancelled = false;
+        /**
+         * Whether the prover ran to the end, so the result can be cached.
+         */
+        volatile boolean verified = false;
+
+        Job(Target target, long sequence, Either<String, Integer> workDoneToken) {
+            this.target = target;
+            this.sequence = sequence;
+            this.progress = server.client != null && (workDoneToken != null || server.workDoneProgressSupport);
+            this.token = workDoneToken != null ? workDoneToken : Either.forLeft("openjml-verify-" + sequence);
+            this.notifications = workDoneToken != null || !progress ? CompletableFuture.completedFuture(null)
+                    : server.client.createProgress(new WorkDoneProgressCreateParams(token));
+        }
+
+        @Override
+        public void run() {
+            deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(server.settings.verificationTimeoutSeconds);
+            report("Verifying");
+            Verifier.this.run(this);
+        }
+
+        boolean timedOut() {
+            return System.nanoTime() > deadline;
+        }
+
+        void checkCancelled() {
+            if (cancelled || timedOut()) {
+                throw new CancellationException();
+            }
+        }
+
+        @Override
+        public int compareTo(Job other) {
+            int c = target.kind.compareTo(other.target.kind);
+            return c != 0 ? c : Long.compare(sequence, other.sequence);
+        }
+
+        void begin() {
+            WorkDoneProgressBegin begin = new WorkDoneProgressBegin();
+            begin.setTitle("Verifying " + target.label);
+            begin.setMessage("Queued");
+            begin.setCancellable(true);
+            notify(begin);
+        }
+
+        void report(String message) {
+            WorkDoneProgressReport report = new WorkDoneProgressReport();
+            report.setMessage(message);
+            notify(report);
+        }
+
+        void end(Result r) {
+            WorkDoneProgressEnd end = new WorkDoneProgressEnd();
+            end.setMessage(r.status + ", " + r.diagnostics.size() + " warnings");
+            notify(end);
+            result.complete(r);
+        }
+
+        private synchronized void notify(WorkDoneProgressNotification notification) {
+            if (progress) {
+                notifications = notifications.handle((ignored, e) -> {
+                    server.client.notifyProgress(new ProgressParams(token, Either.forLeft(notification)));
+                    return null;
+                });
+            }
+        }
+    }
+}
@@ -0,0 +1,332 @@
+package com.github.wadoon.openjmllsp;
+
+import org.tinylog.Logger;
+
+import javax.tools.DiagnosticListener;
+import javax.tools.JavaFileObject;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pool of pre-started {@link OpenJmlWorker} processes, which run the OpenJML checks outside the language server.
+ * <p>
+ * A check allocates a lot of short-lived compiler state. In a worker, the resulting garbage collections do not stall
+ * the JSON-RPC traffic of the server, and a stack or heap overflow kills only the worker. Every worker has its own JVM
+ * options, e.g. its heap size, and is replaced after a number of checks or once its heap grew beyond a bound, so that
+ * the state javac leaves behind cannot accumulate. Replacements are started in the background.
+ */
+class WorkerPool {
+    private static final long POLL_MILLIS = 50;
+
+    private final BlockingQueue<Worker> idle = new LinkedBlockingQueue<>();
+    private final ExecutorService io = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "openjml-worker-io");
+        t.setDaemon(true);
+        return t;
+    });
+    private final AtomicLong ids = new AtomicLong();
+
+    private int size = 0;
+    private List<String> jvmArgs = Collections.emptyList();
+    private int maxChecks = Integer.MAX_VALUE;
+    private long maxHeapBytes = Long.MAX_VALUE;
+    /**
+     * Started workers that were not closed yet, including the ones starting.
+     */
+    private int live = 0;
+    /**
+     * Incremented when the JVM options change, retiring the workers started with the old ones.
+     */
+    private int generation = 0;
+    private boolean failing = false;
+
+    /**
+     * Sets the number of workers and their options, and starts the missing workers.
+     *
+     * @param maxChecks number of checks after which a worker is replaced
+     * @param maxHeapMb heap size in megabytes after which a worker is replaced
+     */
+    public synchronized void configure(int size, List<String> jvmArgs, int maxChecks, int maxHeapMb) {
+        this.size = Math.max(0, size);
+        this.maxChecks = maxChecks <= 0 ? Integer.MAX_VALUE : maxChecks;
+        this.maxHeapBytes = maxHeapMb <= 0 ? Long.MAX_VALUE : maxHeapMb * 1024L * 1024L;
+        if (!jvmArgs.equals(this.jvmArgs)) {
+            this.jvmArgs = new ArrayList<>(jvmArgs);
+            generation++;
+            failing = false;
+        }
+        List<Worker> retired = new ArrayList<>();
+        idle.drainTo(retired);
+        retired.forEach(this::release);
+        fill();
+    }
+
+    public synchronized boolean isEnabled() {
+        return size > 0 && !failing;
+    }
+
+    /**
+     * A fresh id for a check.
+     */
+    long nextId() {
+        return ids.incrementAndGet();
+    }
+
+    public int idleCount() {
+        return idle.size();
+    }
+
+    public synchronized void close() {
+        size = 0;
+        List<Worker> retired = new ArrayList<>();
+        idle.drainTo(retired);
+        retired.forEach(this::release);
+    }
+
+    /**
+     * Takes an idle worker, waiting for one to start or to finish its check. Aborts as soon as
+     * {@code checkCancelled} throws a {@link CancellationException}. Returns null if workers cannot be started. The
+     * worker has to be handed back with {@link #release(Worker)}.
+     */
+    public Worker acquire(Runnable checkCancelled) {
+        fill();
+        try {
+            while (true) {
+                Worker worker = idle.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+                if (worker != null) {
+                    return worker;
+                }
+                if (!isEnabled()) {
+                    return null;
+                }
+                checkCancelled.run();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CancellationException();
+        }
+    }
+
+    /**
+     * Hands back a worker. It is replaced if it is due for recycling, and returned to the pool once it has finished an
+     * aborted check.
+     */
+    public void release(Worker worker) {
+        if (worker.draining != -1) {
+            io.execute(() -> {
+                worker.drain();
+                release(worker);
+            });
+            return;
+        }
+        boolean retire;
+        synchronized (this) {
+            retire = worker.dead || worker.checks >= maxChecks || worker.heapBytes > maxHeapBytes
+                    || worker.generation != generation || live > size;
+            if (retire) {
+                live--;
+            }
+        }
+        if (!retire) {
+            idle.add(worker);
+            return;
+        }
+        Logger.info("Retiring OpenJML worker after {} checks, {} MB heap", worker.checks,
+                worker.heapBytes / 1024 / 1024);
+        io.execute(worker::close);
+        fill();
+    }
+
+    private synchronized void fill() {
+        while (live < size && !failing) {
+            live++;
+            int g = generation;
+            io.execute(() -> start(g));
+        }
+    }
+
+    private void start(int generation) {
+        try {
+            Worker worker = new Worker(command(), generation);
+            synchronized (this) {
+                failing = false;
+            }
+            release(worker);
+        } catch (IOException e) {
+            Logger.error("Could not start OpenJML worker, checking in process", e);
+            synchronized (this) {
+                live--;
+                failing = true;
+            }
+        }
+    }
+
+    private synchronized List<String> command() {
+        List<String> command = new ArrayList<>();
+        command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+        command.add("-XX:+ExitOnOutOfMemoryError");
+        // OpenJML needs the same access to the compiler internals as the server, and the class data sharing
+        // archive of the server covers the classes of a check
+        List<String> arguments = ManagementFactory.getRuntimeMXBean().getInputArguments();
+        for (int i = 0; i < arguments.size(); i++) {
+            String argument = arguments.get(i);
+            if (argument.startsWith("-XX:SharedArchiveFile=")) {
+                command.add(argument);
+            } else if (argument.startsWith("--add-exports") || argument.startsWith("--add-opens")) {
+                command.add(argument);
+                if (!argument.contains("=") && i + 1 < arguments.size()) {
+                    command.add(arguments.get(++i));
+                }
+            }
+        }
+        command.addAll(jvmArgs);
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add(App.class.getName());
+        command.add("--worker");
+        return command;
+    }
+
+    /**
+     * A running worker process, used by one check at a time.
+     */
+    class Worker {
+        private final Process process;
+        private final DataOutputStream out;
+        private final DataInputStream in;
+        private final BlockingQueue<Object> inbox = new LinkedBlockingQueue<>();
+        private final int generation;
+        private int checks = 0;
+        private long heapBytes = 0;
+        private volatile boolean dead = false;
+        /**
+         * Id of the aborted check whose messages have to be dropped, or -1.
+         */
+        private long draining = -1;
+
+        private Worker(List<String> command, int generation) throws IOException {
+            this.generation = generation;
+            process = new ProcessBuilder(command).redirectError(ProcessBuilder.Redirect.INHERIT).start();
+            out = new DataOutputStream(new BufferedOutputStream(process.getOutputStream(), 1 << 16));
+            in = new DataInputStream(new BufferedInputStream(process.getInputStream(), 1 << 16));
+            try {
+                WorkerProtocol.readHello(in);
+            } catch (IOException e) {
+                process.destroyForcibly();
+                throw e;
+            }
+            io.execute(this::read);
+        }
+
+        private void read() {
+            try {
+                while (true) {
+                    inbox.add(WorkerProtocol.read(in));
+                }
+            } catch (IOException e) {
+                dead = true;
+                inbox.add(e);
+            }
+        }
+
+        /**
+         * Runs {@code check}, reporting its diagnostics to {@code listener} while it runs. Returns null if the worker
+         * died during the check.
+         *
+         * @throws CancellationException if {@code checkCancelled} throws it; the worker aborts the check
+         */
+        WorkerProtocol.Done check(WorkerProtocol.Check check, DiagnosticListener<? super JavaFileObject> listener,
+                                  Runnable checkCancelled) {
+            try {
+                WorkerProtocol.write(out, check);
+                while (true) {
+                    Object message = inbox.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+                    if (message == null) {
+                        cancelIfCancelled(check, checkCancelled);
+                    } else if (message instanceof StoredDiagnostic) {
+                        listener.report((StoredDiagnostic) message);
+                    } else if (message instanceof WorkerProtocol.Done) {
+                        WorkerProtocol.Done done = (WorkerProtocol.Done) message;
+                        checks++;
+                        heapBytes = done.heapBytes;
+                        return done;
+                    } else {
+                        throw (IOException) message;
+                    }
+                }
+            } catch (IOException e) {
+                Logger.error("OpenJML worker died", e);
+                dead = true;
+                return null;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                draining = check.id;
+                throw new CancellationException();
+            }
+        }
+
+        private void cancelIfCancelled(WorkerProtocol.Check check, Runnable checkCancelled) throws IOException {
+            try {
+                checkCancelled.run();
+            } catch (CancellationException e) {
+                WorkerProtocol.write(out, new WorkerProtocol.Cancel(check.id));
+                draining = check.id;
+                throw e;
+            }
+        }
+
+        /**
+         * Drops the messages of the aborted check.
+         */
+        private void drain() {
+            try {
+                while (true) {
+                    Object message = inbox.take();
+                    if (message instanceof IOException) {
+                        break;
+                    }
+                    if (message instanceof WorkerProtocol.Done && ((WorkerProtocol.Done) message).id == draining) {
+                        checks++;
+                        heapBytes = ((WorkerProtocol.Done) message).heapBytes;
+                        break;
+                    }
+                }
+            } catch (InterruptedException e) {
+                dead = true;
+            }
+            draining = -1;
+        }
+
+        /**
+         * Closes the standard input of the worker, which then exits. It is killed if it does not.
+         */
+        private void close() {
+            try {
+                out.close();
+                if (!process.waitFor(10, TimeUnit.SECONDS)) {
+                    process.destroyForcibly();
+                }
+            } catch (IOException e) {
+                process.destroyForcibly();
+            } catch (InterruptedException e) {
+                process.destroyForcibly();
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
@@ -0,0 +1,327 @@
+package com.github.wadoon.openjmllsp;
+
+import javax.tools.Diagnostic;
+import javax.tools.JavaFileObject;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The messages exchanged between the language server and its {@link OpenJmlWorker} processes over the standard
+ * streams of the worker. A worker greets with {@link #MAGIC} and {@link #VERSION}; afterwards every message is a tag
+ * byte followed by its fields. Strings are length-prefixed UTF-8, {@code -1} standing for null.
+ * <p>
+ * The server sends {@link Check} and {@link Cancel}. The worker answers a check with its diagnostics, one
+ * {@link #DIAGNOSTIC} message each as soon as OpenJML reports them, followed by {@link Done}. A check may ask for
+ * the static verification of one method or class instead, see {@link Verify}.
+ */
+final class WorkerProtocol {
+    static final int MAGIC = 0x4f4a4d57;
+    static final int VERSION = 2;
+
+    private static final byte CHECK = 1;
+    private static final byte CANCEL = 2;
+    private static final byte DIAGNOSTIC = 3;
+    private static final byte DONE = 4;
+
+    private static final Diagnostic.Kind[] KINDS = Diagnostic.Kind.values();
+
+    private WorkerProtocol() {
+    }
+
+    /**
+     * Checks the given files.
+     */
+    static final class Check {
+        final long id;
+        final List<String> uris = new ArrayList<>();
+        final List<String> paths = new ArrayList<>();
+        /**
+         * Editor buffer of each file, or null if the file is read from disk.
+         */
+        final List<String> texts = new ArrayList<>();
+        /**
+         * The uris to report diagnostics for, or null for all.
+         */
+        final Set<String> report;
+        final List<String> sourcepath;
+        /**
+         * Further OpenJML options, e.g. those of the prover.
+         */
+        final List<String> options;
+        /**
+         * The target to verify in the first file, or null to type check the files.
+         */
+        final Verify verify;
+
+        Check(long id, Set<String> report, List<String> sourcepath) {
+            this(id, report, sourcepath, Collections.emptyList(), null);
+        }
+
+        Check(long id, Set<String> report, List<String> sourcepath, List<String> options, Verify verify) {
+            this.id = id;
+            this.report = report;
+            this.sourcepath = sourcepath;
+            this.options = options;
+            this.verify = verify;
+        }
+
+        void add(String uri, String path, String text) {
+            uris.add(uri);
+            paths.add(path);
+            texts.add(text);
+        }
+    }
+
+    /**
+     * A method or class to verify with OpenJML's ESC, identified as in {@link Verifier.Target}. Only the diagnostics
+     * of the verification are reported, not those of the type check before.
+     */
+    static final class Verify {
+        final Verifier.Kind kind;
+        final String name;
+        final int parameters;
+        /**
+         * Lines of the declaration, from 1.
+         */
+        final int beginLine;
+        final int endLine;
+
+        Verify(Verifier.Kind kind, String name, int parameters, int beginLine, int endLine) {
+            this.kind = kind;
+            this.name = name;
+            this.parameters = parameters;
+            this.beginLine = beginLine;
+            this.endLine = endLine;
+        }
+
+        boolean declares(long line) {
+            return beginLine <= line && line <= endLine;
+        }
+    }
+
+    /**
+     * Aborts the check {@link #id}, which then ends with an empty {@link Done}.
+     */
+    static final class Cancel {
+        final long id;
+
+        Cancel(long id) {
+            this.id = id;
+        }
+    }
+
+    /**
+     * The check {@link #id} is over.
+     */
+    static final class Done {
+        final long id;
+        /**
+         * The checked uris and the types each of them references.
+         */
+        final Map<String, Set<String>> references;
+        /**
+         * Heap used by the worker after the check.
+         */
+        final long heapBytes;
+        /**
+         * Outcome of a verification, null for a type check or if the verification failed.
+         */
+        final String status;
+
+        Done(long id, Map<String, Set<String>> references, long heapBytes) {
+            this(id, references, heapBytes, null);
+        }
+
+        Done(long id, Map<String, Set<String>> references, long heapBytes, String status) {
+            this.id = id;
+            this.references = references;
+            this.heapBytes = heapBytes;
+            this.status = status;
+        }
+    }
+
+    static void writeHello(DataOutputStream out) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.flush();
+    }
+
+    /**
+     * @throws IOException if the other side does not speak this protocol
+     */
+    static void readHello(DataInputStream in) throws IOException {
+        int magic = in.readInt();
+        int version = in.readInt();
+        if (magic != MAGIC || version != VERSION) {
+            throw new IOException("Unexpected worker greeting " + Integer.toHexString(magic) + "/" + version);
+        }
+    }
+
+    static void write(DataOutputStream out, Check check) throws IOException {
+        out.writeByte(CHECK);
+        out.writeLong(check.id);
+        out.writeInt(check.uris.size());
+        for (int i = 0; i < check.uris.size(); i++) {
+            putString(out, check.uris.get(i));
+            putString(out, check.paths.get(i));
+            putString(out, check.texts.get(i));
+        }
+        putStrings(out, check.report);
+        putStrings(out, check.sourcepath);
+        putStrings(out, check.options);
+        Verify verify = check.verify;
+        out.writeBoolean(verify != null);
+        if (verify != null) {
+            out.writeByte(verify.kind.ordinal());
+            putString(out, verify.name);
+            out.writeInt(verify.parameters);
+            out.writeInt(verify.beginLine);
+            out.writeInt(verify.endLine);
+        }
+        out.flush();
+    }
+
+    static void write(DataOutputStream out, Cancel cancel) throws IOException {
+        out.writeByte(CANCEL);
+        out.writeLong(cancel.id);
+        out.flush();
+    }
+
+    /**
+     * Writes a diagnostic without flushing, as more of the same file usually follow.
+     */
+    static void write(DataOutputStream out, String uri, Diagnostic<? extends JavaFileObject> diagnostic)
+            throws IOException {
+        StoredDiagnostic s = StoredDiagnostic.of(diagnostic, null);
+        out.writeByte(DIAGNOSTIC);
+        putString(out, uri);
+        out.writeByte(s.kind.ordinal());
+        out.writeLong(s.position);
+        out.writeLong(s.startPosition);
+        out.writeLong(s.endPosition);
+        out.writeLong(s.lineNumber);
+        out.writeLong(s.columnNumber);
+        putString(out, s.code);
+        putString(out, s.message);
+    }
+
+    static void write(DataOutputStream out, Done done) throws IOException {
+        out.writeByte(DONE);
+        out.writeLong(done.id);
+        out.writeInt(done.references.size());
+        for (Map.Entry<String, Set<String>> e : done.references.entrySet()) {
+            putString(out, e.getKey());
+            putStrings(out, e.getValue());
+        }
+        out.writeLong(done.heapBytes);
+        putString(out, done.status);
+        out.flush();
+    }
+
+    /**
+     * Reads the next message: a {@link Check}, {@link Cancel}, {@link Done} or a {@link StoredDiagnostic}.
+     *
+     * @throws EOFException if the other side closed the stream
+     */
+    static Object read(DataInputStream in) throws IOException {
+        byte tag = in.readByte();
+        switch (tag) {
+            case CHECK: {
+                long id = in.readLong();
+                int files = in.readInt();
+                List<String> uris = new ArrayList<>(files);
+                List<String> paths = new ArrayList<>(files);
+                List<String> texts = new ArrayList<>(files);
+                for (int i = 0; i < files; i++) {
+                    uris.add(getString(in));
+                    paths.add(getString(in));
+                    texts.add(getString(in));
+                }
+                Set<String> report = getStrings(in, new HashSet<>());
+                List<String> sourcepath = getStrings(in, new ArrayList<>());
+                List<String> options = getStrings(in, new ArrayList<>());
+                Verify verify = in.readBoolean() ? new Verify(Verifier.Kind.values()[in.readByte()], getString(in),
+                        in.readInt(), in.readInt(), in.readInt()) : null;
+                Check check = new Check(id, report, sourcepath, options, verify);
+                check.uris.addAll(uris);
+                check.paths.addAll(paths);
+                check.texts.addAll(texts);
+                return check;
+            }
+            case CANCEL:
+                return new Cancel(in.readLong());
+            case DIAGNOSTIC: {
+                String uri = getString(in);
+                Diagnostic.Kind kind = KINDS[in.readByte()];
+                return new StoredDiagnostic(kind, uri == null ? null : StoredDiagnostic.sourceOf(uri),
+                        in.readLong(), in.readLong(), in.readLong(), in.readLong(), in.readLong(),
+                        getString(in), getString(in));
+            }
+            case DONE: {
+                long id = in.readLong();
+                int units = in.readInt();
+                Map<String, Set<String>> references = new HashMap<>();
+                for (int i = 0; i < units; i++) {
+                    references.put(getString(in), getStrings(in, new HashSet<>()));
+                }
+                return new Done(id, references, in.readLong(), getString(in));
+            }
+            default:
+                throw new IOException("Unknown message " + tag);
+        }
+    }
+
+    private static void putStrings(DataOutputStream out, Collection<String> strings) throws IOException {
+        if (strings == null) {
+            out.writeInt(-1);
+            return;
+        }
+        out.writeInt(strings.size());
+        for (String s : strings) {
+            putString(out, s);
+        }
+    }
+
+    private static <C extends Collection<String>> C getStrings(DataInputStream in, C strings)
+            throws IOException {
+        int size = in.readInt();
+        if (size < 0) {
+            return null;
+        }
+        for (int i = 0; i < size; i++) {
+            strings.add(getString(in));
+        }
+        return strings;
+    }
+
+    private static void putString(DataOutputStream out, String s) throws IOException {
+        if (s == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String getString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
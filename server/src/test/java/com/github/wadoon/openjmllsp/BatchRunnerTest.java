@@ -0,0 +1,83 @@
+package com.github.wadoon.openjmllsp;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import org.eclipse.lsp4j.DiagnosticSeverity;
+import org.eclipse.lsp4j.Position;
+import org.eclipse.lsp4j.Range;
+import org.junit.Test;
+
+import javax.tools.Diagnostic;
+import javax.tools.JavaFileObject;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.StringWriter;
+import java.util.Collections;
+import java.util.List;
+
+import static com.google.common.truth.Truth.assertThat;
+
+public class BatchRunnerTest {
+    private static final String URI = "file:///work/src/A.java";
+
+    private static void writeOne(BatchRunner.Output output) throws IOException {
+        List<Diagnostic<? extends JavaFileObject>> raw = Collections.singletonList(new StoredDiagnostic(
+                Diagnostic.Kind.ERROR, null, 10, 8, 12, 2, 3, "jml.some", "message"));
+        org.eclipse.lsp4j.Diagnostic translated = new org.eclipse.lsp4j.Diagnostic(
+                new Range(new Position(1, 2), new Position(1, 6)), "message", DiagnosticSeverity.Error, "OpenJML");
+        JsonObject summary = new JsonObject();
+        summary.addProperty("files", 1);
+        output.begin();
+        output.file(URI, raw, Collections.singletonList(translated));
+        output.end(summary);
+    }
+
+    @Test
+    public void rejectsUnknownFormats() {
+        PrintStream out = System.out;
+        try {
+            assertThat(BatchRunner.run(new String[]{"--format", "xml", "."})).isEqualTo(BatchRunner.FAILED);
+        } finally {
+            System.setOut(out);
+        }
+    }
+
+    @Test
+    public void writesOneLinePerFileAndASummary() throws IOException {
+        StringWriter out = new StringWriter();
+        writeOne(new BatchRunner.NdjsonOutput(out));
+        String[] lines = out.toString().split("\n");
+        assertThat(lines).hasLength(2);
+
+        JsonObject file = JsonParser.parseString(lines[0]).getAsJsonObject();
+        assertThat(file.get("uri").getAsString()).isEqualTo(URI);
+        JsonObject d = file.getAsJsonArray("diagnostics").get(0).getAsJsonObject();
+        assertThat(d.get("severity").getAsString()).isEqualTo("error");
+        assertThat(d.get("code").getAsString()).isEqualTo("jml.some");
+        assertThat(d.get("line").getAsInt()).isEqualTo(1);
+        assertThat(d.get("endCharacter").getAsInt()).isEqualTo(6);
+
+        JsonObject summary = JsonParser.parseString(lines[1]).getAsJsonObject().getAsJsonObject("summary");
+        assertThat(summary.get("files").getAsInt()).isEqualTo(1);
+    }
+
+    @Test
+    public void writesAValidSarifLogWithOneBasedRegions() throws IOException {
+        StringWriter out = new StringWriter();
+        writeOne(new BatchRunner.SarifOutput(out));
+
+        JsonObject log = JsonParser.parseString(out.toString()).getAsJsonObject();
+        assertThat(log.get("version").getAsString()).isEqualTo("2.1.0");
+        JsonObject run = log.getAsJsonArray("runs").get(0).getAsJsonObject();
+        JsonObject result = run.getAsJsonArray("results").get(0).getAsJsonObject();
+        assertThat(result.get("ruleId").getAsString()).isEqualTo("jml.some");
+        assertThat(result.get("level").getAsString()).isEqualTo("error");
+        JsonObject location = result.getAsJsonArray("locations").get(0).getAsJsonObject()
+                .getAsJsonObject("physicalLocation");
+        assertThat(location.getAsJsonObject("artifactLocation").get("uri").getAsString()).isEqualTo(URI);
+        JsonObject region = location.getAsJsonObject("region");
+        assertThat(region.get("startLine").getAsInt()).isEqualTo(2);
+        assertThat(region.get("startColumn").getAsInt()).isEqualTo(3);
+        assertThat(run.getAsJsonObject("properties").get("files").getAsInt()).isEqualTo(1);
+    }
+}
@@ -0,0 +1,63 @@
+package com.github.wadoon.openjmllsp;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static com.google.common.truth.Truth.assertThat;
+
+public class DependencyGraphTest {
+    private DependencyGraph chain() {
+        // A uses B, B uses C, D uses C
+        DependencyGraph graph = new DependencyGraph();
+        graph.update("A", Collections.singleton("B"));
+        graph.update("B", Collections.singleton("C"));
+        graph.update("C", Collections.emptySet());
+        graph.update("D", Collections.singleton("C"));
+        return graph;
+    }
+
+    @Test
+    public void affectedByFollowsDependents() {
+        DependencyGraph graph = chain();
+        assertThat(graph.affectedBy(Collections.singleton("C"))).containsExactly("A", "B", "C", "D");
+        assertThat(graph.affectedBy(Collections.singleton("A"))).containsExactly("A");
+    }
+
+    @Test
+    public void requiredByFollowsDependencies() {
+        DependencyGraph graph = chain();
+        assertThat(graph.requiredBy(Collections.singleton("A"))).containsExactly("A", "B", "C");
+        assertThat(graph.requiredBy(Arrays.asList("C", "D"))).containsExactly("C", "D");
+    }
+
+    @Test
+    public void updateReplacesEdges() {
+        DependencyGraph graph = chain();
+        graph.update("A", new HashSet<>(Collections.singleton("D")));
+        assertThat(graph.affectedBy(Collections.singleton("B"))).containsExactly("B");
+        assertThat(graph.affectedBy(Collections.singleton("D"))).containsExactly("A", "D");
+    }
+
+    @Test
+    public void removeDropsNode() {
+        DependencyGraph graph = chain();
+        graph.remove("B");
+        assertThat(graph.contains("B")).isFalse();
+        assertThat(graph.affectedBy(Collections.singleton("C"))).containsExactly("C", "D");
+    }
+
+    @Test
+    public void shardsKeepCyclesTogether() {
+        DependencyGraph graph = chain();
+        graph.update("C", Collections.singleton("B"));
+        List<Set<String>> shards = graph.shards(Arrays.asList("A", "B", "C", "D"), 3);
+        assertThat(shards).hasSize(3);
+        assertThat(shards).contains(new HashSet<>(Arrays.asList("B", "C")));
+        assertThat(graph.shards(Arrays.asList("A", "B", "C", "D"), 1)).hasSize(1);
+    }
+}
@@ -0,0 +1,107 @@
+package com.github.wadoon.openjmllsp;
+
+import org.junit.Test;
+
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.truth.Truth.assertThat;
+
+public class DiagnosticSchedulerTest {
+    private final List<Set<String>> runs = Collections.synchronizedList(new ArrayList<>());
+
+    private CheckResult result(Set<String> uris) {
+        runs.add(new HashSet<>(uris));
+        return new CheckResult(new HashSet<>(uris), Collections.emptyList());
+    }
+
+    @Test
+    public void coalescesWaitingRequests() throws Exception {
+        DiagnosticScheduler scheduler = new DiagnosticScheduler((uris, run) -> result(uris), 200);
+        scheduler.edited();
+        CompletableFuture<CheckResult> a = scheduler.request(Collections.singleton("A"));
+        CompletableFuture<CheckResult> b = scheduler.request(Collections.singleton("B"));
+        assertThat(a.get(5, TimeUnit.SECONDS)).isSameInstanceAs(b.get(5, TimeUnit.SECONDS));
+        assertThat(runs).containsExactly(new HashSet<>(Arrays.asList("A", "B")));
+    }
+
+    @Test
+    public void editCancelsRunningCheck() throws Exception {
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch edited = new CountDownLatch(1);
+        DiagnosticScheduler scheduler = new DiagnosticScheduler((uris, run) -> {
+            if (runs.isEmpty() && started.getCount() > 0) {
+                started.countDown();
+                try {
+                    edited.await();
+                } catch (InterruptedException ignored) {
+                }
+                run.checkCancelled();
+            }
+            return result(uris);
+        }, 0);
+        CompletableFuture<CheckResult> a = scheduler.request(Collections.singleton("A"));
+        assertThat(started.await(5, TimeUnit.SECONDS)).isTrue();
+        scheduler.edited();
+        edited.countDown();
+        assertThat(a.get(5, TimeUnit.SECONDS).checked).containsExactly("A");
+        assertThat(runs).hasSize(1);
+    }
+
+    @Test
+    public void cancelledRequestDropsWaitingCheck() throws Exception {
+        DiagnosticScheduler scheduler = new DiagnosticScheduler((uris, run) -> result(uris), 200);
+        scheduler.edited();
+        scheduler.request(Collections.singleton("A")).cancel(true);
+        CompletableFuture<CheckResult> b = scheduler.request(Collections.singleton("B"));
+        assertThat(b.get(5, TimeUnit.SECONDS).checked).containsExactly("B");
+        assertThat(runs).containsExactly(Collections.singleton("B"));
+    }
+
+    @Test
+    public void workspaceRequestDoesNotJoinARunningFileCheck() throws Exception {
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        DiagnosticScheduler scheduler = new DiagnosticScheduler((uris, run) -> {
+            if (started.getCount() > 0) {
+                started.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException ignored) {
+                }
+            }
+            return result(uris);
+        }, 0);
+        CompletableFuture<CheckResult> a = scheduler.request(Collections.singleton("A"));
+        assertThat(started.await(5, TimeUnit.SECONDS)).isTrue();
+        CompletableFuture<CheckResult> all = scheduler.request(Collections.emptySet());
+        release.countDown();
+        assertThat(a.get(5, TimeUnit.SECONDS)).isNotSameInstanceAs(all.get(5, TimeUnit.SECONDS));
+        assertThat(runs).containsExactly(Collections.singleton("A"), Collections.emptySet()).inOrder();
+    }
+
+    @Test
+    public void cancellingAMovedRequestDropsTheNextCheck() throws Exception {
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch edited = new CountDownLatch(1);
+        DiagnosticScheduler scheduler = new DiagnosticScheduler((uris, run) -> {
+            started.countDown();
+            try {
+                edited.await();
+            } catch (InterruptedException ignored) {
+            }
+            run.checkCancelled();
+            return result(uris);
+        }, 200);
+        CompletableFuture<CheckResult> a = scheduler.request(Collections.singleton("A"));
+        assertThat(started.await(5, TimeUnit.SECONDS)).isTrue();
+        scheduler.edited();
+        edited.countDown();
+        a.cancel(true);
+        assertThat(scheduler.waiting()).isEqualTo(0);
+        Thread.sleep(400);
+        assertThat(runs).isEmpty();
+    }
+}
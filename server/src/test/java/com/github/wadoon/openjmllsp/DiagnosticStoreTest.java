@@ -0,0 +1,125 @@
+package com.github.wadoon.openjmllsp;
+
+import org.eclipse.lsp4j.Diagnostic;
+import org.eclipse.lsp4j.Position;
+import org.eclipse.lsp4j.Range;
+import org.junit.Test;
+
+import javax.tools.JavaFileObject;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import static com.google.common.truth.Truth.assertThat;
+
+public class DiagnosticStoreTest {
+    private static DiagnosticStore.Entry entry(String uri, long hash) {
+        return new DiagnosticStore.Entry(uri, hash, Collections.emptyList());
+    }
+
+    @Test
+    public void snapshotsAreNotAffectedByUpdates() {
+        DiagnosticStore store = new DiagnosticStore();
+        store.publish(Arrays.asList(entry("a", 1), entry("b", 2)));
+        Map<String, DiagnosticStore.Entry> first = store.snapshot();
+
+        store.publish(Collections.singletonList(entry("a", 3)));
+        store.removeAll(Collections.singleton("b"));
+
+        assertThat(first.keySet()).containsExactly("a", "b");
+        assertThat(first.get("a").hash).isEqualTo(1);
+        assertThat(store.snapshot().keySet()).containsExactly("a");
+        assertThat(store.get("a").hash).isEqualTo(3);
+        assertThat(store.get("b")).isNull();
+    }
+
+    @Test
+    public void translatesOnceAndKeepsResultIdsOfEqualResults() {
+        AtomicInteger translations = new AtomicInteger();
+        Function<DiagnosticStore.Entry, List<Diagnostic>> translator = entry -> {
+            translations.incrementAndGet();
+            return Collections.singletonList(new Diagnostic(new Range(new Position(0, 0), new Position(0, 1)),
+                    entry.diagnostics.get(0).getMessage(null)));
+        };
+        List<javax.tools.Diagnostic<? extends JavaFileObject>> diagnostics = Collections.singletonList(
+                new StoredDiagnostic(javax.tools.Diagnostic.Kind.WARNING, StoredDiagnostic.sourceOf("file:///A.java"),
+                        10, 8, 12, 2, 3, "jml.some.code", "message"));
+        DiagnosticStore.Entry first = new DiagnosticStore.Entry("file:///A.java", 1, diagnostics);
+
+        List<Diagnostic> translated = first.translated(translator);
+        assertThat(first.translated(translator)).isSameInstanceAs(translated);
+        assertThat(translations.get()).isEqualTo(1);
+
+        DiagnosticStore.Entry rechecked = new DiagnosticStore.Entry("file:///A.java", 1, diagnostics);
+        DiagnosticStore.Entry edited = new DiagnosticStore.Entry("file:///A.java", 2, diagnostics);
+        assertThat(rechecked.resultId(translator)).isEqualTo(first.resultId(translator));
+        assertThat(edited.resultId(translator)).isNotEqualTo(first.resultId(translator));
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsedClosedFilesFirst() {
+        Set<String> open = new HashSet<>(Collections.singletonList("a"));
+        DiagnosticStore store = new DiagnosticStore(open::contains);
+        store.setBounds(2, 0);
+        store.publish(Collections.singletonList(entry("a", 1)));
+        store.publish(Collections.singletonList(entry("b", 1)));
+        store.publish(Collections.singletonList(entry("c", 1)));
+        store.get("b");
+
+        store.publish(Collections.singletonList(entry("d", 1)));
+
+        assertThat(store.snapshot().keySet()).containsExactly("a", "d");
+        assertThat(store.evictions()).isEqualTo(2);
+    }
+
+    @Test
+    public void keepsDetachedCopiesOfTheDiagnostics() {
+        StoredDiagnostic d = new StoredDiagnostic(javax.tools.Diagnostic.Kind.ERROR,
+                StoredDiagnostic.sourceOf("file:///A.java"), 10, 8, 12, 2, 3, "jml.some.code", "message");
+        DiagnosticStore.Entry entry = new DiagnosticStore.Entry("file:///A.java", 1,
+                Arrays.asList(d, d, d));
+
+        assertThat(entry.diagnostics).hasSize(3);
+        assertThat(entry.diagnostics.get(2)).isEqualTo(d);
+        assertThat(entry.diagnostics.get(2).getSource()).isNotSameInstanceAs(d.getSource());
+    }
+
+    @Test
+    public void storedDiagnosticsTakeTheNewSource() {
+        StoredDiagnostic d = new StoredDiagnostic(javax.tools.Diagnostic.Kind.ERROR, null, 10, 8, 12, 2, 3,
+                "jml.some.code", "message");
+        JavaFileObject source = StoredDiagnostic.sourceOf("file:///A.java");
+
+        StoredDiagnostic copy = StoredDiagnostic.of(d, source);
+        assertThat(copy.getSource()).isSameInstanceAs(source);
+        assertThat(copy.getStartPosition()).isEqualTo(8);
+        assertThat(copy.getMessage(null)).isEqualTo("message");
+        assertThat(StoredDiagnostic.of(copy, source)).isSameInstanceAs(copy);
+    }
+
+    @Test
+    public void takesLinesFromTheIndexNotFromTheCompiler() {
+        javax.tools.Diagnostic<JavaFileObject> reported = new javax.tools.Diagnostic<JavaFileObject>() {
+            public Kind getKind() { return Kind.ERROR; }
+            public JavaFileObject getSource() { return null; }
+            public long getPosition() { return 12; }
+            public long getStartPosition() { return 12; }
+            public long getEndPosition() { return 15; }
+            public long getLineNumber() { throw new AssertionError("asked the compiler for the line"); }
+            public long getColumnNumber() { throw new AssertionError("asked the compiler for the column"); }
+            public String getCode() { return "compiler.err.some"; }
+            public String getMessage(java.util.Locale locale) { return "message"; }
+        };
+        LineIndex lines = new LineIndex("class A {\n  int x;\n}\n", 0);
+
+        StoredDiagnostic stored = StoredDiagnostic.of(reported, null, lines);
+        assertThat(stored.getLineNumber()).isEqualTo(2);
+        assertThat(stored.getColumnNumber()).isEqualTo(3);
+        assertThat(StoredDiagnostic.of(reported, null).getLineNumber()).isEqualTo(javax.tools.Diagnostic.NOPOS);
+    }
+}
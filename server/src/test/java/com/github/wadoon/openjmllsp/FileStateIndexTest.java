@@ -0,0 +1,48 @@
+package com.github.wadoon.openjmllsp;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static com.google.common.truth.Truth.assertThat;
+
+public class FileStateIndexTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void hashMatchesBuffer() throws Exception {
+        String text = "class A { /*@ pure */ void \u00e4() {} }\n";
+        Path file = folder.newFile("A.java").toPath();
+        Files.write(file, text.getBytes(StandardCharsets.UTF_8));
+
+        FileStateIndex index = new FileStateIndex();
+        assertThat(index.hash(file.toUri().toString())).isEqualTo(FileStateIndex.contentHash(text));
+    }
+
+    @Test
+    public void changesAreDetected() throws Exception {
+        Path file = folder.newFile("A.java").toPath();
+        String uri = file.toUri().toString();
+        Files.write(file, "class A {}".getBytes(StandardCharsets.UTF_8));
+        FileStateIndex index = new FileStateIndex();
+        long before = index.hash(uri);
+
+        Files.write(file, "class A { int x; }".getBytes(StandardCharsets.UTF_8));
+        assertThat(index.hash(uri)).isNotEqualTo(before);
+
+        Files.write(file, "class B { int x; }".getBytes(StandardCharsets.UTF_8));
+        index.invalidate(uri);
+        assertThat(index.hash(uri)).isEqualTo(FileStateIndex.contentHash("class B { int x; }"));
+    }
+
+    @Test
+    public void missingFile() {
+        FileStateIndex index = new FileStateIndex();
+        assertThat(index.hash(folder.getRoot().toPath().resolve("Missing.java").toUri().toString())).isEqualTo(-1);
+    }
+}
@@ -0,0 +1,55 @@
+package com.github.wadoon.openjmllsp;
+
+import org.eclipse.lsp4j.Position;
+import org.eclipse.lsp4j.Range;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import javax.tools.Diagnostic;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static com.google.common.truth.Truth.assertThat;
+
+public class LineIndexTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void mapsOffsetsToLinesAndUtf16Columns() {
+        // a surrogate pair counts as two columns, as in LSP
+        String text = "class A {\r\n  // \uD83D\uDE00 x\rint y;\n}";
+        LineIndex index = new LineIndex(text, 0);
+
+        assertThat(index.lineCount()).isEqualTo(4);
+        assertThat(index.position(text.indexOf('{'))).isEqualTo(new Position(0, 8));
+        assertThat(index.position(text.indexOf('x'))).isEqualTo(new Position(1, 8));
+        assertThat(index.position(text.indexOf("int"))).isEqualTo(new Position(2, 0));
+        assertThat(index.position(text.length() + 5)).isEqualTo(new Position(3, 1));
+    }
+
+    @Test
+    public void rangeSpansStartToEnd() {
+        String text = "class A {\n  int x;\n}";
+        LineIndex index = new LineIndex(text, 0);
+        int start = text.indexOf("int");
+        Diagnostic<?> diagnostic = new StoredDiagnostic(Diagnostic.Kind.ERROR,
+                StoredDiagnostic.sourceOf("file:///A.java"), start, start, start + "int x".length(), 2, 3, "code",
+                "message");
+
+        assertThat(index.range(diagnostic)).isEqualTo(new Range(new Position(1, 2), new Position(1, 7)));
+    }
+
+    @Test
+    public void readsOnlyTheIndexedVersion() throws Exception {
+        String text = "class A {\n}\n";
+        Path file = folder.newFile("A.java").toPath();
+        Files.write(file, text.getBytes(StandardCharsets.UTF_8));
+        long hash = FileStateIndex.contentHash(text);
+
+        assertThat(LineIndex.read(file, hash).lineCount()).isEqualTo(3);
+        assertThat(LineIndex.read(file, hash + 1)).isNull();
+    }
+}
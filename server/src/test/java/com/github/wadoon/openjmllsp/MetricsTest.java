@@ -0,0 +1,43 @@
+package com.github.wadoon.openjmllsp;
+
+import com.google.gson.JsonObject;
+import org.junit.Test;
+
+import static com.google.common.truth.Truth.assertThat;
+
+public class MetricsTest {
+    @Test
+    public void json() {
+        Metrics metrics = new Metrics();
+        metrics.cache("diagnostics", true);
+        metrics.cache("diagnostics", true);
+        metrics.cache("diagnostics", false);
+        metrics.count("check.incremental");
+        metrics.gauge("scheduler.waiting", () -> 3);
+        Metrics.Timer timer = metrics.time("check");
+        metrics.uriTime("file:///A.java", 2_000_000);
+        timer.stop();
+
+        JsonObject json = metrics.toJson();
+        assertThat(json.getAsJsonObject("counters").get("check.incremental").getAsLong()).isEqualTo(1);
+        assertThat(json.getAsJsonObject("gauges").get("scheduler.waiting").getAsLong()).isEqualTo(3);
+        JsonObject diagnostics = json.getAsJsonObject("caches").getAsJsonObject("diagnostics");
+        assertThat(diagnostics.get("hitRatio").getAsDouble()).isWithin(1e-9).of(2.0 / 3);
+        assertThat(json.getAsJsonObject("phases").getAsJsonObject("check").get("count").getAsLong()).isEqualTo(1);
+        assertThat(json.getAsJsonObject("slowestUris").getAsJsonObject("file:///A.java").get("lastMillis")
+                .getAsDouble()).isEqualTo(2.0);
+    }
+
+    @Test
+    public void prometheus() {
+        Metrics metrics = new Metrics();
+        metrics.count("check.cancelled", 2);
+        metrics.record("openjml.parse", System.nanoTime());
+
+        String text = metrics.toPrometheus();
+        assertThat(text).contains("openjml_check_cancelled_total 2\n");
+        assertThat(text).contains("# TYPE openjml_openjml_parse_seconds histogram\n");
+        assertThat(text).contains("openjml_openjml_parse_seconds_bucket{le=\"+Inf\"} 1\n");
+        assertThat(text).contains("openjml_openjml_parse_seconds_count 1\n");
+    }
+}
@@ -0,0 +1,104 @@
+package com.github.wadoon.openjmllsp;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import javax.tools.Diagnostic;
+import javax.tools.JavaFileObject;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.*;
+
+import static com.google.common.truth.Truth.assertThat;
+
+public class PersistentDiagnosticCacheTest {
+    private static final String URI = "file:///work/A.java";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static StoredDiagnostic diagnostic(String message) {
+        return new StoredDiagnostic(Diagnostic.Kind.WARNING, StoredDiagnostic.sourceOf(URI),
+                10, 8, 12, 2, 3, "jml.some.code", message);
+    }
+
+    @Test
+    public void roundTrip() throws Exception {
+        PersistentDiagnosticCache cache = new PersistentDiagnosticCache(folder.getRoot().toPath(), 1 << 20, "v1");
+        String key = cache.key("/work", URI, 42, new TreeMap<>(Collections.singletonMap("file:///work/B.java", 7L)));
+        assertThat(cache.get(key, URI)).isNull();
+
+        cache.put(key, Collections.singletonList(diagnostic("\u00c4 message")));
+        List<Diagnostic<? extends JavaFileObject>> restored =
+                new PersistentDiagnosticCache(folder.getRoot().toPath(), 1 << 20, "v1").get(key, URI);
+        assertThat(restored).hasSize(1);
+        Diagnostic<? extends JavaFileObject> d = restored.get(0);
+        assertThat(d.getKind()).isEqualTo(Diagnostic.Kind.WARNING);
+        assertThat(d.getLineNumber()).isEqualTo(2);
+        assertThat(d.getEndPosition()).isEqualTo(12);
+        assertThat(d.getMessage(Locale.ROOT)).isEqualTo("\u00c4 message");
+        assertThat(OpenJMLDiagnosticHandler.uriOf(d.getSource())).isEqualTo(URI);
+    }
+
+    @Test
+    public void keyDependsOnEverything() throws Exception {
+        PersistentDiagnosticCache v1 = new PersistentDiagnosticCache(folder.getRoot().toPath(), 1 << 20, "v1");
+        PersistentDiagnosticCache v2 = new PersistentDiagnosticCache(folder.getRoot().toPath(), 1 << 20, "v2");
+        TreeMap<String, Long> deps = new TreeMap<>(Collections.singletonMap("file:///work/B.java", 7L));
+        String key = v1.key("/work", URI, 42, deps);
+        assertThat(v2.key("/work", URI, 42, deps)).isNotEqualTo(key);
+        assertThat(v1.key("/work", URI, 43, deps)).isNotEqualTo(key);
+        assertThat(v1.key("/work", URI, 42, new TreeMap<>())).isNotEqualTo(key);
+        assertThat(v1.key("/work:/lib", URI, 42, deps)).isNotEqualTo(key);
+        assertThat(v1.key("/work", URI, 42, deps)).isEqualTo(key);
+    }
+
+    @Test
+    public void evictsWhenFull() throws Exception {
+        PersistentDiagnosticCache cache = new PersistentDiagnosticCache(folder.getRoot().toPath(), 2000, "v1");
+        char[] filler = new char[300];
+        Arrays.fill(filler, 'x');
+        for (int i = 0; i < 20; i++) {
+            cache.put("k" + i, Collections.singletonList(diagnostic(new String(filler))));
+        }
+        long size = Arrays.stream(folder.getRoot().listFiles()).mapToLong(java.io.File::length).sum();
+        assertThat(size).isAtMost(2000L);
+        assertThat(cache.get("k19", URI)).isNotNull();
+    }
+
+    @Test
+    public void readsAreWrittenOutInBatchesAndKeepEntriesFromEviction() throws Exception {
+        Path directory = folder.getRoot().toPath();
+        PersistentDiagnosticCache cache = new PersistentDiagnosticCache(directory, 2000, "v1");
+        char[] filler = new char[300];
+        Arrays.fill(filler, 'x');
+        for (int i = 0; i < 4; i++) {
+            cache.put("k" + i, Collections.singletonList(diagnostic(new String(filler))));
+            Files.setLastModifiedTime(directory.resolve("k" + i), FileTime.fromMillis(1000L * (i + 1)));
+        }
+        cache.putGraph("ws", Collections.singletonMap("A", Collections.singleton("B")));
+
+        assertThat(cache.get("k0", URI)).isNotNull();
+        assertThat(Files.getLastModifiedTime(directory.resolve("k0")).toMillis()).isEqualTo(1000L);
+
+        for (int i = 4; i < 6; i++) {
+            cache.put("k" + i, Collections.singletonList(diagnostic(new String(filler))));
+        }
+        assertThat(cache.get("k0", URI)).isNotNull();
+        assertThat(cache.get("k1", URI)).isNull();
+        assertThat(cache.getGraph("ws")).isNotEmpty();
+    }
+
+    @Test
+    public void graphRoundTrip() throws Exception {
+        PersistentDiagnosticCache cache = new PersistentDiagnosticCache(folder.getRoot().toPath(), 1 << 20, "v1");
+        Map<String, Set<String>> graph = new HashMap<>();
+        graph.put("A", new HashSet<>(Arrays.asList("B", "C")));
+        graph.put("B", new HashSet<>());
+        cache.putGraph("ws", graph);
+        assertThat(cache.getGraph("ws")).isEqualTo(graph);
+        assertThat(cache.getGraph("other")).isEmpty();
+    }
+}
@@ -0,0 +1,93 @@
+package com.github.wadoon.openjmllsp;
+
+import org.eclipse.lsp4j.Position;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static com.google.common.truth.Truth.assertThat;
+
+public class PieceTableTest {
+    @Test
+    public void replace() {
+        PieceTable table = new PieceTable("class A {\n}\n");
+        table.replace(6, 1, "Bar");
+        table.replace(table.length(), 0, "// end");
+        table.replace(0, 0, "public ");
+        assertThat(table.toString()).isEqualTo("public class Bar {\n}\n// end");
+        assertThat(table.length()).isEqualTo(table.toString().length());
+    }
+
+    @Test
+    public void offsetAt() {
+        PieceTable table = new PieceTable("ab\ncd\n");
+        table.replace(3, 0, "xy\nz");
+        // ab\nxy\nzcd\n
+        assertThat(table.offsetAt(0, 1)).isEqualTo(1);
+        assertThat(table.offsetAt(1, 0)).isEqualTo(3);
+        assertThat(table.offsetAt(2, 2)).isEqualTo(8);
+        assertThat(table.offsetAt(0, 10)).isEqualTo(2);
+        assertThat(table.offsetAt(3, 0)).isEqualTo(10);
+        assertThat(table.offsetAt(7, 0)).isEqualTo(10);
+    }
+
+    @Test
+    public void randomEditsMatchStringBuilder() {
+        Random random = new Random(42);
+        StringBuilder expected = new StringBuilder("int x;\n");
+        PieceTable table = new PieceTable(expected.toString());
+        for (int i = 0; i < 5000; i++) {
+            int offset = random.nextInt(expected.length() + 1);
+            int count = random.nextInt(Math.min(4, expected.length() - offset) + 1);
+            String insert = random.nextInt(5) == 0 ? "\n" : "ab".substring(random.nextInt(2));
+            expected.replace(offset, offset + count, insert);
+            table.replace(offset, count, insert);
+        }
+        assertThat(table.toString()).isEqualTo(expected.toString());
+
+        String text = expected.toString();
+        int line = 0;
+        int lineStart = 0;
+        for (int i = 0; i <= text.length(); i++) {
+            assertThat(table.offsetAt(line, i - lineStart)).isEqualTo(i);
+            if (i < text.length() && text.charAt(i) == '\n') {
+                line++;
+                lineStart = i + 1;
+            }
+        }
+    }
+
+    @Test
+    public void linesEndLikeInLineIndex() {
+        PieceTable table = new PieceTable("a\r\nb\rc\n");
+        // a\r|\nb\rc\n, with the \r\n split over two pieces
+        table.replace(2, 0, "");
+        table.replace(1, 1, "\r");
+        assertThat(table.offsetAt(1, 0)).isEqualTo(3);
+        assertThat(table.offsetAt(2, 0)).isEqualTo(5);
+        assertThat(table.offsetAt(3, 0)).isEqualTo(7);
+
+        Random random = new Random(7);
+        StringBuilder expected = new StringBuilder("int x;\r\n");
+        table = new PieceTable(expected.toString());
+        String[] inserts = {"\r", "\n", "\r\n", "a", "bc", ""};
+        for (int i = 0; i < 5000; i++) {
+            int offset = random.nextInt(expected.length() + 1);
+            int count = random.nextInt(Math.min(3, expected.length() - offset) + 1);
+            String insert = inserts[random.nextInt(inserts.length)];
+            expected.replace(offset, offset + count, insert);
+            table.replace(offset, count, insert);
+        }
+        String text = expected.toString();
+        assertThat(table.toString()).isEqualTo(text);
+        LineIndex index = new LineIndex(text, 0);
+        for (int i = 0; i <= text.length(); i++) {
+            if (i > 0 && i < text.length() && text.charAt(i - 1) == '\r' && text.charAt(i) == '\n') {
+                // inside a line break, no position refers to it
+                continue;
+            }
+            Position position = index.position(i);
+            assertThat(table.offsetAt(position.getLine(), position.getCharacter())).isEqualTo(i);
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package com.github.wadoon.openjmllsp;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+
+import static com.google.common.truth.Truth.assertThat;
+
+public class SharedWorkspaceTest {
+    @After
+    public void unbound() {
+        SharedWorkspace.setMaxConcurrentChecks(0);
+    }
+
+    @Test
+    public void sessionsOnTheSameFoldersShareState() {
+        Predicate<String> first = uri -> false;
+        Predicate<String> second = uri -> false;
+        Predicate<String> third = uri -> false;
+        SharedWorkspace a = SharedWorkspace.open("file:///work/a", first);
+        SharedWorkspace b = SharedWorkspace.open("file:///work/a", second);
+        SharedWorkspace c = SharedWorkspace.open("file:///work/c", third);
+        assertThat(b).isSameInstanceAs(a);
+        assertThat(c).isNotSameInstanceAs(a);
+        assertThat(b.diagnostics).isSameInstanceAs(a.diagnostics);
+        assertThat(b.dependencies).isSameInstanceAs(a.dependencies);
+        assertThat(c.diagnostics).isNotSameInstanceAs(a.diagnostics);
+
+        a.release(first);
+        assertThat(SharedWorkspace.open("file:///work/a", first)).isSameInstanceAs(b);
+        b.release(first);
+        b.release(second);
+        SharedWorkspace d = SharedWorkspace.open("file:///work/a", first);
+        assertThat(d).isNotSameInstanceAs(a);
+        d.release(first);
+        c.release(third);
+    }
+
+    @Test
+    public void documentsOpenInAnySessionAreKeptFromEviction() {
+        Predicate<String> first = uri -> uri.equals("file:///work/a/A.java");
+        Predicate<String> second = uri -> uri.equals("file:///work/a/B.java");
+        SharedWorkspace a = SharedWorkspace.open("file:///work/a", first);
+        SharedWorkspace b = SharedWorkspace.open("file:///work/a", second);
+        a.diagnostics.setBounds(2, 0);
+        a.diagnostics.publish(Arrays.asList(
+                new DiagnosticStore.Entry("file:///work/a/A.java", 1, Collections.emptyList()),
+                new DiagnosticStore.Entry("file:///work/a/B.java", 2, Collections.emptyList()),
+                new DiagnosticStore.Entry("file:///work/a/C.java", 3, Collections.emptyList())));
+        assertThat(b.diagnostics.snapshot().keySet())
+                .containsExactly("file:///work/a/A.java", "file:///work/a/B.java");
+        a.release(first);
+        b.release(second);
+    }
+
+    @Test
+    public void concurrentChecksAreBounded() throws Exception {
+        SharedWorkspace.setMaxConcurrentChecks(1);
+        DiagnosticScheduler scheduler = new DiagnosticScheduler((uris, run) -> new CheckResult(), 0);
+        DiagnosticScheduler.Run run = scheduler.new Run();
+
+        SharedWorkspace.beginCheck(run::checkCancelled);
+        CompletableFuture<Void> second = CompletableFuture.runAsync(() -> {
+            SharedWorkspace.beginCheck(run::checkCancelled);
+            SharedWorkspace.endCheck();
+        });
+        Thread.sleep(200);
+        assertThat(second.isDone()).isFalse();
+        assertThat(SharedWorkspace.waitingChecks()).isEqualTo(1);
+
+        SharedWorkspace.endCheck();
+        second.get(5, TimeUnit.SECONDS);
+    }
+}
@@ -0,0 +1,80 @@
+package com.github.wadoon.openjmllsp;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static com.google.common.truth.Truth.assertThat;
+
+public class SourceIndexTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Path write(String path, String content) throws IOException {
+        Path file = folder.getRoot().toPath().resolve(path);
+        Files.createDirectories(file.getParent());
+        Files.write(file, content.getBytes(StandardCharsets.UTF_8));
+        return file;
+    }
+
+    private SourceIndex index() {
+        return new SourceIndex(Collections.singletonList(folder.getRoot().toPath()),
+                Arrays.asList("build", "target", ".git")).scan();
+    }
+
+    @Test
+    public void scanSkipsExcludedDirectories() throws Exception {
+        Path a = write("src/main/java/a/b/A.java", "/* class comment */\npackage a.b;\nclass A {}");
+        Path b = write("src/test/java/B.java", "class B {}");
+        write("build/generated/C.java", "class C {}");
+        write("module/target/D.java", "class D {}");
+
+        SourceIndex index = index();
+        assertThat(Arrays.asList(index.files())).containsExactly(a.toFile(), b.toFile());
+        Path root = folder.getRoot().toPath();
+        assertThat(index.sourceRoots()).containsExactly(root.resolve("src/main/java"), root.resolve("src/test/java"));
+    }
+
+    @Test
+    public void sourceRootFallsBackToDirectory() throws Exception {
+        Path a = write("src/x/A.java", "package a.b;\nclass A {}");
+        assertThat(SourceIndex.getSourceRoot(a).equals(a.getParent())).isTrue();
+    }
+
+    @Test
+    public void createdAndDeleted() throws Exception {
+        Path a = write("src/a/A.java", "package a;\nclass A {}");
+        SourceIndex index = index();
+
+        Path b = write("lib/b/c/B.java", "package b.c;\nclass B {}");
+        index.created(b.getParent().getParent());
+        assertThat(Arrays.asList(index.files())).containsExactly(a.toFile(), b.toFile());
+        assertThat(index.sourceRoots()).contains(folder.getRoot().toPath().resolve("lib"));
+
+        index.deleted(a);
+        assertThat(Arrays.asList(index.files())).containsExactly(b.toFile());
+        assertThat(index.sourceRoots()).containsExactly(folder.getRoot().toPath().resolve("lib"));
+
+        index.deleted(folder.getRoot().toPath().resolve("lib"));
+        assertThat(index.files()).isEqualTo(new File[0]);
+    }
+
+    @Test
+    public void partitionKeepsDirectoriesTogether() {
+        File[] files = {new File("/w/a/A1.java"), new File("/w/a/A2.java"), new File("/w/a/A3.java"),
+                new File("/w/b/B1.java"), new File("/w/c/C1.java"), new File("/w/c/C2.java")};
+        assertThat(SourceIndex.partition(files, 2)).containsExactly(
+                Arrays.asList(files[0], files[1], files[2]),
+                Arrays.asList(files[3], files[4], files[5])).inOrder();
+        assertThat(SourceIndex.partition(files, 1)).hasSize(1);
+        assertThat(SourceIndex.partition(files, 8)).hasSize(3);
+    }
+}
@@ -0,0 +1,67 @@
+package com.github.wadoon.openjmllsp;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static com.google.common.truth.Truth.assertThat;
+
+public class SpecIndexTest {
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private Path jar(String... entries) throws IOException {
+        File jar = tmp.newFile("jmlspecs.jar");
+        try (ZipOutputStream out = new ZipOutputStream(new FileOutputStream(jar))) {
+            for (String entry : entries) {
+                out.putNextEntry(new ZipEntry(entry));
+                out.write("//@ spec".getBytes(StandardCharsets.UTF_8));
+                out.closeEntry();
+            }
+        }
+        return jar.toPath();
+    }
+
+    @Test
+    public void indexesSpecFilesAndSurvivesTheRoundTrip() throws IOException {
+        Path jar = jar("specs/java/lang/Object.jml", "java/util/List.jml", "java/util/List.class");
+        SpecIndex index = SpecIndex.build(Collections.singletonList(jar));
+        assertThat(index.size()).isEqualTo(2);
+        assertThat(index.contains("java.lang.Object")).isTrue();
+        assertThat(index.contains("java.util.List")).isTrue();
+
+        Path file = tmp.getRoot().toPath().resolve("specs.bin");
+        index.write(file);
+        SpecIndex read = SpecIndex.read(file);
+        assertThat(read.size()).isEqualTo(2);
+        assertThat(read.contains("java.util.List")).isTrue();
+    }
+
+    @Test
+    public void preloadsJavaLangAndTheMostImportedTypes() throws IOException {
+        SpecIndex index = SpecIndex.build(Collections.singletonList(jar("java/lang/String.jml",
+                "java/lang/invoke/MethodHandle.jml", "java/util/List.jml", "java/util/Map.jml", "java/util/Set.jml")));
+        File a = tmp.newFile("A.java");
+        Files.write(a.toPath(), Arrays.asList("package p;", "import java.util.Map;", "import java.util.List;",
+                "import static java.util.Map.entry;", "public class A {", "import java.util.Set;", "}"));
+        File b = tmp.newFile("B.java");
+        Files.write(b.toPath(), Arrays.asList("import java.util.List;", "class B {}"));
+
+        Map<String, Integer> imports = SpecIndex.imports(new File[]{a, b});
+        assertThat(imports).containsExactly("java.util.Map", 2, "java.util.List", 2);
+        assertThat(index.preload(imports)).containsExactly("java.lang.String", "java.util.List", "java.util.Map")
+                .inOrder();
+    }
+}
@@ -0,0 +1,32 @@
+package com.github.wadoon.openjmllsp;
+
+import org.eclipse.lsp4j.Diagnostic;
+import org.eclipse.lsp4j.DiagnosticSeverity;
+import org.junit.Test;
+
+import java.util.List;
+
+import static com.google.common.truth.Truth.assertThat;
+
+public class SyntaxCheckerTest {
+    @Test
+    public void reportsSyntaxErrorsAtTheirPosition() {
+        String text = "class A {\n  void m() {\n    int x = ;\n  }\n}\n";
+        List<Diagnostic> diagnostics = new SyntaxChecker().check("file:///A.java", 1, text);
+
+        assertThat(diagnostics).isNotEmpty();
+        Diagnostic first = diagnostics.get(0);
+        assertThat(first.getSeverity()).isEqualTo(DiagnosticSeverity.Error);
+        assertThat(first.getRange().getStart().getLine()).isEqualTo(2);
+    }
+
+    @Test
+    public void reusesTheResultOfUnchangedContent() {
+        SyntaxChecker checker = new SyntaxChecker();
+        List<Diagnostic> first = checker.check("file:///A.java", 1, "class A {}");
+
+        assertThat(first).isEmpty();
+        assertThat(checker.check("file:///A.java", 1, "class A {}")).isSameInstanceAs(first);
+        assertThat(checker.check("file:///A.java", 2, "class A {")).isNotEmpty();
+    }
+}
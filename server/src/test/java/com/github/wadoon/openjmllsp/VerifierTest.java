@@ -0,0 +1,46 @@
+package com.github.wadoon.openjmllsp;
+
+import org.junit.Test;
+
+import java.util.List;
+
+import static com.google.common.truth.Truth.assertThat;
+
+public class VerifierTest {
+    private static final String SOURCE = "class A {\n"
+            + "    int f;\n"
+            + "\n"
+            + "    //@ requires x > 0;\n"
+            + "    /*@ ensures f == x;\n"
+            + "      @*/\n"
+            + "    void set(int x) {\n"
+            + "        f = x;\n"
+            + "    }\n"
+            + "}\n";
+
+    @Test
+    public void findsTheMethodAndClassAtALine() {
+        List<Verifier.Target> targets = Verifier.targetsAt("file:///A.java", SOURCE, 7);
+
+        assertThat(targets).hasSize(2);
+        Verifier.Target method = targets.get(0);
+        assertThat(method.kind).isEqualTo(Verifier.Kind.METHOD);
+        assertThat(method.name).isEqualTo("set");
+        assertThat(method.owner).isEqualTo("A");
+        assertThat(method.firstLine).isEqualTo(3);
+        assertThat(targets.get(1).kind).isEqualTo(Verifier.Kind.CLASS);
+    }
+
+    @Test
+    public void hashCoversBodyAndSpecificationsOnly() {
+        Verifier.Target method = Verifier.targetsAt("file:///A.java", SOURCE, 7).get(0);
+
+        String moved = SOURCE.replace("    int f;\n", "    int f;\n    int g;\n").replace("    ", "  ");
+        Verifier.Target unchanged = Verifier.targetsAt("file:///A.java", moved, 8).get(0);
+        assertThat(unchanged.key()).isEqualTo(method.key());
+        assertThat(unchanged.hash).isEqualTo(method.hash);
+
+        String respecified = SOURCE.replace("x > 0", "x >= 0");
+        assertThat(Verifier.targetsAt("file:///A.java", respecified, 7).get(0).hash).isNotEqualTo(method.hash);
+    }
+}
@@ -0,0 +1,93 @@
+package com.github.wadoon.openjmllsp;
+
+import org.junit.Test;
+
+import javax.tools.Diagnostic;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import static com.google.common.truth.Truth.assertThat;
+
+public class WorkerProtocolTest {
+    @Test
+    public void messagesSurviveTheRoundTrip() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        WorkerProtocol.writeHello(out);
+        WorkerProtocol.Check check = new WorkerProtocol.Check(7, null, Collections.singletonList("/work/src"));
+        check.add("file:///work/src/A.java", "/work/src/A.java", "class A { String s = \"\u00e4\"; }");
+        check.add("file:///work/src/B.java", "/work/src/B.java", null);
+        WorkerProtocol.write(out, check);
+        WorkerProtocol.write(out, "file:///work/src/A.java", new StoredDiagnostic(Diagnostic.Kind.ERROR, null,
+                10, 8, 12, 1, 11, "compiler.err.some", "message"));
+        WorkerProtocol.write(out, new WorkerProtocol.Cancel(7));
+        Set<String> uses = new HashSet<>(Collections.singletonList("B"));
+        WorkerProtocol.write(out, new WorkerProtocol.Done(7,
+                Collections.singletonMap("file:///work/src/A.java", uses), 1 << 20));
+
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+        WorkerProtocol.readHello(in);
+
+        WorkerProtocol.Check c = (WorkerProtocol.Check) WorkerProtocol.read(in);
+        assertThat(c.id).isEqualTo(7);
+        assertThat(c.report).isNull();
+        assertThat(c.sourcepath).containsExactly("/work/src");
+        assertThat(c.uris).containsExactly("file:///work/src/A.java", "file:///work/src/B.java").inOrder();
+        assertThat(c.texts).containsExactly("class A { String s = \"\u00e4\"; }", null).inOrder();
+
+        StoredDiagnostic d = (StoredDiagnostic) WorkerProtocol.read(in);
+        assertThat(OpenJMLDiagnosticHandler.uriOf(d.getSource())).isEqualTo("file:///work/src/A.java");
+        assertThat(d.getKind()).isEqualTo(Diagnostic.Kind.ERROR);
+        assertThat(d.getStartPosition()).isEqualTo(8);
+        assertThat(d.getEndPosition()).isEqualTo(12);
+        assertThat(d.getCode()).isEqualTo("compiler.err.some");
+        assertThat(d.getMessage(null)).isEqualTo("message");
+
+        assertThat(((WorkerProtocol.Cancel) WorkerProtocol.read(in)).id).isEqualTo(7);
+
+        WorkerProtocol.Done done = (WorkerProtocol.Done) WorkerProtocol.read(in);
+        assertThat(done.id).isEqualTo(7);
+        assertThat(done.heapBytes).isEqualTo(1 << 20);
+        assertThat(done.status).isNull();
+        Map<String, Set<String>> references = done.references;
+        assertThat(references).containsExactly("file:///work/src/A.java", uses);
+
+        try {
+            WorkerProtocol.read(in);
+            throw new AssertionError("expected the end of the stream");
+        } catch (EOFException expected) {
+        }
+    }
+
+    @Test
+    public void verificationsSurviveTheRoundTrip() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        WorkerProtocol.Check check = new WorkerProtocol.Check(8, Collections.singleton("file:///work/src/A.java"),
+                Collections.emptyList(), Arrays.asList("-timeout", "30"),
+                new WorkerProtocol.Verify(Verifier.Kind.METHOD, "m", 2, 3, 9));
+        check.add("file:///work/src/A.java", null, "class A { }");
+        WorkerProtocol.write(out, check);
+        WorkerProtocol.write(out, new WorkerProtocol.Done(8, Collections.emptyMap(), 0, "VALID"));
+
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+        WorkerProtocol.Check c = (WorkerProtocol.Check) WorkerProtocol.read(in);
+        assertThat(c.options).containsExactly("-timeout", "30").inOrder();
+        assertThat(c.verify.kind).isEqualTo(Verifier.Kind.METHOD);
+        assertThat(c.verify.name).isEqualTo("m");
+        assertThat(c.verify.parameters).isEqualTo(2);
+        assertThat(c.verify.declares(9)).isTrue();
+        assertThat(c.verify.declares(10)).isFalse();
+        assertThat(c.paths).containsExactly((String) null);
+        assertThat(((WorkerProtocol.Done) WorkerProtocol.read(in)).status).isEqualTo("VALID");
+    }
+}